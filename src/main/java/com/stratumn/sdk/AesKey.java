@@ -1,16 +1,25 @@
 package com.stratumn.sdk;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -21,6 +30,24 @@ public class AesKey {
    public static final int SALT_LENGTH = 12;
    public static final int TAG_LENGTH = 16;
    public static final int KEY_LENGTH = 32;
+   /**
+    * The size of the chunks read from the streams run through the cipher.
+    */
+   public static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+   private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+   /**
+    * Seeded once and shared, SecureRandom is thread safe.
+    */
+   private static final SecureRandom RANDOM = new SecureRandom();
+
+   /**
+    * The cipher of each thread for the buffer operations, which init and finish
+    * it within the call. The streams keep their own cipher as they may be read
+    * interleaved on the same thread.
+    */
+   private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>();
 
    private SecretKeySpec secretKey;
 
@@ -41,9 +68,8 @@ public class AesKey {
    }
 
    private static byte[] generateRandomBytes(int length) {
-      SecureRandom secureRandom = new SecureRandom();
       byte[] res = new byte[length];
-      secureRandom.nextBytes(res);
+      RANDOM.nextBytes(res);
       return res;
    }
 
@@ -65,24 +91,271 @@ public class AesKey {
     */
    public ByteBuffer encrypt(ByteBuffer bytes) throws InvalidKeyException, InvalidAlgorithmParameterException,
          IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException, NoSuchAlgorithmException {
+      ByteBuffer res = allocate(encryptedSize(bytes.remaining()), bytes.isDirect());
+      // the position of the plaintext buffer is left untouched
+      this.encrypt(bytes.duplicate(), res);
+      res.flip();
+      return res;
+   }
+
+   /***
+    * Encrypts the remaining bytes of src into dst, in the format of encrypt,
+    * without any intermediate copy. Both buffers may be direct. The positions
+    * of the buffers are moved past the bytes read and written.
+    * 
+    * @param src
+    * @param dst must have encryptedSize(src.remaining()) bytes remaining
+    * @throws InvalidKeyException
+    * @throws InvalidAlgorithmParameterException
+    * @throws IllegalBlockSizeException
+    * @throws BadPaddingException
+    * @throws NoSuchPaddingException
+    * @throws NoSuchAlgorithmException
+    */
+   public void encrypt(ByteBuffer src, ByteBuffer dst) throws InvalidKeyException, InvalidAlgorithmParameterException,
+         IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException, NoSuchAlgorithmException {
+      if (dst.remaining() < encryptedSize(src.remaining()))
+         throw new IllegalBlockSizeException("Output buffer too small for the encrypted data");
       byte[] iv = generateRandomBytes(SALT_LENGTH);
-      final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      final Cipher cipher = this.initCipher(threadCipher(), Cipher.ENCRYPT_MODE, iv);
+      dst.put(iv);
+      try {
+         cipher.doFinal(src, dst);
+      } catch (ShortBufferException e) {
+         throw new IllegalBlockSizeException(e.getMessage());
+      }
+   }
+
+   /***
+    * Encrypts bytes in the segmented format: the data is cut in segments sealed
+    * on their own, in parallel on the common fork join pool. decrypt reads both
+    * formats, but other clients of the platform may only read the single
+    * message one.
+    * 
+    * @param bytes
+    * @return
+    * @throws InvalidKeyException
+    * @throws InvalidAlgorithmParameterException
+    * @throws IllegalBlockSizeException
+    * @throws BadPaddingException
+    * @throws NoSuchPaddingException
+    * @throws NoSuchAlgorithmException
+    */
+   public ByteBuffer encryptSegmented(ByteBuffer bytes) throws InvalidKeyException,
+         InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException,
+         NoSuchAlgorithmException {
+      try {
+         return SegmentedCipher.encrypt(this.secretKey, bytes, SegmentedCipher.DEFAULT_SEGMENT_SHIFT,
+               generateRandomBytes(SegmentedCipher.NONCE_PREFIX_LENGTH));
+      } catch (GeneralSecurityException e) {
+         SegmentedCipher.rethrow(e);
+         return null;
+      }
+   }
+
+   /***
+    * Encrypts a stream in the segmented format, a segment at a time. Closing it
+    * closes the plaintext stream.
+    * 
+    * @param plaintext
+    * @return the encrypted stream
+    */
+   public InputStream encryptSegmented(InputStream plaintext) {
+      return SegmentedCipher.encrypt(this.secretKey, plaintext, SegmentedCipher.DEFAULT_SEGMENT_SHIFT,
+            generateRandomBytes(SegmentedCipher.NONCE_PREFIX_LENGTH));
+   }
+
+   /***
+    * @param plaintextSize
+    * @return the size of the encrypted data, iv and tag included
+    */
+   public static int encryptedSize(int plaintextSize) {
+      return SALT_LENGTH + plaintextSize + TAG_LENGTH;
+   }
+
+   /***
+    * @param ciphertextSize
+    * @return the size of the decrypted data, an upper bound in the segmented
+    *         format
+    */
+   public static int decryptedSize(int ciphertextSize) {
+      return Math.max(0, ciphertextSize - SALT_LENGTH - TAG_LENGTH);
+   }
+
+   private static ByteBuffer allocate(int size, boolean direct) {
+      return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+   }
+
+   /***
+    * Encrypts a stream: the returned stream reads the same format as encrypt,
+    * the iv followed by the ciphertext and the tag, with a fixed size buffer.
+    * Closing it closes the plaintext stream.
+    * 
+    * @param plaintext
+    * @return the encrypted stream
+    * @throws InvalidKeyException
+    * @throws InvalidAlgorithmParameterException
+    * @throws NoSuchPaddingException
+    * @throws NoSuchAlgorithmException
+    */
+   public InputStream encrypt(InputStream plaintext) throws InvalidKeyException, InvalidAlgorithmParameterException,
+         NoSuchPaddingException, NoSuchAlgorithmException {
+      byte[] iv = generateRandomBytes(SALT_LENGTH);
+      final Cipher cipher = this.initCipher(Cipher.getInstance(TRANSFORMATION), Cipher.ENCRYPT_MODE, iv);
+      return new SequenceInputStream(new ByteArrayInputStream(iv), new CipherStream(plaintext, cipher));
+   }
+
+   /***
+    * Decrypts a stream in the format of encrypt or encryptSegmented. The header
+    * is read right away, and the first segment in the segmented format.
+    * 
+    * Segments are released as soon as their tag is verified. In the single
+    * message format the GCM ciphers of the JDK only release the plaintext once
+    * the tag is verified, so the decrypted data is held by the cipher until the
+    * end of the stream.
+    * 
+    * @param ciphertext
+    * @return the decrypted stream
+    * @throws IOException
+    * @throws InvalidKeyException
+    * @throws InvalidAlgorithmParameterException
+    * @throws NoSuchPaddingException
+    * @throws NoSuchAlgorithmException
+    */
+   public InputStream decrypt(InputStream ciphertext) throws IOException, InvalidKeyException,
+         InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchAlgorithmException {
+      // both formats are longer than the segmented header
+      byte[] head = new byte[SegmentedCipher.HEADER_LENGTH];
+      int read = 0;
+      while (read < head.length) {
+         int n = ciphertext.read(head, read, head.length - read);
+         if (n == -1) {
+            throw new IOException("Encrypted stream is too short");
+         }
+         read += n;
+      }
+      if (SegmentedCipher.isHeader(head)) {
+         SegmentedCipher.SegmentStream segmented = SegmentedCipher.decrypt(this.secretKey, head, ciphertext);
+         try {
+            segmented.start();
+            return segmented;
+         } catch (AEADBadTagException e) {
+            // a single message whose iv looks like a header, read it again
+            head = segmented.consumed();
+         }
+      }
+      byte[] iv = Arrays.copyOf(head, SALT_LENGTH);
+      InputStream rest = new SequenceInputStream(new ByteArrayInputStream(head, SALT_LENGTH, head.length - SALT_LENGTH),
+            ciphertext);
+      return new CipherStream(rest, this.initCipher(Cipher.getInstance(TRANSFORMATION), Cipher.DECRYPT_MODE, iv));
+   }
+
+   private Cipher initCipher(Cipher cipher, int mode, byte[] iv)
+         throws InvalidKeyException, InvalidAlgorithmParameterException {
       int tagLengthInBits = TAG_LENGTH * 8;
-      GCMParameterSpec parameterSpec = new GCMParameterSpec(tagLengthInBits, iv);
-      cipher.init(Cipher.ENCRYPT_MODE, this.secretKey, parameterSpec);
+      cipher.init(mode, this.secretKey, new GCMParameterSpec(tagLengthInBits, iv));
+      return cipher;
+   }
+
+   /***
+    * @return the cipher of the current thread, looked up on first use
+    * @throws NoSuchAlgorithmException
+    * @throws NoSuchPaddingException
+    */
+   static Cipher threadCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+      Cipher cipher = CIPHERS.get();
+      if (cipher == null) {
+         cipher = Cipher.getInstance(TRANSFORMATION);
+         CIPHERS.set(cipher);
+      }
+      return cipher;
+   }
 
-      byte[] byteArr = new byte[bytes.capacity()];
-      bytes.get(byteArr);
-      byte[] ciphertext = cipher.doFinal(byteArr);
+   /***
+    * Runs the bytes of a stream through a cipher, one buffer at a time.
+    */
+   private static class CipherStream extends FilterInputStream {
+      private final Cipher cipher;
+      private final byte[] inBuffer = new byte[STREAM_BUFFER_SIZE];
+      private byte[] outBuffer = new byte[0];
+      private int outPosition;
+      private int outLength;
+      private boolean finished;
 
-      // // Convert to base64
-      // byte[] b64Bytes = Base64.getEncoder().encode(ciphertext);
+      CipherStream(InputStream in, Cipher cipher) {
+         super(in);
+         this.cipher = cipher;
+      }
 
-      ByteBuffer res = ByteBuffer.allocate(SALT_LENGTH + ciphertext.length);
-      res.put(iv);
-      res.put(ciphertext);
-      res.rewind();
-      return res;
+      @Override
+      public int read() throws IOException {
+         byte[] b = new byte[1];
+         int n = this.read(b, 0, 1);
+         return n == -1 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (len == 0) {
+            return 0;
+         }
+         while (this.outPosition >= this.outLength) {
+            if (this.finished) {
+               return -1;
+            }
+            this.fill();
+         }
+         int n = Math.min(len, this.outLength - this.outPosition);
+         System.arraycopy(this.outBuffer, this.outPosition, b, off, n);
+         this.outPosition += n;
+         return n;
+      }
+
+      private void fill() throws IOException {
+         int n = this.in.read(this.inBuffer);
+         try {
+            if (n == -1) {
+               // a decrypting GCM cipher only returns the plaintext here, it is
+               // allocated once
+               this.outBuffer = this.cipher.doFinal();
+               this.outLength = this.outBuffer.length;
+               this.finished = true;
+            } else {
+               // an update returns at most a block more than its input, unlike
+               // getOutputSize which counts all the input buffered by a
+               // decrypting cipher
+               int outputSize = n + this.cipher.getBlockSize();
+               if (this.outBuffer.length < outputSize) {
+                  this.outBuffer = new byte[outputSize];
+               }
+               this.outLength = this.cipher.update(this.inBuffer, 0, n, this.outBuffer, 0);
+            }
+            this.outPosition = 0;
+         } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to run the cipher on the stream", e);
+         }
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+         byte[] skipped = new byte[(int) Math.min(n, STREAM_BUFFER_SIZE)];
+         long total = 0;
+         int read;
+         while (total < n && (read = this.read(skipped, 0, (int) Math.min(n - total, skipped.length))) != -1) {
+            total += read;
+         }
+         return total;
+      }
+
+      @Override
+      public int available() {
+         return this.outLength - this.outPosition;
+      }
+
+      @Override
+      public boolean markSupported() {
+         return false;
+      }
    }
 
    /**
@@ -99,17 +372,52 @@ public class AesKey {
     */
    public ByteBuffer decrypt(ByteBuffer bytes) throws IllegalBlockSizeException, BadPaddingException,
          InvalidKeyException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchAlgorithmException {
-      byte[] iv = new byte[SALT_LENGTH];
-      bytes.get(iv);
-      byte[] ciphertext = new byte[bytes.remaining()];
-      bytes.get(ciphertext);
-
-      final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-      int tagLengthInBits = TAG_LENGTH * 8;
+      ByteBuffer res = allocate(decryptedSize(bytes.remaining()), bytes.isDirect());
+      this.decrypt(bytes, res);
+      res.flip();
+      return res;
+   }
 
-      cipher.init(Cipher.DECRYPT_MODE, this.secretKey, new GCMParameterSpec(tagLengthInBits, iv));
+   /***
+    * Decrypts the remaining bytes of src, in the format of encrypt or
+    * encryptSegmented, into dst without any intermediate copy. Both buffers may be direct. The positions
+    * of the buffers are moved past the bytes read and written.
+    * 
+    * @param src
+    * @param dst must have decryptedSize(src.remaining()) bytes remaining
+    * @throws IllegalBlockSizeException
+    * @throws BadPaddingException
+    * @throws InvalidKeyException
+    * @throws InvalidAlgorithmParameterException
+    * @throws NoSuchPaddingException
+    * @throws NoSuchAlgorithmException
+    */
+   public void decrypt(ByteBuffer src, ByteBuffer dst) throws IllegalBlockSizeException, BadPaddingException,
+         InvalidKeyException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchAlgorithmException {
+      if (src.remaining() < SALT_LENGTH + TAG_LENGTH)
+         throw new IllegalBlockSizeException("Encrypted data is too short");
+      if (SegmentedCipher.isHeader(src)) {
+         try {
+            SegmentedCipher.decrypt(this.secretKey, src, dst);
+            return;
+         } catch (AEADBadTagException e) {
+            // a single message whose iv looks like a header
+         } catch (GeneralSecurityException e) {
+            SegmentedCipher.rethrow(e);
+         }
+      }
+      if (dst.remaining() < decryptedSize(src.remaining()))
+         throw new IllegalBlockSizeException("Output buffer too small for the decrypted data");
+      byte[] iv = new byte[SALT_LENGTH];
+      src.get(iv);
 
-      return ByteBuffer.wrap(cipher.doFinal(ciphertext));
+      final Cipher cipher = this.initCipher(threadCipher(), Cipher.DECRYPT_MODE, iv);
+      // decrypt straight from the input buffer
+      try {
+         cipher.doFinal(src, dst);
+      } catch (ShortBufferException e) {
+         throw new IllegalBlockSizeException(e.getMessage());
+      }
    }
 
 }
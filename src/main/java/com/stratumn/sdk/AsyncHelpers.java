@@ -0,0 +1,123 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/***
+ * Helpers to chain the steps of the asynchronous calls. The steps may throw
+ * checked exceptions, which fail the returned future as is.
+ */
+final class AsyncHelpers {
+
+   private AsyncHelpers() {
+   }
+
+   /***
+    * A step of a call that may block, such as signing a link or uploading its
+    * files.
+    */
+   @FunctionalInterface
+   interface Call<T> {
+      T call() throws Exception;
+   }
+
+   /***
+    * A step of a call applied to the result of the previous one.
+    */
+   @FunctionalInterface
+   interface Step<T, R> {
+      R apply(T value) throws Exception;
+   }
+
+   /***
+    * @param e the failure
+    * @return a future failed with it
+    */
+   static <T> CompletableFuture<T> failed(Throwable e) {
+      CompletableFuture<T> future = new CompletableFuture<T>();
+      future.completeExceptionally(e);
+      return future;
+   }
+
+   /***
+    * Runs a step on the executor.
+    * 
+    * @param call     the step
+    * @param executor the executor of the caller
+    * @return the future result of the step
+    */
+   static <T> CompletableFuture<T> supply(Call<T> call, Executor executor) {
+      CompletableFuture<T> future = new CompletableFuture<T>();
+      try {
+         executor.execute(() -> {
+            try {
+               future.complete(call.call());
+            } catch (Throwable e) {
+               future.completeExceptionally(e);
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         future.completeExceptionally(new TraceSdkException("The executor rejected the call", e));
+      }
+      return future;
+   }
+
+   /***
+    * Applies a step to the result of a future, on the executor.
+    * 
+    * @param future   the previous step
+    * @param step     the next step
+    * @param executor the executor of the caller
+    * @return the future result of the next step
+    */
+   static <T, R> CompletableFuture<R> then(CompletableFuture<T> future, Step<T, R> step, Executor executor) {
+      return future.thenCompose((value) -> supply(() -> step.apply(value), executor));
+   }
+
+   /***
+    * Applies a short step to the result of a future, on the thread completing
+    * it.
+    *
+    * @param future the previous step
+    * @param step   the next step
+    * @return the future result of the next step
+    */
+   static <T, R> CompletableFuture<R> map(CompletableFuture<T> future, Step<T, R> step) {
+      return future.thenCompose((value) -> {
+         try {
+            return CompletableFuture.completedFuture(step.apply(value));
+         } catch (Throwable e) {
+            return AsyncHelpers.<R>failed(e);
+         }
+      });
+   }
+
+   /***
+    * @param e the failure of a future
+    * @return the exception raised by the failed step
+    */
+   static Throwable unwrap(Throwable e) {
+      while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+         e = e.getCause();
+      }
+      return e;
+   }
+}
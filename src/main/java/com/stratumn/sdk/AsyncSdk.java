@@ -0,0 +1,301 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import com.stratumn.chainscript.ChainscriptException;
+import com.stratumn.chainscript.utils.JsonHelper;
+import com.stratumn.sdk.graph.GraphQl;
+import com.stratumn.sdk.model.api.GraphResponse;
+import com.stratumn.sdk.model.client.GraphQLOptions;
+import com.stratumn.sdk.model.sdk.SdkConfig;
+import com.stratumn.sdk.model.sdk.SdkOptions;
+import com.stratumn.sdk.model.trace.AddTagsToTraceInput;
+import com.stratumn.sdk.model.trace.AppendLinkInput;
+import com.stratumn.sdk.model.trace.GetTraceDetailsInput;
+import com.stratumn.sdk.model.trace.GetTraceStateInput;
+import com.stratumn.sdk.model.trace.NewTraceInput;
+import com.stratumn.sdk.model.trace.PaginationInfo;
+import com.stratumn.sdk.model.trace.SearchTracesFilter;
+import com.stratumn.sdk.model.trace.TraceDetails;
+import com.stratumn.sdk.model.trace.TraceState;
+import com.stratumn.sdk.model.trace.TracesState;
+import com.stratumn.sdk.model.trace.TransferResponseInput;
+
+/**
+ * The asynchronous Stratumn java Sdk.
+ *
+ * The graphql requests are sent by the non-blocking http client of the
+ * underlying Sdk: no thread waits for a response, and the calls in flight are
+ * only bounded by the bulkhead of the trace service. The responses are decoded
+ * on the caller supplied executor. The steps that still block, a login when a
+ * new token is needed and the upload of the files of a link, also run on the
+ * executor. The calls share the config, the head links and the upload cache of
+ * the underlying Sdk.
+ */
+public class AsyncSdk<TState> implements IAsyncSdk<TState>, Closeable {
+
+   private Sdk<TState> sdk;
+
+   private Executor executor;
+
+   public AsyncSdk(SdkOptions opts, Executor executor) {
+      this(new Sdk<TState>(opts), executor);
+   }
+
+   /***
+    * overloaded Constructor to provide proper casting
+    * 
+    * @param opts
+    * @param classOfTState
+    * @param executor
+    */
+   public AsyncSdk(SdkOptions opts, Class<TState> classOfTState, Executor executor) {
+      this(new Sdk<TState>(opts, classOfTState), executor);
+   }
+
+   /***
+    * Wraps an existing Sdk
+    * 
+    * @param sdk      the sdk whose client, config and caches are used
+    * @param executor the executor decoding the responses and running the
+    *                 blocking steps
+    */
+   public AsyncSdk(Sdk<TState> sdk, Executor executor) throws IllegalArgumentException {
+      if (sdk == null) {
+         throw new IllegalArgumentException("sdk cannot be null");
+      }
+      if (executor == null) {
+         throw new IllegalArgumentException("executor cannot be null");
+      }
+      this.sdk = sdk;
+      this.executor = executor;
+   }
+
+   /***
+    * @return the synchronous sdk sharing the client of this one
+    */
+   public Sdk<TState> getSdk() {
+      return this.sdk;
+   }
+
+   /***
+    * Closes the underlying Sdk. The executor belongs to the caller and is left
+    * running.
+    * 
+    * @throws IOException
+    */
+   @Override
+   public void close() throws IOException {
+      this.sdk.close();
+   }
+
+   /***
+    * @return the config of the sdk, queried if there is none yet
+    */
+   private CompletableFuture<SdkConfig> getConfig() {
+      SdkConfig sdkConfig = this.sdk.getCachedConfig();
+      if (sdkConfig != null) {
+         return CompletableFuture.completedFuture(sdkConfig);
+      }
+      return this.refreshConfig();
+   }
+
+   /***
+    * @return the config of the sdk, queried again
+    */
+   private CompletableFuture<SdkConfig> refreshConfig() {
+      return this.graphql(GraphQl.Query.QUERY_CONFIG, this.sdk.makeConfigVariables(), null,
+            (response) -> this.sdk.makeConfig(response));
+   }
+
+   /***
+    * Sends a graphql query and reads its response on the executor.
+    * 
+    * @param query     the graphql query / mutation
+    * @param variables the graphql variables
+    * @param opts      the graphql options
+    * @param read      reads the result of the call from the response
+    * @return the future result
+    */
+   private <T> CompletableFuture<T> graphql(GraphQl.Query query, Map<String, Object> variables, GraphQLOptions opts,
+         AsyncHelpers.Step<GraphResponse, T> read) {
+      // the response completes on the executor, where it is read
+      return AsyncHelpers.map(
+            this.sdk.getClient().graphqlAsync(query, variables, opts, GraphResponse.class, this.executor), read);
+   }
+
+   /***
+    * Fails the returned future with a TraceSdkException when the service
+    * answered with an error status, as the Sdk does.
+    * 
+    * @param future the result of a call
+    * @return the result of the call
+    */
+   private static <T> CompletableFuture<T> complete(CompletableFuture<T> future) {
+      CompletableFuture<T> result = new CompletableFuture<T>();
+      future.whenComplete((value, error) -> {
+         if (error == null) {
+            result.complete(value);
+            return;
+         }
+         Throwable cause = AsyncHelpers.unwrap(error);
+         if (cause instanceof HttpError || cause instanceof ChainscriptException) {
+            cause = new TraceSdkException(cause.toString(), cause);
+         }
+         result.completeExceptionally(cause);
+      });
+      return result;
+   }
+
+   /***
+    * Signs the link and sends the createLink mutation. A link built on a
+    * deprecated config is sent again once with the current config.
+    * 
+    * @param linkBuilder
+    * @param classOfTLinkData
+    * @param sdkConfig        the config the link was built with
+    * @param firstTry         if this is not the first try, do not retry
+    * @return the future trace state
+    */
+   private <TLinkData> CompletableFuture<TraceState<TState, TLinkData>> createLink(
+         TraceLinkBuilder<TLinkData> linkBuilder, Class<TLinkData> classOfTLinkData, SdkConfig sdkConfig,
+         boolean firstTry) {
+      Map<String, Object> variables;
+      try {
+         variables = this.sdk.makeLinkVariables(linkBuilder, sdkConfig);
+      } catch (ChainscriptException e) {
+         return AsyncHelpers.failed(new TraceSdkException(e));
+      }
+      CompletableFuture<GraphResponse> response = this.sdk.getClient().graphqlAsync(
+            GraphQl.Query.MUTATION_CREATELINK, variables, this.sdk.makeTraceStateOptions(null), GraphResponse.class,
+            this.executor);
+      return response.handle((created, error) -> {
+         if (error == null) {
+            return AsyncHelpers.map(response, (r) -> this.sdk.makeCreatedLink(r, linkBuilder, classOfTLinkData));
+         }
+         Throwable cause = AsyncHelpers.unwrap(error);
+         if (firstTry && Sdk.isConfigDeprecated(cause)) {
+            return this.refreshConfig().thenCompose((newConfig) -> {
+               linkBuilder.withConfigId(newConfig.getConfigId());
+               return this.createLink(linkBuilder, classOfTLinkData, newConfig, false);
+            });
+         }
+         try {
+            this.sdk.evictParentLink(linkBuilder);
+         } catch (ChainscriptException e) {
+            return AsyncHelpers.<TraceState<TState, TLinkData>>failed(new TraceSdkException(e));
+         }
+         return AsyncHelpers.<TraceState<TState, TLinkData>>failed(cause);
+      }).thenCompose((next) -> next);
+   }
+
+   @Override
+   public <TLinkData> CompletableFuture<TraceState<TState, TLinkData>> newTrace(NewTraceInput<TLinkData> input) {
+      return complete(this.getConfig().thenCompose((sdkConfig) -> AsyncHelpers
+            // the files are uploaded by the builder
+            .supply(() -> this.sdk.makeNewTraceBuilder(input, sdkConfig), this.executor).thenCompose((linkBuilder) -> {
+               @SuppressWarnings("unchecked")
+               Class<TLinkData> dataClass = (Class<TLinkData>) input.getData().getClass();
+               return this.createLink(linkBuilder, dataClass, sdkConfig, true);
+            })));
+   }
+
+   @Override
+   public <TLinkData> CompletableFuture<TraceState<TState, TLinkData>> appendLink(AppendLinkInput<TLinkData> input) {
+      // retrieve parent link, along with the config
+      TransferResponseInput<TLinkData> headLinkInput = new TransferResponseInput<TLinkData>(null, input.getTraceId());
+      TraceLink<TLinkData> headLink = this.sdk.getCachedHeadLink(headLinkInput);
+      CompletableFuture<TraceLink<TLinkData>> parentLink;
+      if (headLink != null) {
+         parentLink = CompletableFuture.completedFuture(headLink);
+      } else if (input.getTraceId() != null) {
+         parentLink = this.graphql(GraphQl.Query.QUERY_GETHEADLINK,
+               Collections.singletonMap("traceId", input.getTraceId()), null,
+               (response) -> this.sdk.<TLinkData>makeHeadLink(response));
+      } else {
+         parentLink = AsyncHelpers.failed(new TraceSdkException("Previous link or trace Id must be provided"));
+      }
+      CompletableFuture<SdkConfig> config = this.getConfig();
+      return complete(parentLink.thenCombine(config, (link, sdkConfig) -> AsyncHelpers
+            // the files are uploaded by the builder
+            .supply(() -> this.sdk.makeAppendLinkBuilder(input, link, sdkConfig), this.executor)
+            .thenCompose((linkBuilder) -> {
+               // try to read type from data else use the class parameter
+               @SuppressWarnings("unchecked")
+               Class<TLinkData> dataClass = input.getData() != null ? (Class<TLinkData>) input.getData().getClass()
+                     : null;
+               return this.createLink(linkBuilder, dataClass, sdkConfig, true);
+            })).thenCompose((next) -> next));
+   }
+
+   @Override
+   public <TLinkData> CompletableFuture<TraceState<TState, TLinkData>> getTraceState(GetTraceStateInput input) {
+      return this.getTraceState(input, null);
+   }
+
+   @Override
+   public <TLinkData> CompletableFuture<TraceState<TState, TLinkData>> getTraceState(GetTraceStateInput input,
+         Class<TLinkData> classOfTLinkData) {
+      return complete(this.graphql(GraphQl.Query.QUERY_GETTRACESTATE,
+            Collections.singletonMap("traceId", input.getTraceId()),
+            this.sdk.makeTraceStateOptions(input.getLeanTraceState()),
+            (response) -> this.sdk.makeTraceState(response, "trace", input.getTraceId(), classOfTLinkData)));
+   }
+
+   @Override
+   public <TLinkData> CompletableFuture<TraceDetails<TLinkData>> getTraceDetails(GetTraceDetailsInput input) {
+      return complete(this.graphql(GraphQl.Query.QUERY_GETTRACEDETAILS, JsonHelper.objectToMap(input), null,
+            (response) -> this.sdk.<TLinkData>makeTraceDetails(response, null)));
+   }
+
+   @Override
+   public <TLinkData> CompletableFuture<TracesState<TState, TLinkData>> searchTraces(SearchTracesFilter filter,
+         PaginationInfo paginationInfo) {
+      return this.searchTraces(filter, paginationInfo, null);
+   }
+
+   @Override
+   public <TLinkData> CompletableFuture<TracesState<TState, TLinkData>> searchTraces(SearchTracesFilter filter,
+         PaginationInfo paginationInfo, Class<TLinkData> classOfTLinkData) {
+      return complete(this.getConfig()
+            .thenCompose((sdkConfig) -> this.graphql(GraphQl.Query.QUERY_SEARCHTRACES,
+                  this.sdk.makeSearchTracesVariables(filter, paginationInfo, sdkConfig),
+                  this.sdk.makeTraceStateOptions(null),
+                  (response) -> this.sdk.makeTracesState(response, null, classOfTLinkData))));
+   }
+
+   @Override
+   public <TLinkData> CompletableFuture<TraceState<TState, TLinkData>> addTagsToTrace(AddTagsToTraceInput input) {
+      return this.addTagsToTrace(input, null);
+   }
+
+   @Override
+   public <TLinkData> CompletableFuture<TraceState<TState, TLinkData>> addTagsToTrace(AddTagsToTraceInput input,
+         Class<TLinkData> classOfTLinkData) {
+      return complete(this.graphql(GraphQl.Query.MUTATION_ADDTAGSTOTRACE, this.sdk.makeAddTagsToTraceVariables(input),
+            this.sdk.makeTraceStateOptions(null),
+            (response) -> this.sdk.makeTraceState(response, "addTagsToTrace.trace", input.getTraceId(),
+                  classOfTLinkData)));
+   }
+
+}
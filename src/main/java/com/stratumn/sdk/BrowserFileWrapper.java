@@ -16,11 +16,10 @@ See the License for the specific language governing permissions and
 package com.stratumn.sdk;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.net.URLConnection;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 import com.stratumn.sdk.model.file.FileInfo;
 
@@ -33,13 +32,29 @@ public class BrowserFileWrapper extends FileWrapper
 
    private File file;
 
+   /**
+    * The info of the file, computed on first use.
+    */
+   private transient volatile FileInfo fileInfo;
+
    BrowserFileWrapper(File file)
    {
       super();
       this.file = file;
    }
 
-   public FileInfo info()  
+   public FileInfo info()
+   {
+      FileInfo info = this.fileInfo;
+      if(info == null)
+      {
+         info = this.computeInfo();
+         this.fileInfo = info;
+      }
+      return info;
+   }
+
+   private FileInfo computeInfo()
    {
 
       if(!file.exists())
@@ -53,7 +68,7 @@ public class BrowserFileWrapper extends FileWrapper
       }
 
       final Long size = file.length();
-      final String mimetype = URLConnection.guessContentTypeFromName(file.getName());
+      final String mimetype = MimeDetectors.detect(file.toPath());
       final String name = file.getName();
 
       FileInfo fileInfo = new FileInfo(name, size, mimetype, null);
@@ -70,6 +85,7 @@ public class BrowserFileWrapper extends FileWrapper
    public void setFile(File file)
    {
       this.file = file;
+      this.fileInfo = null;
    }
 
    private ByteBuffer data() throws TraceSdkException
@@ -79,19 +95,7 @@ public class BrowserFileWrapper extends FileWrapper
       {
          throw new TraceSdkException("File not found " + file.getAbsolutePath());
       }
-      ByteBuffer buffer = null;
-      try (RandomAccessFile rFile = new RandomAccessFile(file, "r"); FileChannel inChannel = rFile.getChannel();)
-      {
-         long fileSize = inChannel.size();
-         buffer = ByteBuffer.allocate((int) fileSize);
-         inChannel.read(buffer);
-         buffer.rewind();
-      }
-      catch(IOException e)
-      {
-         throw new TraceSdkException("Error reading file ", e);
-      }
-      return buffer;
+      return readFile(file);
    }
 
    @Override
@@ -114,4 +118,38 @@ public class BrowserFileWrapper extends FileWrapper
       return buffer;
    }
 
+   @Override
+   public String contentDigest() throws TraceSdkException
+   {
+      if(!file.exists() || !file.isFile())
+      {
+         throw new TraceSdkException("File not found " + file.getAbsolutePath());
+      }
+      try
+      {
+         return digest(new FileInputStream(file));
+      }
+      catch(IOException e)
+      {
+         throw new TraceSdkException("Error reading file ", e);
+      }
+   }
+
+   @Override
+   public InputStream encryptedStream() throws TraceSdkException
+   {
+      if(!file.exists() || !file.isFile())
+      {
+         throw new TraceSdkException("File not found " + file.getAbsolutePath());
+      }
+      try
+      {
+         return super.encryptStream(new FileInputStream(file));
+      }
+      catch(IOException e)
+      {
+         throw new TraceSdkException("Error reading file ", e);
+      }
+   }
+
 }
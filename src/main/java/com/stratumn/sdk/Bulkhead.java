@@ -0,0 +1,376 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.stratumn.sdk.model.client.BulkheadStats;
+import com.stratumn.sdk.model.client.Service;
+
+/***
+ * Bounds the number of requests running against one service. Requests over
+ * the limit wait in a bounded queue, and are rejected when the queue is full
+ * or when they waited too long, so that a slow service cannot hold all the
+ * threads of the caller. Threads and asynchronous callers wait in the same
+ * queue and are handed the freed slots in arrival order.
+ *
+ * An adaptive bulkhead moves its limit between 1 and its maximum (AIMD): it
+ * grows by one per window of successful requests and shrinks by a tenth when
+ * a request fails with a server error or a network error, or when the recent
+ * latency drifts well above the usual one. The limit thereby settles near the
+ * capacity of the service.
+ */
+class Bulkhead {
+
+   /***
+    * The recent latency above which the service is deemed overloaded, as a
+    * multiple of the usual latency.
+    */
+   static final double LATENCY_TOLERANCE = 2.0;
+
+   /***
+    * The factor applied to the limit when the service is overloaded.
+    */
+   static final double BACKOFF_RATIO = 0.9;
+
+   // the weights of a new sample in the recent and usual latencies
+   private static final double RECENT_LATENCY_WEIGHT = 0.2;
+   private static final double USUAL_LATENCY_WEIGHT = 0.02;
+
+   /***
+    * A slot taken in the bulkhead, to hand back to release.
+    */
+   static final class Permit {
+      private final long startNanos;
+      // the decrease count when the request started
+      private final long decreases;
+
+      private Permit(long startNanos, long decreases) {
+         this.startNanos = startNanos;
+         this.decreases = decreases;
+      }
+   }
+
+   /***
+    * A request waiting for a slot: a thread parked on its condition, or an
+    * asynchronous caller waiting on its future.
+    */
+   private static final class Waiter {
+      private final Condition granted;
+      private final CompletableFuture<Permit> future;
+      // the slot handed to the waiter, guarded by the lock
+      private Permit permit;
+
+      private Waiter(Condition granted, CompletableFuture<Permit> future) {
+         this.granted = granted;
+         this.future = future;
+      }
+   }
+
+   private final Service service;
+   private final int maxConcurrent;
+   private final int maxQueued;
+   private final long queueTimeoutMillis;
+   private final boolean adaptive;
+
+   private final ReentrantLock lock = new ReentrantLock();
+
+   // all guarded by the lock
+   // waiters are handed the slots in arrival order
+   private final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+   private double limit;
+   private int active;
+   private long rejected;
+   private long decreases;
+   private double recentLatencyNanos;
+   private double usualLatencyNanos;
+
+   Bulkhead(Service service, int maxConcurrent, int maxQueued, long queueTimeoutMillis) {
+      this(service, maxConcurrent, maxQueued, queueTimeoutMillis, false);
+   }
+
+   /***
+    * @param service            the service guarded
+    * @param maxConcurrent      the maximum number of requests running at once
+    * @param maxQueued          the maximum number of requests waiting
+    * @param queueTimeoutMillis how long a request may wait
+    * @param adaptive           whether the limit adapts to the failures and
+    *                           latency of the service
+    */
+   Bulkhead(Service service, int maxConcurrent, int maxQueued, long queueTimeoutMillis, boolean adaptive) {
+      this.service = service;
+      this.maxConcurrent = maxConcurrent;
+      this.maxQueued = maxQueued;
+      this.queueTimeoutMillis = queueTimeoutMillis;
+      this.adaptive = adaptive;
+      this.limit = maxConcurrent;
+   }
+
+   /***
+    * Takes a slot, waiting in the queue if none is free. Every successful call
+    * must be followed by a call to release.
+    * 
+    * @return the slot taken
+    * @throws TraceSdkException when the queue is full, the wait timed out or
+    *                           the thread was interrupted
+    */
+   Permit acquire() throws TraceSdkException {
+      return this.acquire(Long.MAX_VALUE);
+   }
+
+   /***
+    * Takes a slot, waiting in the queue at most maxWaitMillis if none is free.
+    * 
+    * @param maxWaitMillis the longest wait allowed by the caller, on top of the
+    *                      queue timeout
+    * @return the slot taken
+    * @throws TraceSdkException when the queue is full, the wait timed out or
+    *                           the thread was interrupted
+    */
+   Permit acquire(long maxWaitMillis) throws TraceSdkException {
+      long waitNanos = TimeUnit.MILLISECONDS.toNanos(Math.min(this.queueTimeoutMillis, maxWaitMillis));
+      List<Waiter> ready = null;
+      this.lock.lock();
+      try {
+         // do not go ahead of the queued requests
+         if (this.waiters.isEmpty() && this.active < this.currentLimit()) {
+            return this.take();
+         }
+         if (this.waiters.size() >= this.maxQueued) {
+            this.rejected++;
+            throw new TraceSdkException("Too many pending requests to " + this.service + " service");
+         }
+         Waiter waiter = new Waiter(this.lock.newCondition(), null);
+         this.waiters.add(waiter);
+         try {
+            while (waiter.permit == null) {
+               if (waitNanos <= 0) {
+                  this.waiters.remove(waiter);
+                  this.rejected++;
+                  throw new TraceSdkException("Timed out waiting for a request slot to " + this.service + " service");
+               }
+               waitNanos = waiter.granted.awaitNanos(waitNanos);
+            }
+            return waiter.permit;
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (!this.waiters.remove(waiter)) {
+               // the slot was handed over meanwhile, pass it on
+               this.active--;
+               ready = this.grant();
+            }
+            this.rejected++;
+            throw new TraceSdkException("Interrupted while waiting for a request slot to " + this.service + " service",
+                  e);
+         }
+      } finally {
+         this.lock.unlock();
+         this.complete(ready);
+      }
+   }
+
+   /***
+    * Takes a slot without blocking the calling thread. The returned future
+    * completes once a slot is free, on the thread releasing it, or fails with
+    * a TraceSdkException when the queue is full or the wait timed out. Every
+    * permit obtained must be handed back to release.
+    * 
+    * @param maxWaitMillis the longest wait allowed by the caller, on top of the
+    *                      queue timeout
+    * @param scheduler     runs the timeout of the wait
+    * @return the future slot
+    */
+   CompletableFuture<Permit> acquireAsync(long maxWaitMillis, ScheduledExecutorService scheduler) {
+      Waiter waiter;
+      this.lock.lock();
+      try {
+         if (this.waiters.isEmpty() && this.active < this.currentLimit()) {
+            return CompletableFuture.completedFuture(this.take());
+         }
+         if (this.waiters.size() >= this.maxQueued) {
+            this.rejected++;
+            CompletableFuture<Permit> rejection = new CompletableFuture<Permit>();
+            rejection.completeExceptionally(
+                  new TraceSdkException("Too many pending requests to " + this.service + " service"));
+            return rejection;
+         }
+         waiter = new Waiter(null, new CompletableFuture<Permit>());
+         this.waiters.add(waiter);
+      } finally {
+         this.lock.unlock();
+      }
+      try {
+         ScheduledFuture<?> timeout = scheduler.schedule(() -> this.expire(waiter),
+               Math.min(this.queueTimeoutMillis, maxWaitMillis), TimeUnit.MILLISECONDS);
+         waiter.future.whenComplete((permit, e) -> timeout.cancel(false));
+      } catch (RejectedExecutionException e) {
+         // the scheduler is shut down, nobody would end the wait
+         this.expire(waiter);
+      }
+      return waiter.future;
+   }
+
+   /***
+    * Rejects an asynchronous waiter that did not get a slot in time.
+    * 
+    * @param waiter
+    */
+   private void expire(Waiter waiter) {
+      this.lock.lock();
+      try {
+         if (!this.waiters.remove(waiter)) {
+            return;
+         }
+         this.rejected++;
+      } finally {
+         this.lock.unlock();
+      }
+      waiter.future.completeExceptionally(
+            new TraceSdkException("Timed out waiting for a request slot to " + this.service + " service"));
+   }
+
+   /***
+    * Hands back a slot without telling how the request went, the limit is left
+    * as is.
+    * 
+    * @param permit the slot
+    */
+   void release(Permit permit) {
+      List<Waiter> ready;
+      this.lock.lock();
+      try {
+         this.active--;
+         ready = this.grant();
+      } finally {
+         this.lock.unlock();
+      }
+      this.complete(ready);
+   }
+
+   /***
+    * Hands back a slot, adapting the limit to how the request went.
+    * 
+    * @param permit     the slot
+    * @param overloaded whether the request failed with a server error or a
+    *                   network error
+    */
+   void release(Permit permit, boolean overloaded) {
+      List<Waiter> ready;
+      this.lock.lock();
+      try {
+         this.active--;
+         if (this.adaptive) {
+            this.adapt(permit, overloaded);
+         }
+         ready = this.grant();
+      } finally {
+         this.lock.unlock();
+      }
+      this.complete(ready);
+   }
+
+   /***
+    * Hands the free slots to the waiters, in arrival order. The threads are
+    * woken up, the asynchronous waiters are returned to be completed once the
+    * lock is released.
+    * 
+    * @return the asynchronous waiters given a slot, or null
+    */
+   private List<Waiter> grant() {
+      List<Waiter> ready = null;
+      while (!this.waiters.isEmpty() && this.active < this.currentLimit()) {
+         Waiter waiter = this.waiters.poll();
+         waiter.permit = this.take();
+         if (waiter.granted != null) {
+            waiter.granted.signal();
+         } else {
+            if (ready == null) {
+               ready = new ArrayList<Waiter>();
+            }
+            ready.add(waiter);
+         }
+      }
+      return ready;
+   }
+
+   /***
+    * Completes the asynchronous waiters given a slot. The slot of a waiter
+    * cancelled by its caller is released.
+    * 
+    * @param ready the waiters returned by grant, or null
+    */
+   private void complete(List<Waiter> ready) {
+      if (ready == null) {
+         return;
+      }
+      for (Waiter waiter : ready) {
+         if (!waiter.future.complete(waiter.permit)) {
+            this.release(waiter.permit);
+         }
+      }
+   }
+
+   private void adapt(Permit permit, boolean overloaded) {
+      if (!overloaded) {
+         double latency = System.nanoTime() - permit.startNanos;
+         if (this.usualLatencyNanos == 0) {
+            this.recentLatencyNanos = latency;
+            this.usualLatencyNanos = latency;
+         } else {
+            this.recentLatencyNanos += (latency - this.recentLatencyNanos) * RECENT_LATENCY_WEIGHT;
+            this.usualLatencyNanos += (latency - this.usualLatencyNanos) * USUAL_LATENCY_WEIGHT;
+         }
+         overloaded = this.recentLatencyNanos > this.usualLatencyNanos * LATENCY_TOLERANCE;
+      }
+      if (!overloaded) {
+         // about one more slot per window of requests
+         this.limit = Math.min(this.maxConcurrent, this.limit + 1 / this.limit);
+      } else if (permit.decreases == this.decreases) {
+         // shrink once per window: the requests sent before the last decrease
+         // do not count
+         this.limit = Math.max(1, this.limit * BACKOFF_RATIO);
+         this.decreases++;
+      }
+   }
+
+   private Permit take() {
+      this.active++;
+      return new Permit(System.nanoTime(), this.decreases);
+   }
+
+   private int currentLimit() {
+      return (int) this.limit;
+   }
+
+   BulkheadStats stats() {
+      this.lock.lock();
+      try {
+         return new BulkheadStats(this.service, this.maxConcurrent, this.currentLimit(), this.maxQueued, this.active,
+               this.waiters.size(), this.rejected);
+      } finally {
+         this.lock.unlock();
+      }
+   }
+}
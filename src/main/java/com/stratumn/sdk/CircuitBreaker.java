@@ -0,0 +1,91 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import com.stratumn.sdk.model.client.Service;
+
+/***
+ * Fails fast the requests to a service which looks down. After a number of
+ * consecutive failures the circuit opens and the requests are rejected
+ * without being sent. Once the open delay has passed, a single request is let
+ * through: the circuit closes if it succeeds and opens again otherwise.
+ */
+class CircuitBreaker {
+
+   private enum State {
+      CLOSED, OPEN, HALF_OPEN
+   }
+
+   private final Service service;
+   private final int failureThreshold;
+   private final long openMillis;
+
+   private State state = State.CLOSED;
+   private int failures;
+   private long openedAt;
+
+   /***
+    * @param service          the service guarded
+    * @param failureThreshold the consecutive failures opening the circuit, 0
+    *                         to never open it
+    * @param openMillis       how long the circuit stays open
+    */
+   CircuitBreaker(Service service, int failureThreshold, long openMillis) {
+      this.service = service;
+      this.failureThreshold = failureThreshold;
+      this.openMillis = openMillis;
+   }
+
+   /***
+    * Checks that a request may be sent.
+    * 
+    * @throws TraceSdkException when the circuit is open
+    */
+   synchronized void check() throws TraceSdkException {
+      if (this.state == State.CLOSED)
+         return;
+      long now = System.currentTimeMillis();
+      // let one trial request through, or another one if the trial never
+      // completed
+      if (now - this.openedAt >= this.openMillis) {
+         this.state = State.HALF_OPEN;
+         this.openedAt = now;
+         return;
+      }
+      throw new TraceSdkException("The " + this.service + " service is unavailable, failing fast");
+   }
+
+   /***
+    * Records a request which reached the service.
+    */
+   synchronized void onSuccess() {
+      this.failures = 0;
+      this.state = State.CLOSED;
+   }
+
+   /***
+    * Records a request which could not reach the service, was throttled (429)
+    * or got a server error.
+    */
+   synchronized void onFailure() {
+      this.failures++;
+      if (this.state == State.HALF_OPEN
+            || (this.failureThreshold > 0 && this.failures >= this.failureThreshold)) {
+         this.state = State.OPEN;
+         this.openedAt = System.currentTimeMillis();
+      }
+   }
+}
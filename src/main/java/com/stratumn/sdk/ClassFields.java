@@ -0,0 +1,249 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.JsonElement;
+
+/***
+ * The instance fields of a class, resolved once per class: the fields of the
+ * class and its superclasses with method handles to read and write them, and
+ * whether an instance can hold a file, so that the traversals of the link data
+ * skip the classes that cannot.
+ */
+final class ClassFields {
+
+   private static final ClassValue<ClassFields> CACHE = new ClassValue<ClassFields>() {
+      @Override
+      protected ClassFields computeValue(Class<?> type) {
+         return new ClassFields(type);
+      }
+   };
+
+   private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+   private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+   // fields making an object look like a file record or a serialized file wrapper
+   private static final Set<String> FILE_FIELDS = new HashSet<String>(
+         Arrays.asList("digest", "blob", "filePath", "file"));
+
+   /***
+    * A field of the class.
+    */
+   static final class Accessor {
+      private final Field field;
+      private final MethodHandle getter;
+      private final MethodHandle setter;
+
+      private Accessor(Field field, MethodHandle getter, MethodHandle setter) {
+         this.field = field;
+         this.getter = getter;
+         this.setter = setter;
+      }
+
+      String getName() {
+         return this.field.getName();
+      }
+
+      Class<?> getType() {
+         return this.field.getType();
+      }
+
+      boolean isTransient() {
+         return Modifier.isTransient(this.field.getModifiers());
+      }
+
+      Object get(Object target) throws IllegalAccessException {
+         try {
+            return this.getter.invokeExact(target);
+         } catch (RuntimeException | Error e) {
+            throw e;
+         } catch (Throwable e) {
+            throw new IllegalStateException(e);
+         }
+      }
+
+      void set(Object target, Object value) throws IllegalAccessException {
+         if (this.setter == null) {
+            // final fields have no setter handle
+            this.field.set(target, value);
+            return;
+         }
+         try {
+            this.setter.invokeExact(target, value);
+         } catch (RuntimeException | Error e) {
+            throw e;
+         } catch (Throwable e) {
+            throw new IllegalStateException(e);
+         }
+      }
+   }
+
+   private final Map<String, Accessor> accessors;
+
+   private final boolean canHoldFiles;
+
+   private ClassFields(Class<?> type) {
+      Map<String, Accessor> accessors = new LinkedHashMap<String, Accessor>();
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      for (Class<?> clazz = type; clazz != null && !isJavaClass(clazz); clazz = clazz.getSuperclass()) {
+         for (Field field : clazz.getDeclaredFields()) {
+            // a field hides the fields of the same name of the superclasses
+            if (field.isSynthetic() || Modifier.isStatic(field.getModifiers())
+                  || accessors.containsKey(field.getName()))
+               continue;
+            try {
+               field.setAccessible(true);
+               MethodHandle getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+               MethodHandle setter = Modifier.isFinal(field.getModifiers()) ? null
+                     : lookup.unreflectSetter(field).asType(SETTER_TYPE);
+               accessors.put(field.getName(), new Accessor(field, getter, setter));
+            } catch (RuntimeException | IllegalAccessException e) {
+               // the field cannot be opened, leave it out as an unreadable value
+            }
+         }
+      }
+      this.accessors = Collections.unmodifiableMap(accessors);
+      this.canHoldFiles = canHoldFiles(type, new HashSet<Class<?>>());
+   }
+
+   /***
+    * @param type a class outside of the java packages
+    * @return the fields of the class
+    */
+   static ClassFields of(Class<?> type) {
+      return CACHE.get(type);
+   }
+
+   static boolean isJavaClass(Class<?> type) {
+      return type.getName().startsWith("java.");
+   }
+
+   Collection<Accessor> accessors() {
+      return this.accessors.values();
+   }
+
+   /***
+    * @param name
+    * @return the field or null
+    */
+   Accessor get(String name) {
+      return this.accessors.get(name);
+   }
+
+   /***
+    * @return false when no instance of the class can be, or hold, a file wrapper
+    *         or a file record
+    */
+   boolean canHoldFiles() {
+      return this.canHoldFiles;
+   }
+
+   /***
+    * Walks the declared types reachable from a class. Types whose content is
+    * only known at runtime (Object, interfaces, abstract and other non-final
+    * classes, json elements, raw containers, type variables) are assumed to
+    * hold files, and so are strings which may be json file records. Only
+    * primitives, their boxed types, enums and final classes without such fields
+    * are ruled out.
+    */
+   private static boolean canHoldFiles(Class<?> type, Set<Class<?>> visiting) {
+      if (type.isPrimitive() || type.isEnum() || Number.class.isAssignableFrom(type) || type == Boolean.class
+            || type == Character.class) {
+         return false;
+      }
+      if (type.isArray()) {
+         return canHoldFiles((Type) type.getComponentType(), visiting);
+      }
+      if (CharSequence.class.isAssignableFrom(type) || type.isAssignableFrom(FileWrapper.class)
+            || type.isAssignableFrom(FileRecord.class) || FileWrapper.class.isAssignableFrom(type)
+            || FileRecord.class.isAssignableFrom(type) || JsonElement.class.isAssignableFrom(type)
+            || type.isInterface() || Modifier.isAbstract(type.getModifiers())) {
+         return true;
+      }
+      if (isJavaClass(type)) {
+         // the traversals do not enter the other java classes
+         return false;
+      }
+      if (!visiting.add(type)) {
+         // already being walked higher up
+         return false;
+      }
+      for (Class<?> clazz = type; clazz != null && !isJavaClass(clazz); clazz = clazz.getSuperclass()) {
+         for (Field field : clazz.getDeclaredFields()) {
+            if (field.isSynthetic() || Modifier.isStatic(field.getModifiers()))
+               continue;
+            if (FILE_FIELDS.contains(field.getName()) || canHoldFiles(field.getGenericType(), visiting))
+               return true;
+         }
+      }
+      return false;
+   }
+
+   /***
+    * @return true if the value of a field declared with this class may be of a
+    *         subclass, whose fields are unknown
+    */
+   private static boolean isOpen(Class<?> type) {
+      return !type.isPrimitive() && !type.isArray() && !type.isEnum() && !isJavaClass(type)
+            && !Modifier.isFinal(type.getModifiers());
+   }
+
+   private static boolean canHoldFiles(Type type, Set<Class<?>> visiting) {
+      if (type instanceof Class) {
+         Class<?> clazz = (Class<?>) type;
+         if (Collection.class.isAssignableFrom(clazz) || Map.class.isAssignableFrom(clazz)) {
+            // raw container
+            return true;
+         }
+         return isOpen(clazz) || canHoldFiles(clazz, visiting);
+      }
+      if (type instanceof ParameterizedType) {
+         ParameterizedType parameterized = (ParameterizedType) type;
+         Class<?> raw = (Class<?>) parameterized.getRawType();
+         if (!Collection.class.isAssignableFrom(raw) && !Map.class.isAssignableFrom(raw)) {
+            return isOpen(raw) || canHoldFiles(raw, visiting);
+         }
+         // the content of a container is its type arguments
+         for (Type argument : parameterized.getActualTypeArguments()) {
+            if (canHoldFiles(argument, visiting))
+               return true;
+         }
+         return false;
+      }
+      if (type instanceof GenericArrayType) {
+         return canHoldFiles(((GenericArrayType) type).getGenericComponentType(), visiting);
+      }
+      // type variables and wildcards
+      return true;
+   }
+
+}
@@ -17,22 +17,66 @@ package com.stratumn.sdk;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-
-import org.springframework.http.ContentDisposition;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -41,30 +85,37 @@ import org.springframework.http.client.BufferingClientHttpRequestFactory;
 import org.springframework.http.client.ClientHttpRequestExecution;
 import org.springframework.http.client.ClientHttpRequestInterceptor;
 import org.springframework.http.client.ClientHttpResponse;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.json.GsonHttpMessageConverter;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.DefaultResponseErrorHandler;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.stratumn.chainscript.Constants;
 import com.stratumn.chainscript.utils.CryptoUtils;
 import com.stratumn.chainscript.utils.JsonHelper;
 import com.stratumn.sdk.graph.GraphQl;
 import com.stratumn.sdk.graph.GraphQlQuery;
+import com.stratumn.sdk.graph.GraphQlResponseReader;
+import com.stratumn.sdk.model.api.GraphResponse;
+import com.stratumn.sdk.model.client.BulkheadStats;
 import com.stratumn.sdk.model.client.ClientOptions;
 import com.stratumn.sdk.model.client.CredentialSecret;
 import com.stratumn.sdk.model.client.Endpoints;
 import com.stratumn.sdk.model.client.FetchOptions;
 import com.stratumn.sdk.model.client.GraphQLOptions;
 import com.stratumn.sdk.model.client.PrivateKeySecret;
+import com.stratumn.sdk.model.client.RetryPolicy;
 import com.stratumn.sdk.model.client.Secret;
 import com.stratumn.sdk.model.client.Service;
-import com.stratumn.sdk.model.file.FileInfo;
 import com.stratumn.sdk.model.file.MediaRecord;
 
 /**
@@ -74,9 +125,19 @@ import com.stratumn.sdk.model.file.MediaRecord;
  * The Client will handle (re-)authentication if a token is not present yet or
  * expired.
  *
+ * Each service has its own pool of keep-alive connections and its own limit of
+ * concurrent requests, sized via the ClientOptions, so that slow media
+ * transfers cannot hold the connections needed by the trace requests.
+ *
  * The Client exposes 3 main methods: - get - post - graphql
+ *
+ * graphqlAsync sends the graphql requests with a non-blocking http client,
+ * started on first use, which shares the limit of concurrent requests of the
+ * trace service with the blocking requests.
+ *
+ * The Client holds connections and background threads until it is closed.
  */
-public class Client {
+public class Client implements Closeable {
    /**
     * The default GraphQL options: - retry once
     */
@@ -84,21 +145,160 @@ public class Client {
 
    private static final FetchOptions DefaultFetchOptions = new FetchOptions();
 
+   /**
+    * The automatic persisted queries protocol errors
+    */
+   private static final String PERSISTED_QUERY_NOT_FOUND = "PersistedQueryNotFound";
+   private static final String PERSISTED_QUERY_NOT_SUPPORTED = "PersistedQueryNotSupported";
+
+   /**
+    * The size of the buffer used to copy downloaded files
+    */
+   private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
    /**
     * The endpoint urls for all the services
     */
    private Endpoints endpoints;
 
    /**
-    * The token received from account service after authentication
+    * The token received from account service after authentication. It is read
+    * without locking by all the requests.
+    */
+   private volatile AuthToken token;
+
+   /**
+    * The login currently in progress, if any. Threads needing a token while a
+    * login is running wait on it instead of logging in again.
+    */
+   private final AtomicReference<CompletableFuture<AuthToken>> pendingLogin = new AtomicReference<>();
+
+   /**
+    * The scheduler running the background token refresh and aborting the
+    * requests past their deadline, created on first use
+    */
+   private ScheduledThreadPoolExecutor scheduler;
+   private ScheduledFuture<?> scheduledRefresh;
+   private boolean closed;
+
+   /**
+    * An authentication token along with its expiry
+    */
+   private static final class AuthToken {
+      private final String value;
+      // the expiry in epoch millis, 0 when unknown
+      private final long expiresAt;
+
+      private AuthToken(String value, long expiresAt) {
+         this.value = value;
+         this.expiresAt = expiresAt;
+      }
+
+      private boolean isExpired() {
+         return this.expiresAt != 0 && System.currentTimeMillis() >= this.expiresAt;
+      }
+   }
+
+   /**
+    * A signing key decoded from its PEM, along with its public key
+    */
+   private static final class SigningKey {
+      private final String pem;
+      private final PrivateKey privateKey;
+      private final String publicKeyPem;
+
+      private SigningKey(String pem) throws Exception {
+         this.pem = pem;
+         this.privateKey = CryptoUtils.decodePrivateKey(pem);
+         this.publicKeyPem = CryptoUtils.encodePublicKey(CryptoUtils.getPublicKeyFromPrivateKey(this.privateKey));
+      }
+   }
+
+   /**
+    * A password hashed with the salt of the user. BCrypt is slow on purpose,
+    * the hash is reused by the next logins while the salt does not change.
+    */
+   private static final class PasswordHash {
+      private final String email;
+      private final String password;
+      private final String salt;
+      private final String hash;
+
+      private PasswordHash(String email, String password, String salt) {
+         this.email = email;
+         this.password = password;
+         this.salt = salt;
+         this.hash = org.springframework.security.crypto.bcrypt.BCrypt.hashpw(password, salt);
+      }
+
+      private boolean matches(String email, String password, String salt) {
+         return this.email.equals(email) && this.password.equals(password) && this.salt.equals(salt);
+      }
+   }
+
+   /**
+    * The key material of the last login, only used by the thread logging in
     */
-   private String token;
+   private volatile SigningKey signingKey;
+   private volatile PasswordHash passwordHash;
 
    private RestTemplate restTemplate;
    private ClientOptions options;
 
+   /**
+    * The pooled http client of each service
+    */
+   private final Map<Service, CloseableHttpClient> httpClients = new EnumMap<Service, CloseableHttpClient>(
+         Service.class);
+
+   /**
+    * The non-blocking http client of the trace service, created on first use
+    */
+   private CloseableHttpAsyncClient asyncClient;
+
+   /**
+    * The proxy of the requests, if any
+    */
+   private HttpHost proxy;
+
+   /**
+    * The limit of concurrent requests of each service
+    */
+   private final Map<Service, Bulkhead> bulkheads = new EnumMap<Service, Bulkhead>(Service.class);
+
+   /**
+    * The default timeouts of the requests
+    */
+   private RequestConfig requestConfig;
+
+   /**
+    * The deadline of the graphql request being sent by the current thread,
+    * read by the rest template request factory, and the abort of that request
+    * scheduled at the deadline
+    */
+   private final ThreadLocal<Deadline> graphqlDeadline = new ThreadLocal<Deadline>();
+   private final ThreadLocal<ScheduledFuture<?>> graphqlAbort = new ThreadLocal<ScheduledFuture<?>>();
+
+   /**
+    * The retry budget and the circuit breaker of each service
+    */
+   private final Map<Service, RetryBudget> retryBudgets = new EnumMap<Service, RetryBudget>(Service.class);
+   private final Map<Service, CircuitBreaker> circuitBreakers = new EnumMap<Service, CircuitBreaker>(
+         Service.class);
+
    private String userAgent;
 
+   /**
+    * Turned off when the trace service reports it does not support persisted
+    * queries
+    */
+   private volatile boolean persistedQueriesSupported = true;
+
+   /**
+    * The disk cache of the downloaded files, null when disabled
+    */
+   private MediaCache mediaCache;
+
    /***
     * Constructs a new instance of the Client
     * 
@@ -108,7 +308,9 @@ public class Client {
       this.endpoints = Helpers.makeEndpoints(opts.getEndpoints());
 
       this.options = opts;
+      initHttpClient();
       initRestTemplate();
+      initMediaCache();
 
       List<String> agents = new ArrayList<String>();
       agents.add(String.format("%s/%s", System.getProperty("os.name"), System.getProperty("os.version")));
@@ -146,23 +348,430 @@ public class Client {
 
          if (httpResponse.getStatusCode().series() == HttpStatus.Series.SERVER_ERROR) {
             // handle SERVER_ERROR
-            throw new HttpServerErrorException(httpResponse.getStatusCode(), inputStringBuilder.toString());
+            throw new HttpServerErrorException(httpResponse.getStatusCode(), inputStringBuilder.toString(),
+                  httpResponse.getHeaders(), null, null);
          } else if (httpResponse.getStatusCode().series() == HttpStatus.Series.CLIENT_ERROR) {
             // handle CLIENT_ERROR
-            throw new HttpClientErrorException(httpResponse.getStatusCode(), inputStringBuilder.toString());
+            throw new HttpClientErrorException(httpResponse.getStatusCode(), inputStringBuilder.toString(),
+                  httpResponse.getHeaders(), null, null);
          }
       }
 
    }
 
    /***
-    * Initializes the restTemplate
+    * Opens the media cache when a directory is configured.
     */
-   private void initRestTemplate() {
-      SimpleClientHttpRequestFactory clientHttpReq = new SimpleClientHttpRequestFactory();
+   private void initMediaCache() {
+      if (this.options.getMediaCacheDir() == null)
+         return;
+      try {
+         this.mediaCache = new MediaCache(this.options.getMediaCacheDir(), this.options.getMediaCacheMaxBytes());
+      } catch (IOException e) {
+         throw new IllegalArgumentException("Cannot use media cache directory " + this.options.getMediaCacheDir(), e);
+      }
+   }
+
+   /***
+    * Initializes the pooled http clients. Each service gets its own pool, sized
+    * from the options, along with its own limit of concurrent requests, retry
+    * budget and circuit breaker. Idle connections are evicted in the
+    * background.
+    */
+   private void initHttpClient() {
+      HttpHost proxy = null;
       if (this.options.getProxy() != null) {
-         clientHttpReq.setProxy(this.options.getProxy());
+         InetSocketAddress address = (InetSocketAddress) this.options.getProxy().address();
+         proxy = new HttpHost(address.getHostString(), address.getPort());
+      }
+      this.proxy = proxy;
+
+      this.requestConfig = RequestConfig.custom().setConnectTimeout(options.getConnectTimeoutMillis())
+            .setConnectionRequestTimeout(options.getConnectTimeoutMillis())
+            .setSocketTimeout(options.getReadTimeoutMillis()).build();
+
+      for (Service service : Service.values()) {
+         int poolSize = this.poolSize(service);
+         PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+         connectionManager.setMaxTotal(poolSize);
+         connectionManager.setDefaultMaxPerRoute(poolSize);
+         HttpRoute route = makeRoute(this.endpoints.getEndpoint(service), proxy);
+         if (route != null) {
+            connectionManager.setMaxPerRoute(route, poolSize);
+         }
+
+         HttpClientBuilder builder = HttpClients.custom().setConnectionManager(connectionManager)
+               .setDefaultRequestConfig(this.requestConfig).evictExpiredConnections()
+               .evictIdleConnections(options.getIdleConnectionTimeoutMillis(), TimeUnit.MILLISECONDS);
+         if (proxy != null) {
+            builder.setProxy(proxy);
+         }
+         this.httpClients.put(service, builder.build());
+         this.bulkheads.put(service, new Bulkhead(service, options.getMaxConcurrentRequests(service),
+               options.getMaxQueuedRequests(service), options.getQueueTimeoutMillis(),
+               options.isAdaptiveConcurrency(service)));
+         this.retryBudgets.put(service,
+               new RetryBudget(options.getRetryBudgetRatio(), options.getRetryBudgetReserve()));
+         this.circuitBreakers.put(service, new CircuitBreaker(service, options.getCircuitBreakerFailureThreshold(),
+               options.getCircuitBreakerOpenMillis()));
+      }
+   }
+
+   /***
+    * @param service
+    * @return the number of connections kept open to the service
+    */
+   private int poolSize(Service service) {
+      return Math.min(this.options.getMaxConnections(), this.options.getMaxConnections(service));
+   }
+
+   /***
+    * A request attempt, which may be run several times.
+    */
+   @FunctionalInterface
+   private interface Attempt<T, E extends Exception> {
+      T run() throws TraceSdkException, E;
+   }
+
+   /***
+    * Runs a request, retrying it on transient failures as allowed by the retry
+    * policy and the retry budget of the service. The request fails fast while
+    * the circuit of the service is open.
+    *
+    * @param service    the service targeted by the request
+    * @param policy     the retry policy, null for the one of the options
+    * @param idempotent whether the request can be sent twice safely
+    * @param deadline   the deadline of the call, the retries do not extend it
+    * @param attempt    sends the request
+    * @return the result of the request
+    * @throws TraceSdkException
+    * @throws E
+    */
+   private <T, E extends Exception> T withRetries(Service service, RetryPolicy policy, boolean idempotent,
+         Deadline deadline, Attempt<T, E> attempt) throws TraceSdkException, E {
+      if (policy == null) {
+         policy = this.options.getRetryPolicy();
+      }
+      CircuitBreaker circuitBreaker = this.circuitBreakers.get(service);
+      this.retryBudgets.get(service).deposit();
+      for (int retry = 1;; retry++) {
+         deadline.check();
+         circuitBreaker.check();
+         try {
+            T result = attempt.run();
+            circuitBreaker.onSuccess();
+            return result;
+         } catch (Exception e) {
+            int status = failureStatus(e);
+            if (status < 0) {
+               throw e;
+            }
+            // a throttling service counts as failing, as for the bulkhead
+            if (status == 0 || isOverload(status)) {
+               circuitBreaker.onFailure();
+            } else {
+               circuitBreaker.onSuccess();
+            }
+            if (!(idempotent || policy.isRetryNonIdempotent())
+                  || !this.awaitRetry(service, policy, deadline, retry, status, retryAfter(e))) {
+               throw e;
+            }
+         }
+      }
+   }
+
+   /***
+    * A request attempt sent without blocking, which may be run several times.
+    */
+   @FunctionalInterface
+   private interface AsyncAttempt<T> {
+      CompletableFuture<T> run() throws TraceSdkException;
+   }
+
+   /***
+    * The non-blocking counterpart of withRetries: the retries are scheduled
+    * instead of waited for.
+    *
+    * @param service    the service targeted by the request
+    * @param policy     the retry policy, null for the one of the options
+    * @param idempotent whether the request can be sent twice safely
+    * @param deadline   the deadline of the call, the retries do not extend it
+    * @param attempt    sends the request
+    * @return the future result of the request
+    */
+   private <T> CompletableFuture<T> withRetriesAsync(Service service, RetryPolicy policy, boolean idempotent,
+         Deadline deadline, AsyncAttempt<T> attempt) {
+      RetryPolicy retryPolicy = policy != null ? policy : this.options.getRetryPolicy();
+      this.retryBudgets.get(service).deposit();
+      CompletableFuture<T> result = new CompletableFuture<T>();
+      this.attemptAsync(service, retryPolicy, idempotent, deadline, attempt, 1, result);
+      return result;
+   }
+
+   /***
+    * Sends an attempt of withRetriesAsync and schedules the next one if it
+    * failed and may be retried.
+    *
+    * @param retry  the number of the next retry, starting at 1
+    * @param result completed with the outcome of the last attempt
+    */
+   private <T> void attemptAsync(Service service, RetryPolicy policy, boolean idempotent, Deadline deadline,
+         AsyncAttempt<T> attempt, int retry, CompletableFuture<T> result) {
+      CircuitBreaker circuitBreaker = this.circuitBreakers.get(service);
+      CompletableFuture<T> attemptResult;
+      try {
+         deadline.check();
+         circuitBreaker.check();
+         attemptResult = attempt.run();
+      } catch (TraceSdkException | RuntimeException e) {
+         result.completeExceptionally(e);
+         return;
+      }
+      attemptResult.whenComplete((value, error) -> {
+         if (error == null) {
+            circuitBreaker.onSuccess();
+            result.complete(value);
+            return;
+         }
+         Throwable cause = AsyncHelpers.unwrap(error);
+         int status = cause instanceof Exception ? failureStatus((Exception) cause) : -1;
+         if (status < 0) {
+            result.completeExceptionally(cause);
+            return;
+         }
+         // a throttling service counts as failing, as for the bulkhead
+         if (status == 0 || isOverload(status)) {
+            circuitBreaker.onFailure();
+         } else {
+            circuitBreaker.onSuccess();
+         }
+         long delay = idempotent || policy.isRetryNonIdempotent()
+               ? this.retryDelay(service, policy, deadline, retry, status, retryAfter((Exception) cause))
+               : -1;
+         if (delay < 0) {
+            result.completeExceptionally(cause);
+            return;
+         }
+         try {
+            this.getScheduler().schedule(
+                  () -> this.attemptAsync(service, policy, idempotent, deadline, attempt, retry + 1, result), delay,
+                  TimeUnit.MILLISECONDS);
+         } catch (RuntimeException e) {
+            // the client was closed meanwhile
+            result.completeExceptionally(cause);
+         }
+      });
+   }
+
+   /***
+    * Waits before retrying a request, if it may be retried.
+    *
+    * @param service    the service targeted by the request
+    * @param policy     the retry policy
+    * @param deadline   the deadline of the call
+    * @param retry      the number of the retry, starting at 1
+    * @param status     the http status of the failure, 0 for a network error
+    * @param retryAfter the Retry-After header of the failure
+    * @return whether the request should be retried
+    * @throws TraceSdkException when interrupted
+    */
+   private boolean awaitRetry(Service service, RetryPolicy policy, Deadline deadline, int retry, int status,
+         String retryAfter) throws TraceSdkException {
+      long delay = this.retryDelay(service, policy, deadline, retry, status, retryAfter);
+      if (delay < 0) {
+         return false;
+      }
+      try {
+         Thread.sleep(delay);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new TraceSdkException("Interrupted while waiting to retry a request to " + service + " service", e);
+      }
+      return true;
+   }
+
+   /***
+    * Tells how long to wait before retrying a request. A retry is withdrawn
+    * from the retry budget of the service.
+    *
+    * @param service    the service targeted by the request
+    * @param policy     the retry policy
+    * @param deadline   the deadline of the call
+    * @param retry      the number of the retry, starting at 1
+    * @param status     the http status of the failure, 0 for a network error
+    * @param retryAfter the Retry-After header of the failure
+    * @return the delay in millis, -1 when the request should not be retried
+    */
+   private long retryDelay(Service service, RetryPolicy policy, Deadline deadline, int retry, int status,
+         String retryAfter) {
+      if (retry > policy.getMaxRetries() || !isTransient(status)) {
+         return -1;
+      }
+      long delay = HttpHelpers.parseRetryAfter(retryAfter, System.currentTimeMillis());
+      if (delay > policy.getMaxRetryAfterMillis()) {
+         return -1;
+      }
+      if (delay < 0) {
+         delay = policy.backoffMillis(retry, ThreadLocalRandom.current().nextDouble());
+      }
+      // no time left for another attempt
+      if (delay >= deadline.remainingMillis()) {
+         return -1;
+      }
+      if (!this.retryBudgets.get(service).withdraw()) {
+         return -1;
+      }
+      return delay;
+   }
+
+   /***
+    * @param status an http status
+    * @return whether it tells that the service is overloaded or failing
+    */
+   private static boolean isOverload(int status) {
+      return status == 429 || status >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+   }
+
+   /***
+    * @param status the http status of a failure, 0 for a network error
+    * @return whether the failure may go away by itself
+    */
+   private static boolean isTransient(int status) {
+      return status == 0 || status == 429 || status == HttpURLConnection.HTTP_BAD_GATEWAY
+            || status == HttpURLConnection.HTTP_UNAVAILABLE || status == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+   }
+
+   /***
+    * @param e a request failure
+    * @return its http status, 0 for a network error, -1 when it did not come
+    *         from the transport
+    */
+   private static int failureStatus(Exception e) {
+      if (e instanceof HttpError) {
+         return e.getCause() instanceof IOException ? 0 : ((HttpError) e).getSatus();
+      }
+      if (e instanceof HttpStatusCodeException) {
+         return ((HttpStatusCodeException) e).getRawStatusCode();
+      }
+      if (e instanceof ResourceAccessException) {
+         return 0;
+      }
+      return -1;
+   }
+
+   /***
+    * @param e a request failure
+    * @return the Retry-After header of its response, if any
+    */
+   private static String retryAfter(Exception e) {
+      if (e instanceof HttpError) {
+         return ((HttpError) e).getRetryAfter();
+      }
+      if (e instanceof HttpStatusCodeException && ((HttpStatusCodeException) e).getResponseHeaders() != null) {
+         return ((HttpStatusCodeException) e).getResponseHeaders().getFirst(HttpHeaders.RETRY_AFTER);
+      }
+      return null;
+   }
+
+   /***
+    * Runs a rest template call to the trace service within its limit of
+    * concurrent requests. The deadline is handed to the request factory, which
+    * bounds the timeouts of the request with it and aborts the request when it
+    * passes, so that a slowly read response cannot run past it.
+    *
+    * @param deadline the deadline of the call
+    * @param call     the call
+    * @return the result of the call
+    * @throws TraceSdkException when the call is rejected by the bulkhead
+    */
+   private <T> T withBulkhead(Deadline deadline, BulkheadCall<T> call) throws TraceSdkException {
+      deadline.check();
+      Bulkhead bulkhead = this.bulkheads.get(Service.TRACE);
+      Bulkhead.Permit permit = bulkhead.acquire(deadline.remainingMillis());
+      boolean overloaded = false;
+      this.graphqlDeadline.set(deadline);
+      try {
+         return call.call();
+      } catch (RuntimeException e) {
+         // a failing node handler is not the service's fault
+         if (!(e.getCause() instanceof NodeHandlerException)) {
+            int status = failureStatus(e);
+            overloaded = status == 0 || isOverload(status);
+         }
+         if (e instanceof ResourceAccessException) {
+            // an abort at the deadline surfaces as an io error
+            deadline.check();
+         }
+         throw e;
+      } finally {
+         ScheduledFuture<?> abort = this.graphqlAbort.get();
+         if (abort != null) {
+            abort.cancel(false);
+            this.graphqlAbort.remove();
+         }
+         this.graphqlDeadline.remove();
+         bulkhead.release(permit, overloaded);
+      }
+   }
+
+   private interface BulkheadCall<T> {
+      T call() throws TraceSdkException;
+   }
+
+   /***
+    * Returns the current usage of the requests slots of a service: how many
+    * requests are running, how many are waiting and how many were rejected.
+    *
+    * @param service
+    * @return the stats of the service
+    */
+   public BulkheadStats getBulkheadStats(Service service) {
+      return this.bulkheads.get(service).stats();
+   }
+
+   /***
+    * Builds the pool route used to reach an endpoint.
+    *
+    * @param endpoint the service endpoint url
+    * @param proxy    the optional proxy
+    * @return the route or null if the endpoint is not a valid url
+    */
+   private static HttpRoute makeRoute(String endpoint, HttpHost proxy) {
+      try {
+         URL url = new URL(endpoint);
+         boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+         int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+         HttpHost target = new HttpHost(url.getHost(), port, url.getProtocol());
+         return proxy != null ? new HttpRoute(target, null, proxy, secure) : new HttpRoute(target, null, secure);
+      } catch (MalformedURLException e) {
+         return null;
       }
+   }
+
+   /***
+    * Initializes the restTemplate on top of the pooled http client
+    */
+   private void initRestTemplate() {
+      // only used for the graphql requests, whose timeouts are bounded by
+      // their deadline and which are aborted when it passes
+      HttpComponentsClientHttpRequestFactory clientHttpReq = new HttpComponentsClientHttpRequestFactory(
+            this.httpClients.get(Service.TRACE)) {
+         @Override
+         protected void postProcessHttpRequest(HttpUriRequest request) {
+            Deadline deadline = graphqlDeadline.get();
+            if (deadline != null) {
+               graphqlAbort.set(abortAtDeadline(request, deadline));
+            }
+         }
+
+         @Override
+         protected HttpContext createHttpContext(HttpMethod httpMethod, URI uri) {
+            Deadline deadline = graphqlDeadline.get();
+            HttpClientContext context = HttpClientContext.create();
+            context.setRequestConfig(deadline != null ? deadline.bound(requestConfig) : requestConfig);
+            return context;
+         }
+      };
 
       if (options.isEnableDebuging()) {
          restTemplate = new RestTemplate(new BufferingClientHttpRequestFactory(clientHttpReq));
@@ -217,9 +826,10 @@ public class Client {
     * @param opts           optional options
     * @param opts.authToken optional token to be used
     * @param opts.skipAuth  optional flag to bypass authentication
+    * @param deadline       the deadline of the call, bounding the login
     * @throws TraceSdkException
     */
-   private String getAuthorizationHeader(FetchOptions opts) throws TraceSdkException {
+   private String getAuthorizationHeader(FetchOptions opts, Deadline deadline) throws TraceSdkException {
       if (opts != null) {
          if (opts.getAuthToken() != null)
             return this.makeAuthorizationHeader(opts.getAuthToken());
@@ -227,144 +837,523 @@ public class Client {
             return this.makeAuthorizationHeader(null);
       }
 
-      this.login();
-      return this.makeAuthorizationHeader(this.token);
+      AuthToken currentToken = this.token;
+      if (currentToken == null || currentToken.isExpired()) {
+         currentToken = this.login(currentToken, deadline);
+      }
+      return this.makeAuthorizationHeader(currentToken.value);
 
    }
 
    /**
-    * To set a new token
-    * 
-    * @param token the new token
+    * The non-blocking counterpart of getAuthorizationHeader. The token is
+    * refreshed in the background ahead of its expiry, so a login is rare: when
+    * one is needed, it runs on the executor of the caller.
+    *
+    * @param deadline the deadline of the call, bounding the login
+    * @param executor the executor of the caller
+    * @return the future authorization header
     */
-   private void setToken(String token) {
-      this.token = token;
+   private CompletableFuture<String> getAuthorizationHeaderAsync(Deadline deadline, Executor executor) {
+      AuthToken currentToken = this.token;
+      if (currentToken != null && !currentToken.isExpired()) {
+         return CompletableFuture.completedFuture(this.makeAuthorizationHeader(currentToken.value));
+      }
+      return AsyncHelpers.supply(() -> this.getAuthorizationHeader(null, deadline), executor);
    }
 
    /**
-    * To clear the existing token
+    * To set a new token. When the token carries an expiry, a background refresh
+    * is scheduled ahead of it; requests keep using the current token until the
+    * new one replaces it.
+    * 
+    * @param token the new token
     */
-   private void clearToken() {
-      this.token = null;
+   private void setToken(String token) {
+      AuthToken newToken = new AuthToken(token, decodeTokenExpiry(token));
+      this.token = newToken;
+      if (this.options.isEnableTokenRefresh()) {
+         this.scheduleRefresh(newToken);
+      }
    }
 
    /**
-    * Utility method to fetch a ressource on a target service via REST.
-    *
-    * @param request its instance from HttpHelpers
-    * @throws HttpError
-    * @return the responseContent
+    * Reads the expiry (exp claim) of a JWT token.
+    * 
+    * @param token the token
+    * @return the expiry in epoch millis or 0 if it cannot be read
     */
-   private String fetch(HttpHelpers request, int retry) throws HttpError {
-      String responseContent = null;
+   private static long decodeTokenExpiry(String token) {
       try {
-         request.sendData();
-         HttpURLConnection con = request.getConnection();
-         // first check the status.
-         int status = con.getResponseCode();
-         Boolean ok = (status < HttpURLConnection.HTTP_BAD_REQUEST)
-               || (200 <= con.getResponseCode() && con.getResponseCode() <= 299);
-         if (!ok) {
-            // if 401 and retry > 0 then we can retry
-            if (status == 401 && retry > 0) {
-               // unauthenticated request might be because token expired
-               // clear token and retry
-               this.clearToken();
-               return this.fetch(request, --retry);
-            }
-
-            // otherwise that's a proper error
-            // extract the text body of the response
-            // and try to convert it to JSON
-            String errTxt = request.readError();
-
-            // throw that new error
-            throw new HttpError(status, errTxt);
+         String[] parts = token.split("\\.");
+         if (parts.length < 2) {
+            return 0;
          }
-         responseContent = (String) request.read();
-      } catch (IOException ioe) {
-         throw new HttpError(HttpURLConnection.HTTP_INTERNAL_ERROR, ioe.getLocalizedMessage());
+         String payload = new String(Base64.getUrlDecoder().decode(parts[1]), Constants.UTF8);
+         JsonElement exp = JsonHelper.fromJson(payload, JsonObject.class).get("exp");
+         return exp != null && exp.isJsonPrimitive() ? exp.getAsLong() * 1000 : 0;
+      } catch (RuntimeException e) {
+         // not a JWT, rely on 401 responses to renew it
+         return 0;
       }
-
-      // finally return the body
-      return responseContent;
-
    }
 
    /**
-    * Authenticate using a signed message via the GET /login route.
-    *
-    * @param key the signing private key in clear text used to log in
-    * @throws Exception
+    * Schedules the refresh of a token before it expires.
+    * 
+    * @param refreshed the token to refresh
     */
-   private void loginWithSigningPrivateKey(String pemPrivateKey) throws Exception {
-
-      PrivateKey privateKey = CryptoUtils.decodePrivateKey(pemPrivateKey);
-
-      String signedToken = Helpers.makeAuthPayload(privateKey);
+   private synchronized void scheduleRefresh(AuthToken refreshed) {
+      if (this.scheduledRefresh != null) {
+         this.scheduledRefresh.cancel(false);
+         this.scheduledRefresh = null;
+      }
+      if (this.closed || refreshed.expiresAt == 0) {
+         return;
+      }
+      long lifetime = refreshed.expiresAt - System.currentTimeMillis();
+      if (lifetime <= 0) {
+         return;
+      }
+      // refresh ahead of the margin, or halfway for short lived tokens
+      long delay = Math.max(lifetime - this.options.getTokenRefreshMarginMillis(), lifetime / 2);
 
-      String tokenResponse = this.get(Service.ACCOUNT, "login", null, new FetchOptions(signedToken, false, null));
-      JsonObject tokenJson = JsonHelper.fromJson(tokenResponse, JsonObject.class);
-      // finally set the new token
-      this.setToken(tokenJson.get("token").getAsString());
+      this.scheduledRefresh = this.getScheduler().schedule(() -> {
+         try {
+            this.login(refreshed, Deadline.NONE);
+         } catch (TraceSdkException e) {
+            // keep the current token, a 401 will trigger a new login
+         }
+      }, delay, TimeUnit.MILLISECONDS);
    }
 
    /**
-    * Authenticates using a user's credentials via the POST /login route.
-    *
-    * @param email    the email of the user
-    * @param password the password of the user
-    * @throws TraceSdkException
+    * @return the scheduler of the client, created on first use
     */
-   private void loginWithCredentials(String email, String password) throws TraceSdkException {
-      // get the user salt first
-      // use skipAuth = true to bypass authentication
-      // GET /salt is a public route!
-
-      Map<String, String> parameters = new HashMap<>();
-      parameters.put("email", email);
+   private synchronized ScheduledThreadPoolExecutor getScheduler() {
+      if (this.closed) {
+         throw new IllegalStateException("Client is closed");
+      }
+      if (this.scheduler == null) {
+         this.scheduler = new ScheduledThreadPoolExecutor(1, (runnable) -> {
+            Thread thread = new Thread(runnable, "stratumn-sdk-scheduler");
+            thread.setDaemon(true);
+            return thread;
+         });
+         this.scheduler.setRemoveOnCancelPolicy(true);
+      }
+      return this.scheduler;
+   }
 
-      String saltResponse = this.get(Service.ACCOUNT, "salt", parameters, (new FetchOptions(null, true, 0)));
+   /**
+    * @return the started non-blocking client of the trace service, created on
+    *         first use
+    */
+   private synchronized CloseableHttpAsyncClient getAsyncClient() {
+      if (this.closed) {
+         throw new IllegalStateException("Client is closed");
+      }
+      if (this.asyncClient == null) {
+         int poolSize = this.poolSize(Service.TRACE);
+         HttpAsyncClientBuilder builder = HttpAsyncClients.custom().setMaxConnTotal(poolSize)
+               .setMaxConnPerRoute(poolSize).setDefaultRequestConfig(this.requestConfig)
+               .setThreadFactory((runnable) -> {
+                  Thread thread = new Thread(runnable, "stratumn-sdk-io");
+                  thread.setDaemon(true);
+                  return thread;
+               });
+         if (this.proxy != null) {
+            builder.setProxy(this.proxy);
+         }
+         this.asyncClient = builder.build();
+         this.asyncClient.start();
+      }
+      return this.asyncClient;
+   }
+
+   /***
+    * Closes the connection pools of the services and stops the background
+    * threads. The client cannot be used once closed.
+    * 
+    * @throws IOException
+    */
+   @Override
+   public void close() throws IOException {
+      List<Closeable> clients = new ArrayList<Closeable>(this.httpClients.values());
+      synchronized (this) {
+         if (this.closed) {
+            return;
+         }
+         this.closed = true;
+         this.scheduledRefresh = null;
+         if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+         }
+         if (this.asyncClient != null) {
+            clients.add(this.asyncClient);
+            this.asyncClient = null;
+         }
+      }
+      IOException error = null;
+      for (Closeable httpClient : clients) {
+         try {
+            httpClient.close();
+         } catch (IOException e) {
+            if (error == null) {
+               error = e;
+            } else {
+               error.addSuppressed(e);
+            }
+         }
+      }
+      if (error != null) {
+         throw error;
+      }
+   }
+
+   /**
+    * Aborts a request when its deadline passes, so that a slow transfer cannot
+    * run past it.
+    * 
+    * @param request  the request
+    * @param deadline the deadline of the call
+    * @return the scheduled abort, to cancel once the request completed, or null
+    *         when there is no deadline
+    */
+   private ScheduledFuture<?> abortAtDeadline(HttpUriRequest request, Deadline deadline) {
+      if (deadline.isNone()) {
+         return null;
+      }
+      return this.getScheduler().schedule(request::abort, deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * To clear the existing token
+    */
+   private void clearToken() {
+      this.token = null;
+   }
+
+   /**
+    * Utility method to fetch a ressource on a target service via REST. The
+    * response body is always consumed so that the connection goes back to the
+    * pool.
+    *
+    * @param service the service targeted by the request
+    * @param request the request to execute
+    * @param opts     the fetch options used to authenticate the request
+    * @param retry    the number of retries left
+    * @param deadline the deadline of the call
+    * @throws HttpError
+    * @throws TraceSdkException
+    * @return the responseContent
+    */
+   private String fetch(Service service, HttpRequestBase request, FetchOptions opts, int retry, Deadline deadline)
+         throws HttpError, TraceSdkException {
+      // authenticate before taking a slot, a login needs one too
+      request.setHeader(HttpHeaders.AUTHORIZATION, this.getAuthorizationHeader(opts, deadline));
+      deadline.check();
+      request.setConfig(deadline.bound(this.requestConfig));
+
+      int status;
+      String responseContent;
+      Header retryAfter;
+      Bulkhead bulkhead = this.bulkheads.get(service);
+      Bulkhead.Permit permit = bulkhead.acquire(deadline.remainingMillis());
+      boolean overloaded = true;
+      ScheduledFuture<?> abort = null;
+      try {
+         // inside the try, the permit is released if the client was closed
+         abort = this.abortAtDeadline(request, deadline);
+         try (CloseableHttpResponse response = this.httpClients.get(service).execute(request)) {
+            status = response.getStatusLine().getStatusCode();
+            overloaded = isOverload(status);
+            retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+            responseContent = response.getEntity() != null
+                  ? EntityUtils.toString(response.getEntity(), Constants.UTF8)
+                  : null;
+         }
+      } catch (IOException ioe) {
+         HttpError error = new HttpError(HttpURLConnection.HTTP_INTERNAL_ERROR, ioe.getLocalizedMessage());
+         // tells the network errors apart from the server errors
+         error.initCause(ioe);
+         throw error;
+      } finally {
+         if (abort != null) {
+            abort.cancel(false);
+         }
+         bulkhead.release(permit, overloaded);
+      }
+
+      if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+         // if 401 and retry > 0 then we can retry
+         if (status == HttpURLConnection.HTTP_UNAUTHORIZED && retry > 0) {
+            // unauthenticated request might be because token expired
+            // clear token and retry
+            this.clearToken();
+            return this.fetch(service, request, opts, --retry, deadline);
+         }
+
+         // otherwise that's a proper error
+         throw new HttpError(status, responseContent, retryAfter != null ? retryAfter.getValue() : null);
+      }
+
+      // finally return the body
+      return responseContent;
+
+   }
+
+   /***
+    * A response read by the non-blocking client.
+    */
+   private static final class AsyncResponse {
+      private final int status;
+      private final String content;
+      private final String retryAfter;
+
+      private AsyncResponse(int status, String content, String retryAfter) {
+         this.status = status;
+         this.content = content;
+         this.retryAfter = retryAfter;
+      }
+   }
+
+   /***
+    * The non-blocking counterpart of fetch: the request waits for a slot of the
+    * service without holding a thread, is sent by the non-blocking client and
+    * is cancelled when the deadline passes. The response is read in memory by
+    * the I/O threads of the client.
+    *
+    * @param service  the service targeted by the request
+    * @param request  the authenticated request
+    * @param deadline the deadline of the call
+    * @return the future response, failing with an HttpError on a network error
+    */
+   private CompletableFuture<AsyncResponse> executeAsync(Service service, HttpRequestBase request,
+         Deadline deadline) {
+      ScheduledThreadPoolExecutor scheduler;
+      CloseableHttpAsyncClient client;
+      try {
+         deadline.check();
+         scheduler = this.getScheduler();
+         client = this.getAsyncClient();
+      } catch (TraceSdkException e) {
+         return AsyncHelpers.failed(e);
+      } catch (IllegalStateException e) {
+         return AsyncHelpers.failed(new TraceSdkException("Client is closed", e));
+      }
+      request.setConfig(deadline.bound(this.requestConfig));
+
+      Bulkhead bulkhead = this.bulkheads.get(service);
+      return bulkhead.acquireAsync(deadline.remainingMillis(), scheduler).thenCompose((permit) -> {
+         CompletableFuture<AsyncResponse> result = new CompletableFuture<AsyncResponse>();
+         FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+               int status = response.getStatusLine().getStatusCode();
+               Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+               String content;
+               try {
+                  content = response.getEntity() != null
+                        ? EntityUtils.toString(response.getEntity(), Constants.UTF8)
+                        : null;
+               } catch (IOException e) {
+                  this.failed(e);
+                  return;
+               }
+               bulkhead.release(permit, isOverload(status));
+               result.complete(new AsyncResponse(status, content, retryAfter != null ? retryAfter.getValue() : null));
+            }
+
+            @Override
+            public void failed(Exception e) {
+               bulkhead.release(permit, true);
+               HttpError error = new HttpError(HttpURLConnection.HTTP_INTERNAL_ERROR, e.getLocalizedMessage());
+               // tells the network errors apart from the server errors
+               error.initCause(e);
+               result.completeExceptionally(error);
+            }
+
+            @Override
+            public void cancelled() {
+               bulkhead.release(permit, true);
+               result.completeExceptionally(new TraceSdkException("The deadline of the call was exceeded"));
+            }
+         };
+
+         Future<HttpResponse> response;
+         try {
+            response = client.execute(request, callback);
+         } catch (RuntimeException e) {
+            // the client was closed meanwhile
+            bulkhead.release(permit, false);
+            return AsyncHelpers.<AsyncResponse>failed(new TraceSdkException("Error sending the request", e));
+         }
+         if (!deadline.isNone()) {
+            try {
+               ScheduledFuture<?> abort = scheduler.schedule(() -> response.cancel(true), deadline.remainingMillis(),
+                     TimeUnit.MILLISECONDS);
+               result.whenComplete((r, e) -> abort.cancel(false));
+            } catch (RuntimeException e) {
+               // the client was closed, which cancels the request
+            }
+         }
+         return result;
+      });
+   }
+
+   /**
+    * Authenticate using a signed message via the GET /login route.
+    *
+    * @param key      the signing private key in clear text used to log in
+    * @param deadline the deadline of the call which needs the login
+    * @throws Exception
+    */
+   private void loginWithSigningPrivateKey(String pemPrivateKey, Deadline deadline) throws Exception {
+
+      // the key is decoded once for the lifetime of the client
+      SigningKey key = this.signingKey;
+      if (key == null || !key.pem.equals(pemPrivateKey)) {
+         key = new SigningKey(pemPrivateKey);
+         this.signingKey = key;
+      }
+
+      String signedToken = Helpers.makeAuthPayload(key.privateKey, key.publicKeyPem);
+
+      String tokenResponse = this.get(Service.ACCOUNT, "login", null, new FetchOptions(signedToken, false, null),
+            deadline);
+      JsonObject tokenJson = JsonHelper.fromJson(tokenResponse, JsonObject.class);
+      // finally set the new token
+      this.setToken(tokenJson.get("token").getAsString());
+   }
+
+   /**
+    * Authenticates using a user's credentials via the POST /login route.
+    *
+    * @param email    the email of the user
+    * @param password the password of the user
+    * @param deadline the deadline of the call which needs the login
+    * @throws TraceSdkException
+    */
+   private void loginWithCredentials(String email, String password, Deadline deadline) throws TraceSdkException {
+      // get the user salt first
+      // use skipAuth = true to bypass authentication
+      // GET /salt is a public route!
+
+      Map<String, String> parameters = new HashMap<>();
+      parameters.put("email", email);
+
+      String saltResponse = this.get(Service.ACCOUNT, "salt", parameters, (new FetchOptions(null, true, 0)), deadline);
       JsonObject saltJson = JsonHelper.fromJson(saltResponse, JsonObject.class);
       String salt = saltJson.get("salt").getAsString();
 
-      // hash the password with the salt
-      String passwordHash = org.springframework.security.crypto.bcrypt.BCrypt.hashpw(password, salt);
+      // hash the password with the salt, unless it was already done for this salt
+      PasswordHash passwordHash = this.passwordHash;
+      if (passwordHash == null || !passwordHash.matches(email, password, salt)) {
+         passwordHash = new PasswordHash(email, password, salt);
+         this.passwordHash = passwordHash;
+      }
 
-      parameters.put("passwordHash", passwordHash);
+      parameters.put("passwordHash", passwordHash.hash);
       String bodyJson = JsonHelper.toJson(parameters);
 
       // post the login payload
       // use skipAuth = true to bypass authentication
       // POST /login is a public route!
-      String tokenResponse = this.post(Service.ACCOUNT, "login", bodyJson, (new FetchOptions(null, true, 0)));
+      String tokenResponse;
+      try {
+         tokenResponse = this.post(Service.ACCOUNT, "login", bodyJson, (new FetchOptions(null, true, 0)), deadline);
+      } catch (TraceSdkException e) {
+         // do not keep a hash the server may have rejected
+         this.passwordHash = null;
+         throw e;
+      }
       JsonObject tokenJson = JsonHelper.fromJson(tokenResponse, JsonObject.class);
       // finally set the new token
       this.setToken(tokenJson.get("token").getAsString());
 
    }
 
+   /**
+    * Returns a valid token, logging in if needed. Only one login runs at a time:
+    * concurrent callers wait for the login in progress and share its outcome.
+    * 
+    * @param staleToken the token to replace, null if there is none
+    * @param deadline   the deadline of the call which needs the login, it
+    *                   bounds the wait for a login run by another thread
+    * @return the token
+    * @throws TraceSdkException
+    */
+   private AuthToken login(AuthToken staleToken, Deadline deadline) throws TraceSdkException {
+      while (true) {
+         CompletableFuture<AuthToken> pending = this.pendingLogin.get();
+         if (pending != null) {
+            // another thread is logging in, wait for it
+            return this.awaitLogin(pending, deadline);
+         }
+
+         CompletableFuture<AuthToken> login = new CompletableFuture<AuthToken>();
+         if (!this.pendingLogin.compareAndSet(null, login)) {
+            // lost the race, wait for the winner
+            continue;
+         }
+         try {
+            // a login may have completed just before we took the lead
+            if (this.token == null || this.token == staleToken) {
+               this.authenticate(deadline);
+            }
+            AuthToken newToken = this.token;
+            login.complete(newToken);
+            return newToken;
+         } catch (TraceSdkException | RuntimeException e) {
+            login.completeExceptionally(e);
+            throw e;
+         } finally {
+            this.pendingLogin.compareAndSet(login, null);
+         }
+      }
+   }
+
+   /**
+    * Waits for a login run by another thread.
+    * 
+    * @param pending  the login in progress
+    * @param deadline the deadline of the call which needs the login
+    * @return the token
+    * @throws TraceSdkException
+    */
+   private AuthToken awaitLogin(CompletableFuture<AuthToken> pending, Deadline deadline) throws TraceSdkException {
+      try {
+         return deadline.isNone() ? pending.get() : pending.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+         throw new TraceSdkException("The deadline of the call was exceeded while waiting for login", e);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new TraceSdkException("Interrupted while waiting for login", e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof TraceSdkException) {
+            throw (TraceSdkException) e.getCause();
+         }
+         throw new TraceSdkException("Login failed", e.getCause());
+      }
+   }
+
    /**
     * Authenticates using a valid secret. Supported secret types are: -
     * CredentialSecret -> via email+password - PrivateKeySecret -> via signed
     * message
     * 
+    * @param deadline the deadline of the call which needs the login
     * @throws TraceSdkException
     */
-   private synchronized void login() throws TraceSdkException {
-
-      // if another concurrent execution has already
-      // done the job, then release and return, nothing to do.
-      if (this.token != null)
-         return;
-
-      // otherwise do the job...
+   private void authenticate(Deadline deadline) throws TraceSdkException {
       if (Secret.isCredentialSecret(options.getSecret())) {
          // the CredentialSecret case
          final String email = ((CredentialSecret) options.getSecret()).getEmail();
          final String password = ((CredentialSecret) options.getSecret()).getPassword();
          try {
-            this.loginWithCredentials(email, password);
+            this.loginWithCredentials(email, password, deadline);
          } catch (TraceSdkException e) {
             throw new TraceSdkException("Login with email password failed.", e);
          }
@@ -372,7 +1361,7 @@ public class Client {
          // the PrivateKeySecret case
          final String privateKey = ((PrivateKeySecret) options.getSecret()).getPrivateKey();
          try {
-            this.loginWithSigningPrivateKey(privateKey);
+            this.loginWithSigningPrivateKey(privateKey, deadline);
          } catch (Exception e) {
             throw new TraceSdkException("Login with private key failed", e);
          }
@@ -398,37 +1387,40 @@ public class Client {
     * @return the response body object
     */
    public String post(Service service, String route, String body, FetchOptions opts) throws TraceSdkException {
+      return this.post(service, route, body, opts, Deadline.after(opts != null ? opts.getTimeoutMillis() : 0));
+   }
+
+   /**
+    * Executes a POST query on a target service, within the deadline of a call.
+    *
+    * @param service  the service to target (account|trace|media)
+    * @param route    the route on the target service
+    * @param body     the POST body object
+    * @param opts     additional fetch options
+    * @param deadline the deadline of the call
+    * @throws TraceSdkException
+    * @return the response body object
+    */
+   private String post(Service service, String route, String body, FetchOptions opts, Deadline deadline)
+         throws TraceSdkException {
       try {
          // create default fetch options.
          if (opts == null)
             opts = DefaultFetchOptions;
 
-         // References: https://www.baeldung.com/java-http-request
-         // https://juffalow.com/java/how-to-send-http-get-post-request-in-java
          String path = this.endpoints.getEndpoint(service) + '/' + route;
-         URL url = new URL(path);
 
-         HttpURLConnection con;
-         if (options.getProxy() != null) {
-            con = (HttpURLConnection) url.openConnection(options.getProxy());
-         } else {
-            con = (HttpURLConnection) url.openConnection();
+         HttpPost request = new HttpPost(path);
+         request.setHeader("Accept", "application/json");
+         request.setHeader("User-Agent", this.userAgent);
+         if (body != null) {
+            request.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
          }
 
-         con.setRequestMethod("POST");
-         con.setRequestProperty("Content-Type", "application/json");
-         con.setRequestProperty("Accept", "application/json");
-         con.setRequestProperty("User-Agent", this.userAgent);
-         con.setRequestProperty("Authorization", this.getAuthorizationHeader(opts));
-         con.setDoOutput(true);
-
-         HttpHelpers request = new HttpHelpers(con);
-         request.setBody(body);
-
-         Integer retry = opts.getRetry();
-
          // delegate to fetch wrapper
-         return this.fetch(request, retry);
+         FetchOptions fetchOptions = opts;
+         return this.withRetries(service, opts.getRetryPolicy(), false, deadline,
+               () -> this.fetch(service, request, fetchOptions, fetchOptions.getRetry(), deadline));
 
       } catch (Exception e) {
          throw new TraceSdkException("Error executing post request", e);
@@ -447,6 +1439,22 @@ public class Client {
     */
    public String get(Service service, String route, Map<String, String> params, FetchOptions opts)
          throws TraceSdkException {
+      return this.get(service, route, params, opts, Deadline.after(opts != null ? opts.getTimeoutMillis() : 0));
+   }
+
+   /**
+    * Executes a GET query on a target service, within the deadline of a call.
+    *
+    * @param service  the service to target (account|trace|media)
+    * @param route    the route on the target service
+    * @param params   the query parameters
+    * @param opts     additional fetch options
+    * @param deadline the deadline of the call
+    * @throws TraceSdkException
+    * @return the response body object
+    */
+   private String get(Service service, String route, Map<String, String> params, FetchOptions opts,
+         Deadline deadline) throws TraceSdkException {
 
       try {
          // create default fetch options.
@@ -459,24 +1467,15 @@ public class Client {
             path += "?" + HttpHelpers.getParamsString(params);
          }
 
-         URL url = new URL(path);
-
-         HttpURLConnection con;
-         if (options.getProxy() != null) {
-            con = (HttpURLConnection) url.openConnection(options.getProxy());
-         } else {
-            con = (HttpURLConnection) url.openConnection();
-         }
-         con.setRequestProperty("Content-Type", "application/json; utf-8");
-         con.setRequestProperty("Accept", "application/json");
-         con.setRequestProperty("User-Agent", this.userAgent);
-         con.setRequestProperty("Authorization", this.getAuthorizationHeader(opts));
-         con.setRequestMethod("GET");
-
-         HttpHelpers request = new HttpHelpers(con);
+         HttpGet request = new HttpGet(path);
+         request.setHeader("Content-Type", "application/json; utf-8");
+         request.setHeader("Accept", "application/json");
+         request.setHeader("User-Agent", this.userAgent);
 
          // delegate to fetch wrapper
-         return this.fetch(request, opts.getRetry());
+         FetchOptions fetchOptions = opts;
+         return this.withRetries(service, opts.getRetryPolicy(), true, deadline,
+               () -> this.fetch(service, request, fetchOptions, fetchOptions.getRetry(), deadline));
       } catch (Exception e) {
          throw new TraceSdkException("Error executing get request", e);
       }
@@ -496,41 +1495,216 @@ public class Client {
          throws TraceSdkException {
 
       String queryStr;
+      String queryHash = null;
+      try {
+         queryStr = query.loadQuery(opts != null && opts.isLeanTraceState());
+         if (this.isPersistedQueries()) {
+            queryHash = query.loadQueryHash(opts != null && opts.isLeanTraceState());
+         }
+      } catch (IOException e) {
+         throw new TraceSdkException("Error loading query", e);
+      }
+      return this.graphql(queryStr, queryHash, variables, opts, tclass);
+   }
+
+   /**
+    * Executes a GraphQL document built at runtime on the Trace service.
+    *
+    * @param document  the graphql query / mutation document
+    * @param variables the graphql variables
+    * @param opts      the graphql options
+    * @throws TraceSdkException
+    * 
+    */
+   public <T> T graphql(String document, Map<String, Object> variables, GraphQLOptions opts, Class<T> tclass)
+         throws TraceSdkException {
+      String documentHash = this.isPersistedQueries() ? GraphQl.hashDocument(document) : null;
+      return this.graphql(document, documentHash, variables, opts, tclass);
+   }
+
+   /**
+    * Executes a GraphQL query / mutation on the Trace service without blocking
+    * the calling thread. The request is sent by the non-blocking client, its
+    * retries are scheduled, and a login, when a new token is needed, runs on
+    * the executor. The response is decoded on the executor.
+    *
+    * @param query     the graphql query / mutation
+    * @param variables the graphql variables
+    * @param opts      the graphql options
+    * @param executor  the executor of the caller
+    * @return the future response, failing with a TraceSdkException, or an
+    *         HttpError when the service answers with an error status
+    */
+   public <T> CompletableFuture<T> graphqlAsync(GraphQl.Query query, Map<String, Object> variables,
+         GraphQLOptions opts, Class<T> tclass, Executor executor) {
+      String queryStr;
+      String queryHash = null;
+      try {
+         queryStr = query.loadQuery(opts != null && opts.isLeanTraceState());
+         if (this.isPersistedQueries()) {
+            queryHash = query.loadQueryHash(opts != null && opts.isLeanTraceState());
+         }
+      } catch (IOException e) {
+         return AsyncHelpers.failed(new TraceSdkException("Error loading query", e));
+      }
+      GraphQLOptions gqlOpts = opts != null ? opts : DefaultGraphQLOptions;
+      String gqlUrl = this.endpoints.getTrace() + "/graphql";
+      GraphQlQuery fullQuery = new GraphQlQuery(variables, queryStr);
+      Deadline deadline = Deadline.after(gqlOpts.getTimeoutMillis());
+      AsyncGraphQlPost post = (q) -> this.postAsync(gqlUrl, q, gqlOpts.getRetry(), deadline, executor);
+      String hash = queryHash;
+      CompletableFuture<JsonObject> response = this.withRetriesAsync(Service.TRACE, gqlOpts.getRetryPolicy(),
+            !isMutation(queryStr), deadline, () -> hash != null && this.isPersistedQueries()
+                  ? this.sendPersistedQueryAsync(fullQuery, hash, post)
+                  : post.post(fullQuery));
+      return AsyncHelpers.then(response, (body) -> JsonHelper.getGson().fromJson(body, tclass), executor);
+   }
+
+   /**
+    * Executes a GraphQL query on the Trace service, decoding the response as it
+    * is read. The elements of the array found at nodesPath in the data are
+    * passed to the handler one at a time and left out of the returned response,
+    * so a large page is never held twice in memory.
+    *
+    * @param query       the graphql query
+    * @param variables   the graphql variables
+    * @param opts        the graphql options
+    * @param nodesPath   the path of the streamed array in the data, like
+    *                    workflow.traces.nodes
+    * @param nodeHandler the handler of the array elements
+    * @throws TraceSdkException
+    * 
+    */
+   public GraphResponse graphql(GraphQl.Query query, Map<String, Object> variables, GraphQLOptions opts,
+         String nodesPath, GraphQlResponseReader.NodeHandler nodeHandler) throws TraceSdkException {
+      String queryStr;
+      String queryHash = null;
       try {
-         queryStr = query.loadQuery();
+         queryStr = query.loadQuery(opts != null && opts.isLeanTraceState());
+         if (this.isPersistedQueries()) {
+            queryHash = query.loadQueryHash(opts != null && opts.isLeanTraceState());
+         }
       } catch (IOException e) {
          throw new TraceSdkException("Error loading query", e);
       }
       if (opts == null) {
          opts = DefaultGraphQLOptions;
       }
+      Deadline deadline = Deadline.after(opts.getTimeoutMillis());
       String gqlUrl = this.endpoints.getTrace() + "/graphql";
-      GraphQlQuery topologyQuery = new GraphQlQuery(variables, queryStr);
-      // delegate the graphql request execution
-      ResponseEntity<T> response;
-      // ResponseEntity<T> response = postForEntity(gqlUrl, topologyQuery, tclass);
-      response = postForEntity(gqlUrl, topologyQuery, tclass);
-      if (response.getStatusCode() == HttpStatus.OK) {
-         // if the response is empty, throw.
-         if (!response.hasBody())
-            throw new TraceSdkException("The graphql response is empty.");
-      } else {
-         Integer retry = opts.getRetry();
-         // handle errors explicitly
-         // extract the status from the error response
-         // if 401 and retry > 0 then we can retry
-         if (response.getStatusCode() == HttpStatus.UNAUTHORIZED && retry > 0) {
-            // unauthenticated request might be because token expired
-            // clear token and retry
-            this.clearToken();
-            opts.setRetry(--retry);
-            return this.graphql(query, variables, opts, tclass);
+      GraphQlQuery fullQuery = new GraphQlQuery(variables, queryStr);
+      // the handled nodes cannot be taken back, a failure past the first one is
+      // not retried
+      AtomicBoolean handling = new AtomicBoolean();
+      GraphQlResponseReader.NodeHandler handler = (node) -> {
+         handling.set(true);
+         nodeHandler.handle(node);
+      };
+      GraphQlPost post = (q) -> {
+         try {
+            return postStreaming(gqlUrl, q, nodesPath, handler, deadline);
+         } catch (RestClientException e) {
+            if (handling.get()) {
+               throw new TraceSdkException("Error reading the graphql response", e);
+            }
+            throw e;
          }
-         // otherwise rethrow
-         throw new TraceSdkException(response.getBody().toString());
+      };
+
+      int authRetry = opts.getRetry();
+      String hash = queryHash;
+      ResponseEntity<JsonObject> response = this.withRetries(Service.TRACE, opts.getRetryPolicy(),
+            !isMutation(queryStr), deadline, () -> {
+               int retry = authRetry;
+               while (true) {
+                  try {
+                     return hash != null ? sendPersistedQuery(fullQuery, hash, post) : post.post(fullQuery);
+                  } catch (HttpClientErrorException e) {
+                     // unauthenticated request might be because token expired
+                     // clear token and retry
+                     if (e.getStatusCode() != HttpStatus.UNAUTHORIZED || retry-- <= 0) {
+                        throw e;
+                     }
+                     this.clearToken();
+                  }
+               }
+            });
+      // if the response is empty, throw.
+      if (!response.hasBody())
+         throw new TraceSdkException("The graphql response is empty.");
+      return JsonHelper.getGson().fromJson(response.getBody(), GraphResponse.class);
+   }
+
+   /**
+    * @return whether the documents should be sent by hash
+    */
+   boolean isPersistedQueries() {
+      return this.options.isEnablePersistedQueries() && this.persistedQueriesSupported;
+   }
+
+   /**
+    * Executes a GraphQL document on the Trace service.
+    *
+    * @param queryStr  the graphql document
+    * @param queryHash the document hash when using persisted queries
+    * @param variables the graphql variables
+    * @param opts      the graphql options
+    * @throws TraceSdkException
+    */
+   private <T> T graphql(String queryStr, String queryHash, Map<String, Object> variables, GraphQLOptions opts,
+         Class<T> tclass) throws TraceSdkException {
+      if (opts == null) {
+         opts = DefaultGraphQLOptions;
       }
-      return response.getBody();
+      String gqlUrl = this.endpoints.getTrace() + "/graphql";
+      GraphQlQuery topologyQuery = new GraphQlQuery(variables, queryStr);
+      Deadline deadline = Deadline.after(opts.getTimeoutMillis());
+      // the options may be shared, count the retries locally
+      int authRetry = opts.getRetry();
+      return this.withRetries(Service.TRACE, opts.getRetryPolicy(), !isMutation(queryStr), deadline, () -> {
+         int retry = authRetry;
+         while (true) {
+            // delegate the graphql request execution
+            ResponseEntity<T> response;
+            if (queryHash != null && this.isPersistedQueries()) {
+               response = postPersistedQuery(gqlUrl, topologyQuery, queryHash, tclass, deadline);
+            } else {
+               response = postForEntity(gqlUrl, topologyQuery, tclass, deadline);
+            }
+            if (response.getStatusCode() == HttpStatus.OK) {
+               // if the response is empty, throw.
+               if (!response.hasBody())
+                  throw new TraceSdkException("The graphql response is empty.");
+               return response.getBody();
+            }
+            // handle errors explicitly
+            // extract the status from the error response
+            // if 401 and retry > 0 then we can retry
+            if (response.getStatusCode() == HttpStatus.UNAUTHORIZED && retry-- > 0) {
+               // unauthenticated request might be because token expired
+               // clear token and retry
+               this.clearToken();
+               continue;
+            }
+            // otherwise rethrow
+            throw new TraceSdkException(response.getBody().toString());
+         }
+      });
+   }
 
+   /***
+    * @param document a graphql document
+    * @return whether its operation is a mutation, which is not idempotent
+    */
+   private static boolean isMutation(String document) {
+      for (String line : document.split("\n")) {
+         String operation = line.trim();
+         // skips the blank lines and the comments
+         if (!operation.isEmpty() && !operation.startsWith("#")) {
+            return operation.startsWith("mutation");
+         }
+      }
+      return false;
    }
 
    /**
@@ -541,16 +1715,45 @@ public class Client {
     * @throws TraceSdkException
     */
    public MediaRecord[] uploadFiles(List<FileWrapper> fileWrapperList) throws TraceSdkException {
+      return this.uploadFiles(fileWrapperList, null);
+   }
+
+   /**
+    * Uploads an array of files to media-api, within the deadline of the fetch
+    * options.
+    *
+    * @param fileWrapperList the file wrappers to upload
+    * @param opts            the fetch options, may be null
+    * @return the array of corresponding media records
+    * @throws TraceSdkException
+    */
+   public MediaRecord[] uploadFiles(List<FileWrapper> fileWrapperList, FetchOptions opts) throws TraceSdkException {
 
       if (fileWrapperList.size() == 0)
          return new MediaRecord[0];
 
       String fileUrl = this.endpoints.getMedia() + "/files";
-      MediaRecord[] mediaRecords = uploadFiles(fileUrl, fileWrapperList, MediaRecord[].class);
+      MediaRecord[] mediaRecords = uploadFiles(fileUrl, fileWrapperList, MediaRecord[].class, opts);
 
       return mediaRecords;
    }
 
+   /***
+    * Reads the body of a file download.
+    */
+   @FunctionalInterface
+   private interface DownloadReader<T> {
+      T read(InputStream content, long contentLength) throws IOException, TraceSdkException;
+   }
+
+   /***
+    * Reads a file from the media cache, returns null when it is not cached.
+    */
+   @FunctionalInterface
+   private interface CachedReader<T> {
+      T read(MediaCache cache, String digest) throws IOException, TraceSdkException;
+   }
+
    /**
     * Downloads a file corresponding to a media record.
     *
@@ -560,45 +1763,173 @@ public class Client {
     * @throws HttpError
     */
    public ByteBuffer downloadFile(FileRecord fileRecord) throws TraceSdkException, HttpError {
-      String tokenResponse = this.get(Service.MEDIA, "files/" + fileRecord.getDigest() + "/info", null, null);
+      return this.download(fileRecord, (content, contentLength) -> {
+         if (contentLength < 0 || contentLength > Integer.MAX_VALUE) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            copy(content, baos);
+            return ByteBuffer.wrap(baos.toByteArray());
+         }
+         // the size is known, read straight into the buffer
+         byte[] bytes = new byte[(int) contentLength];
+         int read = 0;
+         while (read < bytes.length) {
+            int n = content.read(bytes, read, bytes.length - read);
+            if (n == -1)
+               throw new IOException("Download ended after " + read + " of " + contentLength + " bytes");
+            read += n;
+         }
+         return ByteBuffer.wrap(bytes);
+      }, MediaCache::map, Deadline.NONE);
+   }
+
+   /**
+    * Downloads a file corresponding to a media record and writes it decrypted to
+    * the output stream. The output stream is not closed.
+    *
+    * Only files encrypted in segments are decrypted as they arrive. A file
+    * encrypted as a single message, the default format, is checked against its
+    * tag before any byte is released: the cipher holds the whole ciphertext and
+    * the plaintext in memory, and cannot decrypt files over 2GB. Use
+    * segmented file encryption for large files.
+    *
+    * @param fileRecord the file record to download
+    * @param out        where to write the file
+    * @throws TraceSdkException
+    * @throws HttpError
+    */
+   public void downloadFile(FileRecord fileRecord, OutputStream out) throws TraceSdkException, HttpError {
+      this.downloadFile(fileRecord, out, null);
+   }
+
+   /**
+    * Downloads a file corresponding to a media record and writes it decrypted to
+    * the output stream, within the deadline of the fetch options. The transfer
+    * is aborted when the deadline passes. The output stream is not closed. A
+    * file encrypted as a single message is held in memory, see
+    * {@link #downloadFile(FileRecord, OutputStream)}.
+    *
+    * @param fileRecord the file record to download
+    * @param out        where to write the file
+    * @param opts       the fetch options, may be null
+    * @throws TraceSdkException
+    * @throws HttpError
+    */
+   public void downloadFile(FileRecord fileRecord, OutputStream out, FetchOptions opts)
+         throws TraceSdkException, HttpError {
+      DownloadReader<Boolean> reader = (content, contentLength) -> {
+         InputStream in = content;
+         String key = fileRecord.getKey();
+         if (key != null && !key.isEmpty()) {
+            try {
+               in = new AesKey(key).decrypt(content);
+            } catch (GeneralSecurityException e) {
+               throw new TraceSdkException("Could not decrypt file " + fileRecord.getName(), e);
+            }
+         }
+         copy(in, out);
+         out.flush();
+         return true;
+      };
+      this.download(fileRecord, reader, (cache, digest) -> {
+         InputStream cached = cache.open(digest);
+         if (cached == null)
+            return null;
+         try (InputStream content = cached) {
+            return reader.read(content, -1);
+         }
+      }, Deadline.after(opts != null ? opts.getTimeoutMillis() : 0));
+   }
+
+   /***
+    * Hands the content of the file to the reader. The file is read from the
+    * media cache when there is one, and stored in it on a miss. Otherwise the
+    * download url of the file is resolved and the response body is given to
+    * the reader.
+    * 
+    * @param fileRecord
+    * @param reader       reads the response body
+    * @param cachedReader reads the file from the media cache
+    * @param deadline     the deadline of the call
+    * @return the result of the reader
+    * @throws TraceSdkException
+    * @throws HttpError
+    */
+   private <T> T download(FileRecord fileRecord, DownloadReader<T> reader, CachedReader<T> cachedReader,
+         Deadline deadline) throws TraceSdkException, HttpError {
+      String digest = fileRecord.getDigest();
+      MediaCache cache = digest == null || digest.isEmpty() ? null : this.mediaCache;
+      if (cache != null && cachedReader != null) {
+         try {
+            T cached = cachedReader.read(cache, digest);
+            if (cached != null)
+               return cached;
+         } catch (IOException e) {
+            throw new TraceSdkException("Error reading file " + digest + " from the media cache", e);
+         }
+      }
+
+      String tokenResponse = this.get(Service.MEDIA, "files/" + digest + "/info", null, null, deadline);
       JsonObject tokenJson = JsonHelper.fromJson(tokenResponse, JsonObject.class);
-      // finally set the new token
       String downloadURL = tokenJson.get("download_url").getAsString();
 
-      final int BUFFER_SIZE = 4096;
-
-      ByteBuffer byteBuffer = null;
+      // does not need authorization header
+      HttpGet request = new HttpGet(downloadURL);
+      deadline.check();
+      request.setConfig(deadline.bound(this.requestConfig));
+      Bulkhead bulkhead = this.bulkheads.get(Service.MEDIA);
+      Bulkhead.Permit permit = bulkhead.acquire(deadline.remainingMillis());
+      boolean overloaded = true;
+      ScheduledFuture<?> abort = null;
       try {
-         URL url = new URL(downloadURL);
-         HttpURLConnection httpConn;
-         if (options.getProxy() != null) {
-            httpConn = (HttpURLConnection) url.openConnection(options.getProxy());
-         } else {
-            httpConn = (HttpURLConnection) url.openConnection();
-         }
-         // does not need authorization header
-         int status = httpConn.getResponseCode();
-         String statusText = httpConn.getResponseMessage();
-         // always check HTTP response code first
-         if (status != HttpURLConnection.HTTP_OK) {
-            throw new HttpError(status, statusText);
-         }
-         // opens input stream from the HTTP connection
-         InputStream inputStream = httpConn.getInputStream();
-         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-         byte[] buffer = new byte[BUFFER_SIZE];
-         int bytesRead = 0;
-         while ((bytesRead = inputStream.read(buffer)) != -1) {
-            baos.write(buffer, 0, bytesRead);
-         }
-         baos.flush();
-         byteBuffer = ByteBuffer.wrap(baos.toByteArray());
-         baos.close();
-         inputStream.close();
+         // inside the try, the permit is released if the client was closed
+         abort = this.abortAtDeadline(request, deadline);
+         try (CloseableHttpResponse response = this.httpClients.get(Service.MEDIA).execute(request)) {
+            int status = response.getStatusLine().getStatusCode();
+            overloaded = isOverload(status);
+            String statusText = response.getStatusLine().getReasonPhrase();
+            // always check HTTP response code first
+            if (status != HttpURLConnection.HTTP_OK) {
+               EntityUtils.consume(response.getEntity());
+               throw new HttpError(status, statusText);
+            }
+            long contentLength = response.getEntity().getContentLength();
+            // opens input stream from the HTTP connection
+            try (InputStream inputStream = response.getEntity().getContent()) {
+               if (cache == null || cachedReader == null || !cache.accepts(contentLength))
+                  return reader.read(inputStream, contentLength);
+               cache.store(digest, inputStream);
+            }
+            T cached = cachedReader.read(cache, digest);
+            if (cached != null)
+               return cached;
+         }
       } catch (IOException e) {
+         overloaded = true;
+         // an abort at the deadline surfaces as an io error
+         deadline.check();
          throw new TraceSdkException(e);
+      } finally {
+         if (abort != null) {
+            abort.cancel(false);
+         }
+         if (overloaded) {
+            bulkhead.release(permit, true);
+         } else {
+            // the duration of a transfer depends on the file size, it tells
+            // nothing about the load of the service
+            bulkhead.release(permit);
+         }
+      }
+      // evicted by another process before it could be read
+      return this.download(fileRecord, reader, null, deadline);
+   }
+
+   private static void copy(InputStream in, OutputStream out) throws IOException {
+      byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+      int bytesRead;
+      while ((bytesRead = in.read(buffer)) != -1) {
+         out.write(buffer, 0, bytesRead);
       }
-      return byteBuffer;
    }
 
    /**
@@ -609,58 +1940,320 @@ public class Client {
     * @param query
     * @param Variables
     * @param tClass
+    * @param deadline
     * @return
     * @throws TraceSdkException
     * 
     */
-   private <T, R> ResponseEntity<T> postForEntity(String url, R requestBody, Class<T> tClass) throws TraceSdkException {
+   private <T, R> ResponseEntity<T> postForEntity(String url, R requestBody, Class<T> tClass, Deadline deadline)
+         throws TraceSdkException {
+
+      HttpEntity<R> entity = new HttpEntity<R>(requestBody, this.makeJsonHeaders(deadline));
 
+      return this.withBulkhead(deadline, () -> restTemplate.postForEntity(url, entity, tClass));
+
+   }
+
+   /***
+    * @param deadline the deadline of the call, bounding the login
+    * @return the headers of an authenticated json request
+    * @throws TraceSdkException
+    */
+   private HttpHeaders makeJsonHeaders(Deadline deadline) throws TraceSdkException {
       HttpHeaders headers = new HttpHeaders();
       headers.setContentType(MediaType.APPLICATION_JSON);
       headers.set(HttpHeaders.USER_AGENT, this.userAgent);
-      headers.set(HttpHeaders.AUTHORIZATION, this.getAuthorizationHeader(null));
+      headers.set(HttpHeaders.AUTHORIZATION, this.getAuthorizationHeader(null, deadline));
+      return headers;
+   }
 
-      HttpEntity<R> entity = new HttpEntity<R>(requestBody, headers);
+   /***
+    * Carries a node handler failure out of the response extractor.
+    */
+   private static class NodeHandlerException extends IOException {
+      private static final long serialVersionUID = 1L;
 
-      ResponseEntity<T> resp = restTemplate.postForEntity(url, entity, tClass);
-      return resp;
+      NodeHandlerException(TraceSdkException cause) {
+         super(cause);
+      }
+   }
 
+   /***
+    * Posts a graphql query and decodes the response while it is read, see
+    * GraphQlResponseReader.
+    * 
+    * @param url         the graphql url
+    * @param query       the query
+    * @param nodesPath   the path of the streamed array in the data
+    * @param nodeHandler the handler of the array elements
+    * @param deadline    the deadline of the call
+    * @return the response without the streamed array
+    * @throws TraceSdkException
+    */
+   private ResponseEntity<JsonObject> postStreaming(String url, GraphQlQuery query, String nodesPath,
+         GraphQlResponseReader.NodeHandler nodeHandler, Deadline deadline) throws TraceSdkException {
+      HttpEntity<GraphQlQuery> entity = new HttpEntity<GraphQlQuery>(query, this.makeJsonHeaders(deadline));
+      try {
+         return this.withBulkhead(deadline, () -> restTemplate.execute(url, HttpMethod.POST,
+               restTemplate.httpEntityCallback(entity, JsonObject.class), (response) -> {
+                  JsonObject body;
+                  try (Reader reader = new InputStreamReader(response.getBody(), Constants.UTF8)) {
+                     body = GraphQlResponseReader.read(reader, nodesPath, nodeHandler);
+                  } catch (TraceSdkException e) {
+                     throw new NodeHandlerException(e);
+                  }
+                  return new ResponseEntity<JsonObject>(body, response.getHeaders(), response.getStatusCode());
+               }));
+      } catch (ResourceAccessException e) {
+         if (e.getCause() instanceof NodeHandlerException) {
+            throw (TraceSdkException) e.getCause().getCause();
+         }
+         throw e;
+      }
    }
 
    /***
-    * Expects a list of fileWrappers, uploads the files encrypted and return
-    * response
+    * Executes a query following the automatic persisted queries protocol: only
+    * the hash of the document is sent first, and the full document is sent
+    * along with its hash when the server does not know it yet.
     * 
-    * @param filesList
+    * @param url        the graphql url
+    * @param fullQuery  the query with its document
+    * @param queryHash  the SHA-256 hash of the document
+    * @param tClass
+    * @param deadline   the deadline of the call
     * @return
     * @throws TraceSdkException
     */
-   private <T> T uploadFiles(String url, List<FileWrapper> filesList, Class<T> tClass) throws TraceSdkException {
+   private <T> ResponseEntity<T> postPersistedQuery(String url, GraphQlQuery fullQuery, String queryHash,
+         Class<T> tClass, Deadline deadline) throws TraceSdkException {
+      ResponseEntity<JsonObject> response = sendPersistedQuery(fullQuery, queryHash,
+            (query) -> postForEntity(url, query, JsonObject.class, deadline));
+      T body = response.hasBody() ? JsonHelper.getGson().fromJson(response.getBody(), tClass) : null;
+      return new ResponseEntity<T>(body, response.getHeaders(), response.getStatusCode());
+   }
 
-      MultiValueMap<String, Object> bodyMap = new LinkedMultiValueMap<>();
-      HttpHeaders headers = new HttpHeaders();
-      headers.setContentType(MediaType.MULTIPART_FORM_DATA);
-      headers.set(HttpHeaders.USER_AGENT, this.userAgent);
-      headers.set(HttpHeaders.AUTHORIZATION, this.getAuthorizationHeader(null));
+   /***
+    * Posts a graphql query and returns the raw response.
+    */
+   @FunctionalInterface
+   interface GraphQlPost {
+      ResponseEntity<JsonObject> post(GraphQlQuery query) throws TraceSdkException;
+   }
+
+   /***
+    * Runs the automatic persisted queries protocol over the given post.
+    * 
+    * @param fullQuery the query with its document
+    * @param queryHash the SHA-256 hash of the document
+    * @param post      sends a query to the graphql endpoint
+    * @return
+    * @throws TraceSdkException
+    */
+   ResponseEntity<JsonObject> sendPersistedQuery(GraphQlQuery fullQuery, String queryHash, GraphQlPost post)
+         throws TraceSdkException {
+      Map<String, Object> extensions = makePersistedQueryExtensions(queryHash);
 
-      for (FileWrapper file : filesList) {
+      GraphQlQuery hashedQuery = new GraphQlQuery(fullQuery.getVariables(), null);
+      hashedQuery.setExtensions(extensions);
+
+      String persistedQueryError;
+      try {
+         ResponseEntity<JsonObject> response = post.post(hashedQuery);
+         persistedQueryError = getPersistedQueryError(response.getBody());
+         if (persistedQueryError == null) {
+            return response;
+         }
+      } catch (HttpClientErrorException e) {
+         persistedQueryError = getPersistedQueryErrorOf(e);
+         if (persistedQueryError == null) {
+            throw e;
+         }
+      }
+
+      if (PERSISTED_QUERY_NOT_SUPPORTED.equals(persistedQueryError)) {
+         // stop sending hashes to this server
+         this.persistedQueriesSupported = false;
+         return post.post(fullQuery);
+      }
+
+      // the server does not know the hash, send the document to register it
+      GraphQlQuery registeringQuery = new GraphQlQuery(fullQuery.getVariables(), fullQuery.getQuery());
+      registeringQuery.setExtensions(extensions);
+      return post.post(registeringQuery);
+   }
+
+   /***
+    * @param queryHash the SHA-256 hash of the document
+    * @return the extensions of a query sent by hash
+    */
+   private static Map<String, Object> makePersistedQueryExtensions(String queryHash) {
+      Map<String, Object> persistedQuery = new HashMap<String, Object>();
+      persistedQuery.put("version", 1);
+      persistedQuery.put("sha256Hash", queryHash);
+      return Collections.singletonMap("persistedQuery", persistedQuery);
+   }
 
-         FileInfo info = file.info();
-         // This nested HttpEntiy is important to create the correct
-         // Content-Disposition entry with metadata "name" and "filename"
-         MultiValueMap<String, String> fileMap = new LinkedMultiValueMap<>();
-         ContentDisposition contentDisposition = ContentDisposition.builder("form-data").name(info.getName())
-               .filename(info.getName()).build();
-         fileMap.add(HttpHeaders.CONTENT_DISPOSITION, contentDisposition.toString());
-         HttpEntity<byte[]> fileEntity = new HttpEntity<>(file.encryptedData().array(), fileMap);
+   /***
+    * Reads the persisted query protocol error of a failed request, if any: some
+    * servers answer the protocol errors with a 400.
+    * 
+    * @param e the failure of the request
+    * @return the error or null
+    */
+   private static String getPersistedQueryErrorOf(Throwable e) {
+      boolean badRequest = e instanceof HttpClientErrorException
+            || (e instanceof HttpError && ((HttpError) e).getSatus() == HttpURLConnection.HTTP_BAD_REQUEST);
+      if (!badRequest || e.getMessage() == null) {
+         return null;
+      }
+      if (e.getMessage().contains(PERSISTED_QUERY_NOT_FOUND)) {
+         return PERSISTED_QUERY_NOT_FOUND;
+      }
+      if (e.getMessage().contains(PERSISTED_QUERY_NOT_SUPPORTED)) {
+         return PERSISTED_QUERY_NOT_SUPPORTED;
+      }
+      return null;
+   }
 
-         bodyMap.add("files", fileEntity);
+   /***
+    * Reads the persisted query protocol error of a graphql response, if any.
+    * 
+    * @param body the graphql response
+    * @return the error or null
+    */
+   private static String getPersistedQueryError(JsonObject body) {
+      if (body == null || !(body.get("errors") instanceof JsonArray)) {
+         return null;
       }
-      HttpEntity<MultiValueMap<String, Object>> requestEntity = new HttpEntity<>(bodyMap, headers);
+      for (JsonElement error : body.get("errors").getAsJsonArray()) {
+         if (!error.isJsonObject()) {
+            continue;
+         }
+         JsonElement message = error.getAsJsonObject().get("message");
+         JsonElement extensions = error.getAsJsonObject().get("extensions");
+         JsonElement code = extensions != null && extensions.isJsonObject() ? extensions.getAsJsonObject().get("code")
+               : null;
+         if ((message != null && PERSISTED_QUERY_NOT_FOUND.equals(message.getAsString()))
+               || (code != null && "PERSISTED_QUERY_NOT_FOUND".equals(code.getAsString()))) {
+            return PERSISTED_QUERY_NOT_FOUND;
+         }
+         if ((message != null && PERSISTED_QUERY_NOT_SUPPORTED.equals(message.getAsString()))
+               || (code != null && "PERSISTED_QUERY_NOT_SUPPORTED".equals(code.getAsString()))) {
+            return PERSISTED_QUERY_NOT_SUPPORTED;
+         }
+      }
+      return null;
+   }
 
-      ResponseEntity<T> response = restTemplate.postForEntity(url, requestEntity, tClass);
+   /***
+    * Posts a graphql query with the non-blocking client.
+    *
+    * @param url      the graphql url
+    * @param query    the query
+    * @param retry    the number of retries left after a 401
+    * @param deadline the deadline of the call
+    * @param executor the executor of the caller, which runs the logins and reads
+    *                 the response
+    * @return the future response, failing with an HttpError when the service
+    *         answers with an error status
+    */
+   private CompletableFuture<JsonObject> postAsync(String url, GraphQlQuery query, int retry, Deadline deadline,
+         Executor executor) {
+      return this.getAuthorizationHeaderAsync(deadline, executor).thenCompose((authorization) -> {
+         HttpPost request = new HttpPost(url);
+         request.setHeader(HttpHeaders.ACCEPT, "application/json");
+         request.setHeader(HttpHeaders.USER_AGENT, this.userAgent);
+         request.setHeader(HttpHeaders.AUTHORIZATION, authorization);
+         request.setEntity(new StringEntity(JsonHelper.getGson().toJson(query), ContentType.APPLICATION_JSON));
+         return this.executeAsync(Service.TRACE, request, deadline);
+      }).thenComposeAsync((response) -> {
+         if (response.status == HttpURLConnection.HTTP_UNAUTHORIZED && retry > 0) {
+            // unauthenticated request might be because token expired
+            // clear token and retry
+            this.clearToken();
+            return this.postAsync(url, query, retry - 1, deadline, executor);
+         }
+         if (response.status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            return AsyncHelpers.failed(new HttpError(response.status, response.content, response.retryAfter));
+         }
+         JsonObject body = response.content != null ? JsonHelper.getGson().fromJson(response.content, JsonObject.class)
+               : null;
+         if (body == null) {
+            return AsyncHelpers.failed(new TraceSdkException("The graphql response is empty."));
+         }
+         return CompletableFuture.completedFuture(body);
+      }, executor);
+   }
+
+   /***
+    * Posts a graphql query without blocking and returns the raw response.
+    */
+   @FunctionalInterface
+   interface AsyncGraphQlPost {
+      CompletableFuture<JsonObject> post(GraphQlQuery query);
+   }
+
+   /***
+    * The non-blocking counterpart of sendPersistedQuery.
+    * 
+    * @param fullQuery the query with its document
+    * @param queryHash the SHA-256 hash of the document
+    * @param post      sends a query to the graphql endpoint
+    * @return the future response
+    */
+   CompletableFuture<JsonObject> sendPersistedQueryAsync(GraphQlQuery fullQuery, String queryHash,
+         AsyncGraphQlPost post) {
+      Map<String, Object> extensions = makePersistedQueryExtensions(queryHash);
+      GraphQlQuery hashedQuery = new GraphQlQuery(fullQuery.getVariables(), null);
+      hashedQuery.setExtensions(extensions);
+
+      return post.post(hashedQuery).handle((body, error) -> {
+         Throwable cause = error != null ? AsyncHelpers.unwrap(error) : null;
+         String persistedQueryError = cause != null ? getPersistedQueryErrorOf(cause) : getPersistedQueryError(body);
+         if (persistedQueryError == null) {
+            return cause != null ? AsyncHelpers.<JsonObject>failed(cause) : CompletableFuture.completedFuture(body);
+         }
+         if (PERSISTED_QUERY_NOT_SUPPORTED.equals(persistedQueryError)) {
+            // stop sending hashes to this server
+            this.persistedQueriesSupported = false;
+            return post.post(fullQuery);
+         }
+         // the server does not know the hash, send the document to register it
+         GraphQlQuery registeringQuery = new GraphQlQuery(fullQuery.getVariables(), fullQuery.getQuery());
+         registeringQuery.setExtensions(extensions);
+         return post.post(registeringQuery);
+      }).thenCompose((next) -> next);
+   }
 
-      return response.getBody();
+   /***
+    * Expects a list of fileWrappers, uploads the files encrypted and return
+    * response. The body is streamed: each file is encrypted while it is sent.
+    * 
+    * @param filesList
+    * @param opts      the fetch options, may be null
+    * @return
+    * @throws TraceSdkException
+    */
+   private <T> T uploadFiles(String url, List<FileWrapper> filesList, Class<T> tClass, FetchOptions opts)
+         throws TraceSdkException {
+      FetchOptions fetchOptions = opts != null ? opts : DefaultFetchOptions;
+      Deadline deadline = Deadline.after(fetchOptions.getTimeoutMillis());
+
+      HttpPost request = new HttpPost(url);
+      request.setHeader(HttpHeaders.ACCEPT, "application/json");
+      request.setHeader(HttpHeaders.USER_AGENT, this.userAgent);
+      request.setEntity(new MultipartFilesEntity(filesList));
+
+      String response;
+      try {
+         // the entity is repeatable, so a 401 can be retried
+         response = this.withRetries(Service.MEDIA, fetchOptions.getRetryPolicy(), false, deadline,
+               () -> this.fetch(Service.MEDIA, request, fetchOptions, fetchOptions.getRetry(), deadline));
+      } catch (HttpError e) {
+         throw new TraceSdkException("Error uploading files: " + e.toString());
+      }
+      return JsonHelper.fromJson(response, tClass);
    }
 
    /***
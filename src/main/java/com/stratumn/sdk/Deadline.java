@@ -0,0 +1,105 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+
+/***
+ * The time by which a call must complete, shared by all the requests it makes:
+ * the login, the retries and the file transfers. Each request only gets the
+ * time left. It is measured with System.nanoTime, so that a change of the
+ * system clock neither stretches nor cuts it.
+ */
+final class Deadline {
+
+   /***
+    * No deadline, the requests are only bounded by the default timeouts.
+    */
+   static final Deadline NONE = new Deadline(0);
+
+   // far enough for any call, and safe from overflow when added to nanoTime
+   private static final long MAX_TIMEOUT_NANOS = Long.MAX_VALUE / 4;
+
+   // the deadline in System.nanoTime units, only compared by difference
+   private final long atNanos;
+
+   private Deadline(long atNanos) {
+      this.atNanos = atNanos;
+   }
+
+   /***
+    * @param timeoutMillis the time allowed to the call, 0 for no deadline
+    * @return the deadline
+    */
+   static Deadline after(long timeoutMillis) {
+      if (timeoutMillis <= 0) {
+         return NONE;
+      }
+      long timeoutNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(timeoutMillis), MAX_TIMEOUT_NANOS);
+      return new Deadline(System.nanoTime() + timeoutNanos);
+   }
+
+   boolean isNone() {
+      return this == NONE;
+   }
+
+   /***
+    * @return the time left in millis, Long.MAX_VALUE when there is no deadline
+    */
+   long remainingMillis() {
+      if (this.isNone()) {
+         return Long.MAX_VALUE;
+      }
+      long remainingNanos = this.atNanos - System.nanoTime();
+      // rounded up, a call is not over while there is a fraction of a milli left
+      return remainingNanos <= 0 ? 0 : (remainingNanos + 999999) / 1000000;
+   }
+
+   /***
+    * @throws TraceSdkException when the deadline has passed
+    */
+   void check() throws TraceSdkException {
+      if (this.remainingMillis() == 0) {
+         throw new TraceSdkException("The deadline of the call was exceeded");
+      }
+   }
+
+   /***
+    * Shortens the timeouts of a request to the time left.
+    * 
+    * @param config the default request configuration
+    * @return the configuration of the request
+    */
+   RequestConfig bound(RequestConfig config) {
+      if (this.isNone()) {
+         return config;
+      }
+      // at least one milli, 0 would disable the timeout
+      int remaining = (int) Math.max(1, Math.min(Integer.MAX_VALUE, this.remainingMillis()));
+      return RequestConfig.copy(config)
+            .setConnectTimeout(bound(config.getConnectTimeout(), remaining))
+            .setConnectionRequestTimeout(bound(config.getConnectionRequestTimeout(), remaining))
+            .setSocketTimeout(bound(config.getSocketTimeout(), remaining))
+            .build();
+   }
+
+   // a timeout <= 0 means no timeout
+   private static int bound(int timeout, int remaining) {
+      return timeout > 0 ? Math.min(timeout, remaining) : remaining;
+   }
+}
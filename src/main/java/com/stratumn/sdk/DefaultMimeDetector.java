@@ -0,0 +1,120 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/***
+ * Recognizes the common types of attachments from their first bytes, then from
+ * their extension. Container formats (zip, ole) are told apart by extension.
+ */
+class DefaultMimeDetector implements MimeDetector {
+
+   private static final String ZIP = "application/zip";
+   private static final String OLE = "application/x-ole-storage";
+
+   private static final Map<String, String> EXTENSIONS = new HashMap<String, String>();
+
+   static {
+      String[][] types = { { "pdf", "application/pdf" }, { "png", "image/png" }, { "jpg", "image/jpeg" },
+            { "jpeg", "image/jpeg" }, { "gif", "image/gif" }, { "bmp", "image/bmp" }, { "webp", "image/webp" },
+            { "tif", "image/tiff" }, { "tiff", "image/tiff" }, { "svg", "image/svg+xml" }, { "zip", "application/zip" },
+            { "gz", "application/gzip" }, { "json", "application/json" }, { "xml", "application/xml" },
+            { "txt", "text/plain" }, { "csv", "text/csv" }, { "html", "text/html" }, { "htm", "text/html" },
+            { "md", "text/markdown" }, { "mp3", "audio/mpeg" }, { "mp4", "video/mp4" }, { "mov", "video/quicktime" },
+            { "doc", "application/msword" }, { "xls", "application/vnd.ms-excel" },
+            { "ppt", "application/vnd.ms-powerpoint" },
+            { "docx", "application/vnd.openxmlformats-officedocument.wordprocessingml.document" },
+            { "xlsx", "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet" },
+            { "pptx", "application/vnd.openxmlformats-officedocument.presentationml.presentation" },
+            { "odt", "application/vnd.oasis.opendocument.text" },
+            { "ods", "application/vnd.oasis.opendocument.spreadsheet" } };
+      for (String[] type : types) {
+         EXTENSIONS.put(type[0], type[1]);
+      }
+   }
+
+   @Override
+   public String detect(Path file, byte[] head) {
+      String byExtension = EXTENSIONS.get(extension(file));
+      String byContent = fromMagic(head);
+      if (byContent == null)
+         return byExtension;
+      // zip and ole files are containers for the office formats
+      if (ZIP.equals(byContent) || OLE.equals(byContent))
+         return byExtension != null ? byExtension : ZIP.equals(byContent) ? ZIP : null;
+      return byContent;
+   }
+
+   private static String extension(Path file) {
+      Path fileName = file.getFileName();
+      String name = fileName == null ? "" : fileName.toString();
+      int dot = name.lastIndexOf('.');
+      return dot == -1 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+   }
+
+   private static boolean startsWith(byte[] head, int offset, int... magic) {
+      if (head.length < offset + magic.length)
+         return false;
+      for (int i = 0; i < magic.length; i++) {
+         if ((head[offset + i] & 0xff) != magic[i])
+            return false;
+      }
+      return true;
+   }
+
+   private static boolean startsWith(byte[] head, int offset, String magic) {
+      byte[] bytes = magic.getBytes(StandardCharsets.US_ASCII);
+      int[] values = new int[bytes.length];
+      for (int i = 0; i < bytes.length; i++) {
+         values[i] = bytes[i];
+      }
+      return startsWith(head, offset, values);
+   }
+
+   private static String fromMagic(byte[] head) {
+      if (startsWith(head, 0, "%PDF-"))
+         return "application/pdf";
+      if (startsWith(head, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A))
+         return "image/png";
+      if (startsWith(head, 0, 0xFF, 0xD8, 0xFF))
+         return "image/jpeg";
+      if (startsWith(head, 0, "GIF87a") || startsWith(head, 0, "GIF89a"))
+         return "image/gif";
+      if (startsWith(head, 0, "RIFF") && startsWith(head, 8, "WEBP"))
+         return "image/webp";
+      if (startsWith(head, 0, 'I', 'I', 42, 0) || startsWith(head, 0, 'M', 'M', 0, 42))
+         return "image/tiff";
+      if (startsWith(head, 0, "BM") && head.length >= 14)
+         return "image/bmp";
+      if (startsWith(head, 0, 'P', 'K', 3, 4) || startsWith(head, 0, 'P', 'K', 5, 6))
+         return ZIP;
+      if (startsWith(head, 0, 0xD0, 0xCF, 0x11, 0xE0, 0xA1, 0xB1, 0x1A, 0xE1))
+         return OLE;
+      if (startsWith(head, 0, 0x1F, 0x8B))
+         return "application/gzip";
+      if (startsWith(head, 4, "ftyp"))
+         return startsWith(head, 8, "qt") ? "video/quicktime" : "video/mp4";
+      if (startsWith(head, 0, "ID3"))
+         return "audio/mpeg";
+      return null;
+   }
+
+}
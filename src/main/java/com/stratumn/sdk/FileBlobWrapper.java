@@ -15,6 +15,8 @@ See the License for the specific language governing permissions and
 */
 package com.stratumn.sdk;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 
 import com.stratumn.sdk.model.file.FileInfo;
@@ -49,6 +51,22 @@ public class FileBlobWrapper extends FileWrapper {
 
   }
 
+  @Override
+  public InputStream encryptedStream() throws TraceSdkException {
+    if (!this.blob.hasArray()) {
+      return super.encryptedStream();
+    }
+    // encrypt the blob as it is read rather than in a second buffer
+    return super.encryptStream(new ByteArrayInputStream(this.blob.array(),
+        this.blob.arrayOffset() + this.blob.position(), this.blob.remaining()));
+  }
+
+  @Override
+  public String contentDigest() throws TraceSdkException {
+    // the blob is the plain content of the file to upload
+    return digest(this.blob);
+  }
+
   @Override
   public ByteBuffer decryptedData() throws TraceSdkException {
     return super.decryptData(this.blob);
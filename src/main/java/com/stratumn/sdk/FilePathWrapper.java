@@ -17,13 +17,12 @@ package com.stratumn.sdk;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 
 import com.stratumn.sdk.model.file.FileInfo;
-import org.apache.tika.Tika;
 
 /**
  * The implementation of a FileWrapper using a file path to point to the actual
@@ -33,12 +32,26 @@ public class FilePathWrapper extends FileWrapper {
 
    private Path filePath;
 
+   /**
+    * The info of the file, computed on first use.
+    */
+   private transient volatile FileInfo fileInfo;
+
    public FilePathWrapper(Path fp) {
       super();
       this.filePath = fp;
    }
 
    public FileInfo info() {
+      FileInfo info = this.fileInfo;
+      if (info == null) {
+         info = this.computeInfo();
+         this.fileInfo = info;
+      }
+      return info;
+   }
+
+   private FileInfo computeInfo() {
       File file = filePath.toFile();
       if (!file.exists()) {
          throw new IllegalArgumentException("Error while loading file " + file.getAbsolutePath());
@@ -49,13 +62,7 @@ public class FilePathWrapper extends FileWrapper {
       }
 
       final Long size = file.length();
-      Tika tika = new Tika();
-      String mimetype = null;
-      try {
-         mimetype = tika.detect(file);
-      } catch (Exception e) {
-
-      }
+      final String mimetype = MimeDetectors.detect(filePath);
       final String name = file.getName();
 
       FileInfo fileInfo = new FileInfo(name, size, mimetype, null);
@@ -70,6 +77,7 @@ public class FilePathWrapper extends FileWrapper {
 
    public void setFilePath(Path filePath) {
       this.filePath = filePath;
+      this.fileInfo = null;
    }
 
    private ByteBuffer data() throws TraceSdkException {
@@ -77,18 +85,7 @@ public class FilePathWrapper extends FileWrapper {
       if (!file.exists() || !file.isFile()) {
          throw new IllegalArgumentException("File not found " + file.getAbsolutePath());
       }
-      ByteBuffer buffer = null;
-      try (RandomAccessFile rFile = new RandomAccessFile(filePath.toFile(), "r");
-            FileChannel inChannel = rFile.getChannel();) {
-         long fileSize = inChannel.size();
-         buffer = ByteBuffer.allocate((int) fileSize);
-         inChannel.read(buffer);
-         buffer.rewind();
-      } catch (IOException e) {
-         throw new TraceSdkException("Error reading file ", e);
-      }
-
-      return buffer;
+      return readFile(file);
    }
 
    @Override
@@ -101,4 +98,30 @@ public class FilePathWrapper extends FileWrapper {
       return super.encryptData(data());
    }
 
+   @Override
+   public String contentDigest() throws TraceSdkException {
+      File file = filePath.toFile();
+      if (!file.exists() || !file.isFile()) {
+         throw new IllegalArgumentException("File not found " + file.getAbsolutePath());
+      }
+      try {
+         return digest(Files.newInputStream(filePath));
+      } catch (IOException e) {
+         throw new TraceSdkException("Error reading file ", e);
+      }
+   }
+
+   @Override
+   public InputStream encryptedStream() throws TraceSdkException {
+      File file = filePath.toFile();
+      if (!file.exists() || !file.isFile()) {
+         throw new IllegalArgumentException("File not found " + file.getAbsolutePath());
+      }
+      try {
+         return super.encryptStream(Files.newInputStream(filePath));
+      } catch (IOException e) {
+         throw new TraceSdkException("Error reading file ", e);
+      }
+   }
+
 }
@@ -15,15 +15,10 @@ See the License for the specific language governing permissions and
 */
 package com.stratumn.sdk;
 
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map.Entry;
 import java.time.format.DateTimeFormatter;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.stratumn.canonicaljson.CanonicalJson;
 import com.stratumn.chainscript.utils.JsonHelper;
+import com.stratumn.sdk.ObjectShape.Kind;
 import com.stratumn.sdk.model.file.FileInfo;
 import com.stratumn.sdk.model.file.MediaRecord;
 import com.stratumn.sdk.model.misc.Identifiable;
@@ -129,56 +124,21 @@ public class FileRecord implements Identifiable {
    }
 
    /**
-    * Test if the object is a FileRecord it is a FileRecord if it is an instance of
-    * FileRecord or if It can be converted to a FileRecord .
-    * 
+    * Tests that an object is a FileRecord. Besides FileRecord instances, any
+    * json like object (JsonObject, Map, POJO or json string) carrying a string
+    * digest and name and a numeric size is a file record. The mimetype is
+    * optional since records of files of unknown type have none; the additional
+    * fields set by the media API are ignored. The object is never serialized.
+    *
     * @param obj the object to test.
     */
    public static Boolean isFileRecord(Object obj) {
-
-      String json = null;
-      boolean isFileRecord = false;
-      try {
-
-         if (obj instanceof FileRecord)
-            isFileRecord = true;
-         else if (obj != null) {
-            if (obj instanceof JsonObject)
-               json = JsonHelper.toCanonicalJson(obj);
-            else if (obj instanceof String)// assume json
-               json = CanonicalJson.canonizalize((String) obj);
-            else
-               json = JsonHelper.toCanonicalJson(obj);
-            if (json != null) {
-               // attempt to generate FileRecord from json.
-               json = removeAdditionalFields(json);
-
-               Object ob = JsonHelper.fromJson(json, FileRecord.class);
-               String json2 = JsonHelper.toCanonicalJson(ob);
-               if (json2.equalsIgnoreCase(json))
-                  isFileRecord = true;
-            }
-         }
-      } catch (Exception ex) { // ignore
-      }
-      return isFileRecord;
-   }
-
-   // Since we do a canonicalized JSON string comparison to check if the object is
-   // a FileRecord above, we need to remove the additional fields that can be added
-   // by the media API.
-   private static String removeAdditionalFields(String json) {
-      List<String> recordFields = Arrays.asList(new String[] { "id", "key", "digest", "name", "mimetype", "size" });
-      JsonObject o = JsonHelper.fromJson(json, JsonObject.class);
-
-      for (Entry<String, JsonElement> e : o.entrySet()) {
-         if (!recordFields.contains(e.getKey())) {
-            o.remove(e.getKey());
-         }
-      }
-
-      return JsonHelper.toJson(o);
-
+      if (obj instanceof FileRecord)
+         return true;
+      ObjectShape shape = ObjectShape.of(obj);
+      return shape != null && shape.has("digest", Kind.STRING) && shape.has("name", Kind.STRING)
+            && shape.hasOptional("mimetype", Kind.STRING) && shape.has("size", Kind.NUMBER)
+            && shape.hasOptional("key", Kind.STRING) && shape.hasOptional("createdAt", Kind.STRING);
    }
 
    @Override
@@ -15,21 +15,31 @@ See the License for the specific language governing permissions and
 */
 package com.stratumn.sdk;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
-import com.google.gson.JsonObject;
-import com.stratumn.canonicaljson.CanonicalJson;
 import com.stratumn.chainscript.utils.JsonHelper;
+import com.stratumn.sdk.ObjectShape.Kind;
 import com.stratumn.sdk.model.file.FileInfo;
 import com.stratumn.sdk.model.misc.Identifiable;
 
@@ -45,8 +55,26 @@ public abstract class FileWrapper implements Identifiable {
     */
    private String id = UUID.randomUUID().toString();
 
+   /**
+    * The fields holding the data of each kind of file wrapper, and all the
+    * fields a serialized file wrapper can have.
+    */
+   private static final List<String> WRAPPER_SOURCES = Arrays.asList("blob", "filePath", "file");
+   private static final Set<String> WRAPPER_FIELDS = new HashSet<String>(
+         Arrays.asList("id", "key", "blob", "fileInfo", "filePath", "file"));
+
+   /**
+    * Room kept below the largest array size, for the encryption overhead.
+    */
+   private static final int SIZE_MARGIN = 64;
+
    private AesKey key;
 
+   /**
+    * Encrypt in the segmented format of AesKey, set by the sdk options.
+    */
+   private transient boolean segmentedEncryption;
+
    @Override
    public String getId() {
       return this.id;
@@ -70,8 +98,8 @@ public abstract class FileWrapper implements Identifiable {
    protected ByteBuffer encryptData(ByteBuffer data) throws TraceSdkException {
       if (this.key == null)
          return data;
-      try {         
-         data = this.key.encrypt(data);
+      try {
+         data = this.segmentedEncryption ? this.key.encryptSegmented(data) : this.key.encrypt(data);
       } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException 
             | NoSuchAlgorithmException | NoSuchPaddingException e) {
          throw new TraceSdkException("Failed to encrypt file data", e);
@@ -88,7 +116,12 @@ public abstract class FileWrapper implements Identifiable {
       if (this.key == null)
          return data;
       try {
-         data = this.key.decrypt(data);
+         // the data may be a memory mapped file of the media cache: the
+         // plaintext goes on the heap rather than in the direct memory
+         ByteBuffer plaintext = ByteBuffer.allocate(AesKey.decryptedSize(data.remaining()));
+         this.key.decrypt(data, plaintext);
+         plaintext.flip();
+         data = plaintext;
       } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException |InvalidAlgorithmParameterException
             | NoSuchAlgorithmException | NoSuchPaddingException e) {
          throw new TraceSdkException("Failed to decrypt file data", e);
@@ -97,6 +130,31 @@ public abstract class FileWrapper implements Identifiable {
       return data;
    }
 
+   /***
+    * Wraps a stream of the file data with the encryption of the wrapper.
+    * 
+    * @param data
+    * @return
+    * @throws TraceSdkException
+    */
+   protected InputStream encryptStream(InputStream data) throws TraceSdkException {
+      if (this.key == null)
+         return data;
+      if (this.segmentedEncryption)
+         return this.key.encryptSegmented(data);
+      try {
+         return this.key.encrypt(data);
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException | NoSuchAlgorithmException
+            | NoSuchPaddingException e) {
+         try {
+            data.close();
+         } catch (IOException ioe) {
+            e.addSuppressed(ioe);
+         }
+         throw new TraceSdkException("Failed to encrypt file data", e);
+      }
+   }
+
    /***
     * Add the key info to the filewrapper
     * 
@@ -128,6 +186,114 @@ public abstract class FileWrapper implements Identifiable {
 
    public abstract ByteBuffer decryptedData() throws TraceSdkException;
 
+   /**
+    * The encrypted file data as a stream, in the format of encryptedData. The
+    * wrappers reading from disk encrypt the file as it is read, so it never has
+    * to fit in memory. The caller closes the stream.
+    * 
+    * @throws TraceSdkException
+    */
+   public InputStream encryptedStream() throws TraceSdkException {
+      ByteBuffer data = this.encryptedData();
+      if (data.hasArray()) {
+         return new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining());
+      }
+      byte[] bytes = new byte[data.remaining()];
+      data.duplicate().get(bytes);
+      return new ByteArrayInputStream(bytes);
+   }
+
+   /***
+    * The digest of the file content before encryption, used to recognize a file
+    * that was already uploaded. Wrappers that cannot compute it return null and
+    * are always uploaded.
+    * 
+    * @return the base64 SHA-256 of the content or null
+    * @throws TraceSdkException
+    */
+   public String contentDigest() throws TraceSdkException {
+      return null;
+   }
+
+   /***
+    * @param segmentedEncryption encrypt in the segmented format of AesKey
+    */
+   void setSegmentedEncryption(boolean segmentedEncryption) {
+      this.segmentedEncryption = segmentedEncryption;
+   }
+
+   /***
+    * @return true when the file is encrypted before it is uploaded
+    */
+   boolean isEncrypted() {
+      return this.key != null;
+   }
+
+   /***
+    * @param data
+    * @return the base64 SHA-256 of the data
+    * @throws TraceSdkException
+    */
+   protected static String digest(ByteBuffer data) throws TraceSdkException {
+      MessageDigest md = sha256();
+      md.update(data.duplicate());
+      return Base64.getEncoder().encodeToString(md.digest());
+   }
+
+   /***
+    * Digests a stream, a buffer at a time, and closes it.
+    * 
+    * @param data
+    * @return the base64 SHA-256 of the stream
+    * @throws TraceSdkException
+    */
+   protected static String digest(InputStream data) throws TraceSdkException {
+      MessageDigest md = sha256();
+      byte[] buffer = new byte[AesKey.STREAM_BUFFER_SIZE];
+      try (InputStream in = data) {
+         int n;
+         while ((n = in.read(buffer)) != -1) {
+            md.update(buffer, 0, n);
+         }
+      } catch (IOException e) {
+         throw new TraceSdkException("Error reading file ", e);
+      }
+      return Base64.getEncoder().encodeToString(md.digest());
+   }
+
+   private static MessageDigest sha256() throws TraceSdkException {
+      try {
+         return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+         throw new TraceSdkException("Failed to digest file data", e);
+      }
+   }
+
+   /***
+    * Reads a whole file in a buffer.
+    * 
+    * @param file
+    * @return
+    * @throws TraceSdkException
+    */
+   protected static ByteBuffer readFile(File file) throws TraceSdkException {
+      try (RandomAccessFile rFile = new RandomAccessFile(file, "r"); FileChannel inChannel = rFile.getChannel();) {
+         long fileSize = inChannel.size();
+         if (fileSize > Integer.MAX_VALUE - SIZE_MARGIN) {
+            throw new TraceSdkException(
+                  "File " + file.getAbsolutePath() + " is too large to be loaded in memory, use encryptedStream");
+         }
+         ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+         // a single read may stop short of the end of the file
+         while (buffer.hasRemaining() && inChannel.read(buffer) != -1) {
+         }
+         buffer.flip();
+         return buffer;
+      } catch (IOException e) {
+         throw new TraceSdkException("Error reading file ", e);
+      }
+   }
+
    /**
     * Creates a FileWrapper from a browser file representation.
     *
@@ -167,36 +333,26 @@ public abstract class FileWrapper implements Identifiable {
    }
 
    /**
-    * Tests that an object is a FileWrapper.
+    * Tests that an object is a FileWrapper. Besides FileWrapper instances, a
+    * json like object (JsonObject, Map, POJO or json string) is a serialized
+    * file wrapper when it holds exactly one of blob, filePath or file and no
+    * field unknown to the file wrappers. The object is never serialized.
     *
     * @param obj the object to test.
     */
    public static Boolean isFileWrapper(Object obj) {
-
-      String json = null;
-      boolean isFileWrapper = false;
-      try {
-
-         if (obj instanceof FileWrapper)
-            isFileWrapper = true;
-         else if (obj != null) {
-            if (obj instanceof JsonObject)
-               json = JsonHelper.toCanonicalJson(obj);
-            else if (obj instanceof String)// assume json
-               json = CanonicalJson.canonizalize((String) obj);
-            else
-               json = JsonHelper.toCanonicalJson(obj);
-            if (json != null) {
-               // attempt to generate FileWrapper from json.
-               Object ob = JsonHelper.fromJson(json, FileWrapper.class);
-               String json2 = JsonHelper.toCanonicalJson(ob);
-               if (json2.equalsIgnoreCase(json))
-                  isFileWrapper = true;
-            }
-         }
-      } catch (Exception ex) { // ignore
+      if (obj instanceof FileWrapper)
+         return true;
+      ObjectShape shape = ObjectShape.of(obj);
+      if (shape == null || !shape.hasOptional("id", Kind.STRING) || !shape.hasOptional("fileInfo", Kind.OBJECT)
+            || !WRAPPER_FIELDS.containsAll(shape.keys()))
+         return false;
+      int sources = 0;
+      for (String source : WRAPPER_SOURCES) {
+         if (shape.has(source))
+            sources++;
       }
-      return isFileWrapper;
+      return sources == 1;
    }
 
    @Override
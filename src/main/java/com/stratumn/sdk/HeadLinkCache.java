@@ -0,0 +1,87 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.stratumn.chainscript.ChainscriptException;
+
+/***
+ * Bounded LRU cache of the last known head link of each trace, used as the
+ * parent of the next link instead of querying the head of the trace.
+ */
+class HeadLinkCache {
+
+   private final LinkedHashMap<String, TraceLink<?>> links;
+
+   private final int capacity;
+
+   /***
+    * @param capacity the maximum number of traces kept, 0 disables the cache
+    */
+   HeadLinkCache(int capacity) {
+      this.capacity = capacity;
+      this.links = new LinkedHashMap<String, TraceLink<?>>(16, 0.75f, true) {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, TraceLink<?>> eldest) {
+            return size() > HeadLinkCache.this.capacity;
+         }
+      };
+   }
+
+   /***
+    * @param traceId
+    * @return the cached head link of the trace or null
+    */
+   @SuppressWarnings("unchecked")
+   synchronized <TLinkData> TraceLink<TLinkData> get(String traceId) {
+      return (TraceLink<TLinkData>) this.links.get(traceId);
+   }
+
+   /***
+    * Records the head link of its trace. A link older than the cached one, as
+    * seen when a read races with a write, is ignored.
+    * 
+    * @param headLink
+    * @throws ChainscriptException
+    */
+   void put(TraceLink<?> headLink) throws ChainscriptException {
+      if (this.capacity <= 0)
+         return;
+      String traceId = headLink.traceId();
+      double priority = headLink.priority();
+      synchronized (this) {
+         TraceLink<?> cached = this.links.get(traceId);
+         if (cached == null || cached.priority() <= priority)
+            this.links.put(traceId, headLink);
+      }
+   }
+
+   /***
+    * Evicts the head link of a trace if it is still the cached one.
+    * 
+    * @param traceId
+    * @param headLink
+    * @return true if the link was evicted
+    */
+   synchronized boolean evict(String traceId, TraceLink<?> headLink) {
+      return this.links.remove(traceId, headLink);
+   }
+
+}
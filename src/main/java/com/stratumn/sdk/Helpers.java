@@ -17,8 +17,6 @@ package com.stratumn.sdk;
 
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.security.InvalidKeyException;
 import java.security.InvalidParameterException;
 import java.security.NoSuchAlgorithmException;
@@ -38,7 +36,9 @@ import java.util.regex.Pattern;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.stratumn.chainscript.Constants;
 import com.stratumn.chainscript.utils.CryptoUtils;
 import com.stratumn.chainscript.utils.JsonHelper;
@@ -91,6 +91,23 @@ public class Helpers {
     */
    public static String makeAuthPayload(PrivateKey key) throws UnsupportedEncodingException, InvalidKeyException,
          NoSuchAlgorithmException, SignatureException, InvalidKeySpecException {
+      return makeAuthPayload(key, CryptoUtils.encodePublicKey(CryptoUtils.getPublicKeyFromPrivateKey(key)));
+   }
+
+   /**
+    * Generates the payload of a login with a signing key, whose public key was
+    * already derived and encoded.
+    * 
+    * @param key          the signing private key
+    * @param publicKeyPem the PEM encoded public key of the signing key
+    * @return
+    * @throws UnsupportedEncodingException
+    * @throws SignatureException
+    * @throws NoSuchAlgorithmException
+    * @throws InvalidKeyException
+    */
+   public static String makeAuthPayload(PrivateKey key, String publicKeyPem) throws UnsupportedEncodingException,
+         InvalidKeyException, NoSuchAlgorithmException, SignatureException {
       JsonObject timeJson = new JsonObject();
       long nowInSeconds = nowInSeconds();
       timeJson.addProperty("iat", nowInSeconds);
@@ -101,7 +118,6 @@ public class Helpers {
       byte[] message = timeJson.toString().getBytes(Constants.UTF8);
       // sign the message
       String signature = CryptoUtils.sign(key, message);
-      String publicKeyPem = CryptoUtils.encodePublicKey(CryptoUtils.getPublicKeyFromPrivateKey(key));
 
       // convert message , signature and public key to base64
       String messagebase64 = Base64.getEncoder().encodeToString(message);
@@ -183,7 +199,13 @@ public class Helpers {
    @SuppressWarnings("unchecked")
    private static <T, V extends Identifiable> void extractObjectsImpl(T data, Object parent, String path,
          Map<String, Property<V>> idToObjectMap, Predicate<T> predicate, Function<T, V> reviver) {
-      if (data == null)
+      // leaves can neither be nor contain files
+      if (data == null || data instanceof JsonPrimitive || data instanceof JsonNull || data instanceof Number
+            || data instanceof Boolean || data instanceof Character || data instanceof Enum)
+         return;
+      // neither are objects whose class cannot hold files
+      if (!(data instanceof JsonElement || data instanceof Map || data instanceof List || data.getClass().isArray()
+            || ClassFields.isJavaClass(data.getClass()) || ClassFields.of(data.getClass()).canHoldFiles()))
          return;
       // if the predicate is true, then this data should be extracted
       if (predicate.test(data)) {
@@ -226,17 +248,12 @@ public class Helpers {
             extractObjectsImpl(value, data, path + "[" + idx + "]", idToObjectMap, predicate, reviver);
             idx++;
          }
-      } else if (data instanceof Object && !data.getClass().getName().startsWith("java.")) {
+      } else if (data instanceof Object && !ClassFields.isJavaClass(data.getClass())) {
          // if it is an object, iterate through each entry
          // and extract objects recursively
-         Class<?> clazz = data.getClass();
-         Field[] fields = clazz.getDeclaredFields();
-         for (Field field : fields) {
-            if (field.getType().isPrimitive() || field.isEnumConstant() || field.isSynthetic()
-                  || Modifier.isStatic(field.getModifiers()))
+         for (ClassFields.Accessor field : ClassFields.of(data.getClass()).accessors()) {
+            if (field.getType().isPrimitive())
                continue;
-            if (!field.isAccessible())
-               field.setAccessible(true);
             T value;
             try {
                value = (T) field.get(data);
@@ -300,9 +317,9 @@ public class Helpers {
                // write the object to the field
                // in java there is currently no way of changing the type of a field. A field
                // has to be of type identifiable
-               Field field = parent.getClass().getDeclaredField(key);
-               if (!field.isAccessible())
-                  field.setAccessible(true);
+               ClassFields.Accessor field = ClassFields.of(parent.getClass()).get(key);
+               if (field == null)
+                  throw new NoSuchFieldException(key);
                if (Map.class.isAssignableFrom(field.getType())) { // convert the value to map~
 
                } else {
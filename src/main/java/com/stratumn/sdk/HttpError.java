@@ -22,12 +22,23 @@ public class HttpError extends Exception {
    private static final long serialVersionUID = -1942318828228006196L;
    private int status;
     private String message;
+    private String retryAfter;
   
     public HttpError(int status, String message) {
       this.status = status;
       this.message = message;
     }
 
+    /***
+     * @param status     the http status
+     * @param message    the response body
+     * @param retryAfter the Retry-After header of the response
+     */
+    public HttpError(int status, String message, String retryAfter) {
+      this(status, message);
+      this.retryAfter = retryAfter;
+    }
+
     public String toString() {
         return "Http error [ Status : " + this.status + " Message : "+message+" ]";
      }
@@ -45,6 +56,13 @@ public class HttpError extends Exception {
      public String getMessage(){
          return this.message;
     }
+
+    /***
+     * @return the Retry-After header of the response, if any
+     */
+    public String getRetryAfter(){
+        return this.retryAfter;
+    }
     
   }
   
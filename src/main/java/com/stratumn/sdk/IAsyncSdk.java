@@ -0,0 +1,59 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.stratumn.sdk.model.trace.AddTagsToTraceInput;
+import com.stratumn.sdk.model.trace.AppendLinkInput;
+import com.stratumn.sdk.model.trace.GetTraceDetailsInput;
+import com.stratumn.sdk.model.trace.GetTraceStateInput;
+import com.stratumn.sdk.model.trace.NewTraceInput;
+import com.stratumn.sdk.model.trace.PaginationInfo;
+import com.stratumn.sdk.model.trace.SearchTracesFilter;
+import com.stratumn.sdk.model.trace.TraceDetails;
+import com.stratumn.sdk.model.trace.TraceState;
+import com.stratumn.sdk.model.trace.TracesState;
+
+/**
+ * The asynchronous counterpart of ISdk. Every call returns immediately and the
+ * returned future completes with the result, or exceptionally with the
+ * TraceSdkException raised by the call.
+ */
+public interface IAsyncSdk<TState> {
+
+    public <TLinkData> CompletableFuture<TraceState<TState, TLinkData>> newTrace(NewTraceInput<TLinkData> input);
+
+    public <TLinkData> CompletableFuture<TraceState<TState, TLinkData>> appendLink(AppendLinkInput<TLinkData> input);
+
+    public <TLinkData> CompletableFuture<TraceState<TState, TLinkData>> getTraceState(GetTraceStateInput input);
+
+    public <TLinkData> CompletableFuture<TraceState<TState, TLinkData>> getTraceState(GetTraceStateInput input,
+            Class<TLinkData> classOfTLinkData);
+
+    public <TLinkData> CompletableFuture<TraceDetails<TLinkData>> getTraceDetails(GetTraceDetailsInput input);
+
+    public <TLinkData> CompletableFuture<TracesState<TState, TLinkData>> searchTraces(SearchTracesFilter filter,
+            PaginationInfo paginationInfo);
+
+    public <TLinkData> CompletableFuture<TracesState<TState, TLinkData>> searchTraces(SearchTracesFilter filter,
+            PaginationInfo paginationInfo, Class<TLinkData> classOfTLinkData);
+
+    public <TLinkData> CompletableFuture<TraceState<TState, TLinkData>> addTagsToTrace(AddTagsToTraceInput input);
+
+    public <TLinkData> CompletableFuture<TraceState<TState, TLinkData>> addTagsToTrace(AddTagsToTraceInput input,
+            Class<TLinkData> classOfTLinkData);
+}
@@ -0,0 +1,210 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Disk cache of the downloaded media files, still encrypted, keyed by their
+ * digest. Files are written under a temporary name then renamed, so several
+ * processes can share the directory and never see a partial file. The least
+ * recently used files are removed once the cache grows over its size; the
+ * modification time of a file records its last use.
+ */
+class MediaCache {
+
+   private static final String PART_SUFFIX = ".part";
+
+   private static final long STALE_PART_MILLIS = 24 * 60 * 60 * 1000L;
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final Path dir;
+
+   private final long maxBytes;
+
+   // the size of the cache as last seen, other processes may have changed it
+   private final AtomicLong size = new AtomicLong();
+
+   /***
+    * @param dir      the cache directory, created if needed
+    * @param maxBytes the size above which files are evicted
+    * @throws IOException
+    */
+   MediaCache(Path dir, long maxBytes) throws IOException {
+      this.dir = Files.createDirectories(dir);
+      this.maxBytes = maxBytes;
+      this.evict();
+   }
+
+   /***
+    * @param size
+    * @return true when a file of that size can be kept in the cache
+    */
+   boolean accepts(long size) {
+      return size >= 0 && size <= this.maxBytes;
+   }
+
+   /***
+    * Maps a cached file in memory.
+    * 
+    * @param digest
+    * @return the read only content of the file, or null when it is not cached
+    * @throws IOException
+    */
+   ByteBuffer map(String digest) throws IOException {
+      Path file = this.fileOf(digest);
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+         // the mapping stays valid once the channel is closed
+         ByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         this.touch(file);
+         return content;
+      } catch (NoSuchFileException e) {
+         return null;
+      }
+   }
+
+   /***
+    * Opens a cached file.
+    * 
+    * @param digest
+    * @return the content of the file, or null when it is not cached
+    * @throws IOException
+    */
+   InputStream open(String digest) throws IOException {
+      Path file = this.fileOf(digest);
+      try {
+         InputStream content = Files.newInputStream(file);
+         this.touch(file);
+         return content;
+      } catch (NoSuchFileException e) {
+         return null;
+      }
+   }
+
+   /***
+    * Stores a file, replacing any cached copy, then evicts the least recently
+    * used files if the cache is over its size.
+    * 
+    * @param digest
+    * @param content
+    * @throws IOException
+    */
+   void store(String digest, InputStream content) throws IOException {
+      Path file = this.fileOf(digest);
+      Path part = Files.createTempFile(this.dir, file.getFileName().toString(), PART_SUFFIX);
+      long written = 0;
+      try {
+         try (OutputStream out = Files.newOutputStream(part)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = content.read(buffer)) != -1) {
+               out.write(buffer, 0, n);
+               written += n;
+            }
+         }
+         Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+         Files.deleteIfExists(part);
+         throw e;
+      }
+      if (this.size.addAndGet(written) > this.maxBytes)
+         this.evict();
+   }
+
+   /***
+    * Removes the least recently used files until the cache fits in its size.
+    * Files being written by other processes are left alone.
+    * 
+    * @throws IOException
+    */
+   private synchronized void evict() throws IOException {
+      List<Path> files = new ArrayList<Path>();
+      List<BasicFileAttributes> attributes = new ArrayList<BasicFileAttributes>();
+      long total = 0;
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir)) {
+         for (Path file : stream) {
+            try {
+               BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+               if (!attrs.isRegularFile())
+                  continue;
+               if (file.getFileName().toString().endsWith(PART_SUFFIX)) {
+                  // left behind by a process that died while writing it
+                  if (attrs.lastModifiedTime().toMillis() < System.currentTimeMillis() - STALE_PART_MILLIS)
+                     Files.deleteIfExists(file);
+                  continue;
+               }
+               files.add(file);
+               attributes.add(attrs);
+               total += attrs.size();
+            } catch (IOException e) {
+               // evicted by another process
+            }
+         }
+      }
+      if (total > this.maxBytes) {
+         List<Integer> order = new ArrayList<Integer>();
+         for (int i = 0; i < files.size(); i++) {
+            order.add(i);
+         }
+         order.sort(Comparator.comparing((Integer i) -> attributes.get(i).lastModifiedTime()));
+         for (int i : order) {
+            if (total <= this.maxBytes)
+               break;
+            try {
+               Files.deleteIfExists(files.get(i));
+               total -= attributes.get(i).size();
+            } catch (IOException e) {
+               // still in use on some platforms, it will go on a later pass
+            }
+         }
+      }
+      this.size.set(total);
+   }
+
+   private void touch(Path file) {
+      try {
+         Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      } catch (IOException e) {
+         // the file was read, only its rank in the eviction order is lost
+      }
+   }
+
+   /***
+    * The digests are multihashes in hex, anything else is escaped so that a
+    * digest cannot point outside of the cache directory.
+    */
+   private Path fileOf(String digest) {
+      return this.dir.resolve(digest.replaceAll("[^A-Za-z0-9_-]", "_"));
+   }
+
+}
@@ -0,0 +1,37 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Detects the mime type of the files attached to links. Implementations are
+ * found with the java ServiceLoader (META-INF/services/com.stratumn.sdk.MimeDetector)
+ * or registered with MimeDetectors.register, and are asked before the built-in
+ * detection.
+ */
+public interface MimeDetector {
+
+   /**
+    * @param file the file to inspect
+    * @param head the first bytes of the file, up to MimeDetectors.HEAD_LENGTH
+    * @return the mime type, or null to let the next detector decide
+    * @throws IOException
+    */
+   String detect(Path file, byte[] head) throws IOException;
+
+}
@@ -0,0 +1,133 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The mime type detection of the file wrappers. The registered detectors and
+ * those found by the ServiceLoader are asked first, then the built-in
+ * detection of the common types, then Tika if tika-core is on the classpath.
+ * A file of unknown type is application/octet-stream.
+ */
+public final class MimeDetectors {
+
+   /**
+    * The number of bytes of the file given to the detectors.
+    */
+   public static final int HEAD_LENGTH = 64;
+
+   /**
+    * The type of the files no detector knows, as Tika reports them.
+    */
+   public static final String UNKNOWN_MIMETYPE = "application/octet-stream";
+
+   private static final List<MimeDetector> DETECTORS = new CopyOnWriteArrayList<MimeDetector>();
+
+   static {
+      for (MimeDetector detector : ServiceLoader.load(MimeDetector.class)) {
+         DETECTORS.add(detector);
+      }
+   }
+
+   private static final MimeDetector DEFAULT_DETECTOR = new DefaultMimeDetector();
+
+   /***
+    * Holds the Tika fallback, created on first use.
+    */
+   private static final class TikaHolder {
+      private static final MimeDetector TIKA = load();
+
+      private static MimeDetector load() {
+         try {
+            Class.forName("org.apache.tika.Tika", false, MimeDetectors.class.getClassLoader());
+            return new TikaMimeDetector();
+         } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+         }
+      }
+   }
+
+   private MimeDetectors() {
+   }
+
+   /**
+    * Registers a detector, asked before the ones already registered.
+    *
+    * @param detector
+    */
+   public static void register(MimeDetector detector) {
+      if (detector == null)
+         throw new IllegalArgumentException("detector cannot be null");
+      DETECTORS.add(0, detector);
+   }
+
+   /**
+    * Removes a registered detector.
+    *
+    * @param detector
+    * @return true if the detector was registered
+    */
+   public static boolean unregister(MimeDetector detector) {
+      return DETECTORS.remove(detector);
+   }
+
+   /**
+    * @param file
+    * @return the mime type of the file, application/octet-stream when unknown,
+    *         null when the file cannot be read
+    */
+   public static String detect(Path file) {
+      byte[] head;
+      try (InputStream in = Files.newInputStream(file)) {
+         head = new byte[HEAD_LENGTH];
+         int length = 0;
+         int n;
+         while (length < HEAD_LENGTH && (n = in.read(head, length, HEAD_LENGTH - length)) != -1) {
+            length += n;
+         }
+         head = Arrays.copyOf(head, length);
+      } catch (IOException e) {
+         return null;
+      }
+      for (MimeDetector detector : DETECTORS) {
+         String mimetype = detect(detector, file, head);
+         if (mimetype != null)
+            return mimetype;
+      }
+      String mimetype = detect(DEFAULT_DETECTOR, file, head);
+      if (mimetype == null && TikaHolder.TIKA != null)
+         mimetype = detect(TikaHolder.TIKA, file, head);
+      return mimetype != null ? mimetype : UNKNOWN_MIMETYPE;
+   }
+
+   private static String detect(MimeDetector detector, Path file, byte[] head) {
+      try {
+         return detector.detect(file, head);
+      } catch (IOException | RuntimeException e) {
+         // as with tika before, a failed detection leaves the type unknown
+         return null;
+      }
+   }
+
+}
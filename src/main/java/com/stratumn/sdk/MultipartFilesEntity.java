@@ -0,0 +1,109 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.springframework.http.ContentDisposition;
+import org.springframework.util.MimeTypeUtils;
+
+import com.stratumn.sdk.model.file.FileInfo;
+
+/***
+ * A multipart/form-data body holding encrypted files. Each file is encrypted as
+ * it is written to the connection, in chunked transfer encoding, so the upload
+ * needs a single buffer whatever the size of the files. The files are read
+ * again on every write, which makes the entity repeatable.
+ */
+class MultipartFilesEntity extends AbstractHttpEntity {
+
+   private static final int BUFFER_SIZE = AesKey.STREAM_BUFFER_SIZE;
+
+   private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+   private static final byte[] DASHES = "--".getBytes(StandardCharsets.US_ASCII);
+
+   private final List<FileWrapper> files;
+
+   private final String boundary;
+
+   MultipartFilesEntity(List<FileWrapper> files) {
+      this.files = files;
+      this.boundary = MimeTypeUtils.generateMultipartBoundaryString();
+      this.setContentType("multipart/form-data; boundary=" + this.boundary);
+      this.setChunked(true);
+   }
+
+   @Override
+   public boolean isRepeatable() {
+      return true;
+   }
+
+   @Override
+   public long getContentLength() {
+      // unknown until the files are encrypted
+      return -1;
+   }
+
+   @Override
+   public InputStream getContent() {
+      throw new UnsupportedOperationException("The multipart body can only be written");
+   }
+
+   @Override
+   public boolean isStreaming() {
+      return false;
+   }
+
+   @Override
+   public void writeTo(OutputStream out) throws IOException {
+      byte[] boundaryBytes = this.boundary.getBytes(StandardCharsets.US_ASCII);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      for (FileWrapper file : this.files) {
+         FileInfo info = file.info();
+         // the part name is the file name, as expected by the media service
+         ContentDisposition contentDisposition = ContentDisposition.builder("form-data").name(info.getName())
+               .filename(info.getName()).build();
+         out.write(DASHES);
+         out.write(boundaryBytes);
+         out.write(CRLF);
+         out.write(("Content-Disposition: " + contentDisposition.toString()).getBytes(StandardCharsets.UTF_8));
+         out.write(CRLF);
+         out.write("Content-Type: application/octet-stream".getBytes(StandardCharsets.US_ASCII));
+         out.write(CRLF);
+         out.write(CRLF);
+         try (InputStream data = file.encryptedStream()) {
+            int read;
+            while ((read = data.read(buffer)) != -1) {
+               out.write(buffer, 0, read);
+            }
+         } catch (TraceSdkException e) {
+            throw new IOException("Failed to read file " + info.getName(), e);
+         }
+         out.write(CRLF);
+      }
+      out.write(DASHES);
+      out.write(boundaryBytes);
+      out.write(DASHES);
+      out.write(CRLF);
+      out.flush();
+   }
+
+}
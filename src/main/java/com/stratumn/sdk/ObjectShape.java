@@ -0,0 +1,164 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.stratumn.chainscript.utils.JsonHelper;
+
+/***
+ * The keys of a json like object (JsonObject, Map, POJO or json string) and the
+ * kind of their values, read without serializing the object. Null values are
+ * left out, as they are when serializing.
+ */
+final class ObjectShape {
+
+   enum Kind {
+      STRING, NUMBER, BOOLEAN, OBJECT, ARRAY
+   }
+
+   private final Map<String, Kind> kinds;
+
+   private ObjectShape(Map<String, Kind> kinds) {
+      this.kinds = kinds;
+   }
+
+   /***
+    * @param obj
+    * @return the shape of the object or null when it is not an object
+    */
+   static ObjectShape of(Object obj) {
+      if (obj == null) {
+         return null;
+      }
+      if (obj instanceof JsonObject) {
+         return ofJsonObject((JsonObject) obj);
+      }
+      if (obj instanceof String) {
+         // only strings that can hold a json object are parsed
+         String str = ((String) obj).trim();
+         if (!str.startsWith("{") || !str.endsWith("}")) {
+            return null;
+         }
+         try {
+            return ofJsonObject(JsonHelper.fromJson(str, JsonObject.class));
+         } catch (RuntimeException e) {
+            // not json after all
+            return null;
+         }
+      }
+      if (obj instanceof Map) {
+         Map<String, Kind> kinds = new HashMap<String, Kind>();
+         for (Entry<?, ?> entry : ((Map<?, ?>) obj).entrySet()) {
+            if (entry.getValue() != null) {
+               kinds.put(String.valueOf(entry.getKey()), kindOf(entry.getValue()));
+            }
+         }
+         return new ObjectShape(kinds);
+      }
+      if (obj instanceof JsonElement || obj instanceof Collection || obj.getClass().isArray()
+            || ClassFields.isJavaClass(obj.getClass())) {
+         return null;
+      }
+      Map<String, Kind> kinds = new HashMap<String, Kind>();
+      for (ClassFields.Accessor accessor : ClassFields.of(obj.getClass()).accessors()) {
+         if (accessor.isTransient())
+            continue;
+         try {
+            Object value = accessor.get(obj);
+            if (value != null) {
+               kinds.put(accessor.getName(), kindOf(value));
+            }
+         } catch (RuntimeException | IllegalAccessException e) {
+            // an unreadable field is not part of the shape
+         }
+      }
+      return new ObjectShape(kinds);
+   }
+
+   private static ObjectShape ofJsonObject(JsonObject obj) {
+      Map<String, Kind> kinds = new HashMap<String, Kind>();
+      for (Entry<String, JsonElement> entry : obj.entrySet()) {
+         JsonElement value = entry.getValue();
+         if (value == null || value.isJsonNull()) {
+            continue;
+         }
+         Kind kind;
+         if (value.isJsonObject()) {
+            kind = Kind.OBJECT;
+         } else if (value.isJsonArray()) {
+            kind = Kind.ARRAY;
+         } else {
+            JsonPrimitive primitive = value.getAsJsonPrimitive();
+            kind = primitive.isNumber() ? Kind.NUMBER : primitive.isBoolean() ? Kind.BOOLEAN : Kind.STRING;
+         }
+         kinds.put(entry.getKey(), kind);
+      }
+      return new ObjectShape(kinds);
+   }
+
+   private static Kind kindOf(Object value) {
+      if (value instanceof JsonElement) {
+         JsonElement elt = (JsonElement) value;
+         if (elt.isJsonPrimitive()) {
+            JsonPrimitive primitive = elt.getAsJsonPrimitive();
+            return primitive.isNumber() ? Kind.NUMBER : primitive.isBoolean() ? Kind.BOOLEAN : Kind.STRING;
+         }
+         return elt.isJsonArray() ? Kind.ARRAY : Kind.OBJECT;
+      }
+      if (value instanceof CharSequence || value instanceof Character || value instanceof Enum) {
+         return Kind.STRING;
+      }
+      if (value instanceof Number) {
+         return Kind.NUMBER;
+      }
+      if (value instanceof Boolean) {
+         return Kind.BOOLEAN;
+      }
+      if (value instanceof Collection || value.getClass().isArray()) {
+         return Kind.ARRAY;
+      }
+      return Kind.OBJECT;
+   }
+
+   boolean has(String key) {
+      return this.kinds.containsKey(key);
+   }
+
+   boolean has(String key, Kind kind) {
+      return this.kinds.get(key) == kind;
+   }
+
+   /***
+    * @return true if the key is absent or of the given kind
+    */
+   boolean hasOptional(String key, Kind kind) {
+      Kind actual = this.kinds.get(key);
+      return actual == null || actual == kind;
+   }
+
+   Set<String> keys() {
+      return this.kinds.keySet();
+   }
+
+}
@@ -0,0 +1,66 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Bounds the retries to a share of the requests, so that retries cannot
+ * multiply the load of a service which is already failing. Every request
+ * deposits a fraction of a retry in the budget and every retry withdraws a
+ * whole one. The budget starts full and never holds more than the reserve,
+ * which allows short bursts of retries.
+ */
+class RetryBudget {
+   // the balance is kept in thousandths of a retry
+   private static final long UNIT = 1000;
+
+   private final long deposit;
+   private final long capacity;
+   private final AtomicLong balance;
+
+   /***
+    * @param ratio   the retries allowed per request, like 0.2
+    * @param reserve the retries allowed in a burst
+    */
+   RetryBudget(double ratio, int reserve) {
+      this.deposit = (long) (ratio * UNIT);
+      this.capacity = reserve * UNIT;
+      this.balance = new AtomicLong(this.capacity);
+   }
+
+   /***
+    * Records a new request.
+    */
+   void deposit() {
+      this.balance.accumulateAndGet(this.deposit, (balance, deposit) -> Math.min(this.capacity, balance + deposit));
+   }
+
+   /***
+    * Takes a retry from the budget.
+    * 
+    * @return false when the budget is exhausted
+    */
+   boolean withdraw() {
+      long current;
+      do {
+         current = this.balance.get();
+         if (current < UNIT)
+            return false;
+      } while (!this.balance.compareAndSet(current, current - UNIT));
+      return true;
+   }
+}
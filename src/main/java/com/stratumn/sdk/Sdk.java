@@ -15,19 +15,36 @@ See the License for the specific language governing permissions and
 */
 package com.stratumn.sdk;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.PrivateKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
@@ -43,9 +60,13 @@ import com.stratumn.sdk.adapters.IdentifiableGsonAdapter;
 import com.stratumn.sdk.adapters.PathGsonAdapter;
 import com.stratumn.sdk.adapters.TimestampAdapter;
 import com.stratumn.sdk.graph.GraphQl;
+import com.stratumn.sdk.model.api.ErrorResponse;
 import com.stratumn.sdk.model.api.GraphResponse;
+import com.stratumn.sdk.model.client.BulkheadStats;
+import com.stratumn.sdk.model.client.GraphQLOptions;
 import com.stratumn.sdk.model.client.PrivateKeySecret;
 import com.stratumn.sdk.model.client.Secret;
+import com.stratumn.sdk.model.client.Service;
 import com.stratumn.sdk.model.file.FileInfo;
 import com.stratumn.sdk.model.file.MediaRecord;
 import com.stratumn.sdk.model.misc.Identifiable;
@@ -74,16 +95,25 @@ import org.springframework.web.client.HttpClientErrorException;
 /**
  * The Stratumn java Sdk
  */
-public class Sdk<TState> implements ISdk<TState> {
+public class Sdk<TState> implements ISdk<TState>, Closeable {
 
    private static final String ERROR_CONFIG_DEPRECATED = "link config deprecated";
 
    private static final Gson gson = new Gson();
    private SdkOptions opts;
 
-   private SdkConfig config;
+   private volatile SdkConfig config;
 
    private Client client;
+   // runs the parallel requests when no executor is set in the options
+   private volatile ExecutorService executor;
+   // last known head link of the traces, used as parent of the next link
+   private final HeadLinkCache headLinks;
+   // bounds the bytes of the files being uploaded, in KB
+   private final int uploadBudgetKb;
+   private final Semaphore uploadBudget;
+   // records of the files already uploaded, by content
+   private final UploadCache uploadCache;
    // the class Tstate if none set then all methods assume TState is a JsonObject
    private Class<TState> classOfTState;
 
@@ -102,6 +132,10 @@ public class Sdk<TState> implements ISdk<TState> {
          this.classOfTState = classOfTState;
       this.opts = opts;
       this.client = new Client(opts);
+      this.headLinks = new HeadLinkCache(opts.getHeadLinkCacheSize());
+      this.uploadBudgetKb = (int) Math.min(Integer.MAX_VALUE, Math.max(1, opts.getMaxUploadBytesInFlight() / 1024));
+      this.uploadBudget = new Semaphore(this.uploadBudgetKb, true);
+      this.uploadCache = new UploadCache(opts.getUploadCacheSize(), opts.getUploadCachePath());
       JsonHelper.registerTypeHierarchyAdapter(ByteBuffer.class, new ByteBufferGsonAdapter());
       JsonHelper.registerTypeHierarchyAdapter(Path.class, new PathGsonAdapter());
       JsonHelper.registerTypeAdapter(FileWrapper.class, new FileWrapperGsonAdapter());
@@ -123,103 +157,129 @@ public class Sdk<TState> implements ISdk<TState> {
    private SdkConfig getConfig(boolean forceUpdate) throws TraceSdkException {
       // update the config if doesn't exist or force
       if (this.config == null || forceUpdate) {
-         String workflowId = this.opts.getWorkflowId();
          // execute graphql query
-         GraphResponse response = this.client.graphql(GraphQl.Query.QUERY_CONFIG,
-               Collections.singletonMap("workflowId", workflowId), null, GraphResponse.class);
-         if (response.hasErrors())
-            throw new TraceSdkException(Arrays.asList(response.getErrors()).toString());
-         JsonElement groupNodes = response.getData("workflow.groups.nodes");
-         if (groupNodes == null)
-            throw new TraceSdkException("Workflow.groups object not found:\n" + response.toString());
-
-         String accountId = response.getData("account.accountId").getAsString();
-
-         String configId = response.getData("workflow.config.id").getAsString();
-
-         JsonElement userMemberOf = response.getData("account.user.memberOf.nodes");
-         JsonElement botTeams = response.getData("account.bot.teams.nodes");
-
-         List<String> myAccounts = new ArrayList<String>();
-         Iterator<JsonElement> iteratorNodes = null;
-         // get all the account ids I am a member of
-         if (null != userMemberOf) {
-            iteratorNodes = userMemberOf.getAsJsonArray().iterator();
-         } else if (null != botTeams) {
-            iteratorNodes = botTeams.getAsJsonArray().iterator();
-         }
-         if (null != iteratorNodes) {
-            while (iteratorNodes.hasNext()) {
-               JsonElement element = iteratorNodes.next();
-               myAccounts.add(element.getAsJsonObject().get("accountId").toString());
-            }
-         }
+         GraphResponse response = this.client.graphql(GraphQl.Query.QUERY_CONFIG, this.makeConfigVariables(), null,
+               GraphResponse.class);
+         return this.makeConfig(response);
+      }
+      return this.getCachedConfig();
+   }
 
-         // get all the groups I belong to
-         // i.e. where I belong to one of the account members
-         List<JsonElement> myGroups = new ArrayList<JsonElement>();
-         Map<String, String> groupLabelToIdMap = new HashMap<String, String>();
-
-         Iterator<JsonElement> iteratorGNodes = groupNodes.getAsJsonArray().iterator();
-         while (iteratorGNodes.hasNext()) {
-            JsonElement group = iteratorGNodes.next();
-
-            Iterator<JsonElement> members = group.getAsJsonObject().get("members").getAsJsonObject().get("nodes")
-                  .getAsJsonArray().iterator();
-            while (members.hasNext()) {
-               JsonElement member = members.next();
-               if (myAccounts.contains(member.getAsJsonObject().get("accountId").toString())) {
-                  myGroups.add(group);
-                  groupLabelToIdMap.put(group.getAsJsonObject().get("label").getAsString(),
-                        group.getAsJsonObject().get("groupId").getAsString());
-                  break;
-               }
-            }
-         }
+   private SdkConfig getConfig() throws TraceSdkException {
+      return this.getConfig(false);
+   }
+
+   /***
+    * @return the config computed by a previous call, null if there is none
+    */
+   SdkConfig getCachedConfig() {
+      SdkConfig sdkConfig = this.config;
+      // sets the group id in any case
+      if (sdkConfig != null && null != this.opts.getGroupLabel()) {
+         sdkConfig.setGroupLabel(this.opts.getGroupLabel());
+      }
+      return sdkConfig;
+   }
+
+   /***
+    * @return the variables of the config query
+    */
+   Map<String, Object> makeConfigVariables() {
+      return Collections.singletonMap("workflowId", this.opts.getWorkflowId());
+   }
+
+   /***
+    * Generates the config from the response of the config query and keeps it
+    * for the next calls.
+    * 
+    * @param response the response of the config query
+    * @return the Sdk config object
+    * @throws TraceSdkException
+    */
+   SdkConfig makeConfig(GraphResponse response) throws TraceSdkException {
+      String workflowId = this.opts.getWorkflowId();
+      if (response.hasErrors())
+         throw new TraceSdkException(Arrays.asList(response.getErrors()).toString());
+      JsonElement groupNodes = response.getData("workflow.groups.nodes");
+      if (groupNodes == null)
+         throw new TraceSdkException("Workflow.groups object not found:\n" + response.toString());
+
+      String accountId = response.getData("account.accountId").getAsString();
 
-         // there must be at least one group!
-         if (myGroups.size() == 0) {
-            throw new TraceSdkException("No group to choose from.");
+      String configId = response.getData("workflow.config.id").getAsString();
+
+      JsonElement userMemberOf = response.getData("account.user.memberOf.nodes");
+      JsonElement botTeams = response.getData("account.bot.teams.nodes");
+
+      List<String> myAccounts = new ArrayList<String>();
+      Iterator<JsonElement> iteratorNodes = null;
+      // get all the account ids I am a member of
+      if (null != userMemberOf) {
+         iteratorNodes = userMemberOf.getAsJsonArray().iterator();
+      } else if (null != botTeams) {
+         iteratorNodes = botTeams.getAsJsonArray().iterator();
+      }
+      if (null != iteratorNodes) {
+         while (iteratorNodes.hasNext()) {
+            JsonElement element = iteratorNodes.next();
+            myAccounts.add(element.getAsJsonObject().get("accountId").toString());
          }
+      }
 
-         PrivateKey signingPrivateKey = null;
-         try {
-            if (Secret.isPrivateKeySecret(opts.getSecret())) {
-               // if the secret is a PrivateKeySecret, use it!
-               final String privateKey = ((PrivateKeySecret) opts.getSecret()).getPrivateKey();
-               signingPrivateKey = CryptoUtils.decodePrivateKey(privateKey);
-            } else {
-               JsonElement privateKeyElt = response.getData("account.signingKey.privateKey");
-               JsonObject privateKey = privateKeyElt.getAsJsonObject();
-               Boolean passwordProtected = privateKey.get("passwordProtected").getAsBoolean();
-               String decrypted = privateKey.get("decrypted").getAsString();
-               if (!passwordProtected)
-                  // otherwise use the key from the response
-                  // if it's not password protected!
-                  signingPrivateKey = CryptoUtils.decodePrivateKey(decrypted);
-               else
-                  throw new TraceSdkException("Cannot get signing private key");
+      // get all the groups I belong to
+      // i.e. where I belong to one of the account members
+      List<JsonElement> myGroups = new ArrayList<JsonElement>();
+      Map<String, String> groupLabelToIdMap = new HashMap<String, String>();
+
+      Iterator<JsonElement> iteratorGNodes = groupNodes.getAsJsonArray().iterator();
+      while (iteratorGNodes.hasNext()) {
+         JsonElement group = iteratorGNodes.next();
+
+         Iterator<JsonElement> members = group.getAsJsonObject().get("members").getAsJsonObject().get("nodes")
+               .getAsJsonArray().iterator();
+         while (members.hasNext()) {
+            JsonElement member = members.next();
+            if (myAccounts.contains(member.getAsJsonObject().get("accountId").toString())) {
+               myGroups.add(group);
+               groupLabelToIdMap.put(group.getAsJsonObject().get("label").getAsString(),
+                     group.getAsJsonObject().get("groupId").getAsString());
+               break;
             }
-         } catch (InvalidKeySpecException ex) {
-            throw new TraceSdkException("Security key error", ex);
          }
+      }
 
-         this.config = new SdkConfig(workflowId, configId, accountId, groupLabelToIdMap, signingPrivateKey);
-
+      // there must be at least one group!
+      if (myGroups.size() == 0) {
+         throw new TraceSdkException("No group to choose from.");
       }
 
-      // sets the group id in any case
-      if (null != this.opts.getGroupLabel()) {
-         this.config.setGroupLabel(this.opts.getGroupLabel());
+      PrivateKey signingPrivateKey = null;
+      try {
+         if (Secret.isPrivateKeySecret(opts.getSecret())) {
+            // if the secret is a PrivateKeySecret, use it!
+            final String privateKey = ((PrivateKeySecret) opts.getSecret()).getPrivateKey();
+            signingPrivateKey = CryptoUtils.decodePrivateKey(privateKey);
+         } else {
+            JsonElement privateKeyElt = response.getData("account.signingKey.privateKey");
+            JsonObject privateKey = privateKeyElt.getAsJsonObject();
+            Boolean passwordProtected = privateKey.get("passwordProtected").getAsBoolean();
+            String decrypted = privateKey.get("decrypted").getAsString();
+            if (!passwordProtected)
+               // otherwise use the key from the response
+               // if it's not password protected!
+               signingPrivateKey = CryptoUtils.decodePrivateKey(decrypted);
+            else
+               throw new TraceSdkException("Cannot get signing private key");
+         }
+      } catch (InvalidKeySpecException ex) {
+         throw new TraceSdkException("Security key error", ex);
       }
 
-      // return the new config
-      return this.config;
+      this.config = new SdkConfig(workflowId, configId, accountId, groupLabelToIdMap, signingPrivateKey);
 
-   }
+      // return the new config
+      return this.getCachedConfig();
 
-   private SdkConfig getConfig() throws TraceSdkException {
-      return this.getConfig(false);
    }
 
    public Sdk<TState> withGroupLabel(String groupLabel) {
@@ -227,6 +287,136 @@ public class Sdk<TState> implements ISdk<TState> {
       return this;
    }
 
+   /***
+    * Returns the current usage of the request slots of a service, to monitor
+    * the queue depth and the rejected requests.
+    * 
+    * @param service
+    * @return the stats of the service
+    */
+   public BulkheadStats getBulkheadStats(Service service) {
+      return this.client.getBulkheadStats(service);
+   }
+
+   /***
+    * @return the client sending the requests of the sdk
+    */
+   Client getClient() {
+      return this.client;
+   }
+
+   /***
+    * Builds the options of a query returning trace states.
+    * 
+    * @param leanTraceState the per call lean mode, null to use the sdk options
+    * @return the graphql options
+    */
+   GraphQLOptions makeTraceStateOptions(Boolean leanTraceState) {
+      return new GraphQLOptions(1, leanTraceState != null ? leanTraceState : this.opts.isLeanTraceState());
+   }
+
+   /***
+    * @return the executor running the parallel requests of the sdk
+    */
+   private Executor getExecutor() {
+      if (this.opts.getExecutor() != null) {
+         return this.opts.getExecutor();
+      }
+      if (this.executor == null) {
+         synchronized (this) {
+            if (this.executor == null) {
+               this.executor = Executors.newCachedThreadPool(r -> {
+                  Thread thread = new Thread(r, "stratumn-sdk-worker");
+                  thread.setDaemon(true);
+                  return thread;
+               });
+            }
+         }
+      }
+      return this.executor;
+   }
+
+   /***
+    * Closes the client of the sdk, releasing its connections and background
+    * threads, and stops the workers the sdk started. An executor set in the
+    * options is left running.
+    * 
+    * @throws IOException
+    */
+   @Override
+   public void close() throws IOException {
+      synchronized (this) {
+         if (this.executor != null) {
+            this.executor.shutdown();
+         }
+      }
+      this.client.close();
+   }
+
+   /***
+    * A task run on every item by forEachInParallel.
+    */
+   @FunctionalInterface
+   private interface ParallelTask<T> {
+      void run(T item) throws TraceSdkException;
+   }
+
+   /***
+    * Runs the task on every item, with at most `parallelism` items in flight.
+    * The calling thread takes part in the work so that a saturated executor
+    * cannot stall the call. The first failure is rethrown once all the workers
+    * are done.
+    * 
+    * @param items
+    * @param parallelism
+    * @param task
+    * @throws TraceSdkException
+    */
+   private <T> void forEachInParallel(List<T> items, int parallelism, ParallelTask<T> task)
+         throws TraceSdkException {
+      int workers = Math.min(items.size(), parallelism);
+      if (workers <= 1) {
+         for (T item : items) {
+            task.run(item);
+         }
+         return;
+      }
+      ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<T>(items);
+      AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      Runnable worker = () -> {
+         T item;
+         while (failure.get() == null && (item = queue.poll()) != null) {
+            try {
+               task.run(item);
+            } catch (Throwable e) {
+               failure.compareAndSet(null, e);
+            }
+         }
+      };
+      List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+      for (int i = 1; i < workers; i++) {
+         futures.add(CompletableFuture.runAsync(worker, this.getExecutor()));
+      }
+      worker.run();
+      for (CompletableFuture<Void> future : futures) {
+         try {
+            future.join();
+         } catch (CompletionException e) {
+            failure.compareAndSet(null, e.getCause());
+         }
+      }
+      Throwable e = failure.get();
+      if (e instanceof TraceSdkException) {
+         throw (TraceSdkException) e;
+      }
+      if (e instanceof RuntimeException) {
+         throw (RuntimeException) e;
+      }
+      if (e != null) {
+         throw new TraceSdkException("Parallel request failed", e);
+      }
+   }
+
    /***
     * Builds the TraceState object form the TraceState fragement response for a
     * specifc type
@@ -258,6 +448,7 @@ public class Sdk<TState> implements ISdk<TState> {
                : (TState) trace.get("state").getAsJsonObject().get("data");
          traceState = new TraceState<TState, TLinkData>(headLink.traceId(), headLink, headLink.createdAt(),
                headLink.createdBy(), tState, tags.toArray(new String[tags.size()]), headLink.group());
+         this.headLinks.put(headLink);
       } catch (ChainscriptException e) {
          throw new TraceSdkException("Error constructing traceState ", e);
       }
@@ -280,6 +471,39 @@ public class Sdk<TState> implements ISdk<TState> {
       // extract signing key from config
       SdkConfig sdkConfig = this.getConfig();
 
+      Map<String, Object> variables = this.makeLinkVariables(linkBuilder, sdkConfig);
+
+      GraphResponse response;
+      try {
+         // execute graphql query
+         response = this.client.graphql(GraphQl.Query.MUTATION_CREATELINK, variables,
+               this.makeTraceStateOptions(null), GraphResponse.class);
+      } catch (HttpClientErrorException e) {
+         if (firstTry && isConfigDeprecated(e)) {
+            sdkConfig = this.getConfig(true);
+            linkBuilder.withConfigId(sdkConfig.getConfigId());
+            return this.createLink(linkBuilder, classOfTLinkData, false);
+         }
+         this.evictParentLink(linkBuilder);
+         throw e;
+      } catch (TraceSdkException e) {
+         this.evictParentLink(linkBuilder);
+         throw e;
+      }
+      return this.makeCreatedLink(response, linkBuilder, classOfTLinkData);
+   }
+
+   /***
+    * Builds the link, signs it and returns the variables of the createLink
+    * mutation.
+    * 
+    * @param linkBuilder
+    * @param sdkConfig   the config holding the signing key
+    * @return the variables of the mutation
+    * @throws ChainscriptException
+    */
+   <TLinkData> Map<String, Object> makeLinkVariables(TraceLinkBuilder<TLinkData> linkBuilder, SdkConfig sdkConfig)
+         throws ChainscriptException {
       PrivateKey signingPrivateKey = sdkConfig.getSigningPrivateKey();
 
       // build the link
@@ -295,28 +519,62 @@ public class Sdk<TState> implements ISdk<TState> {
       Map<String, Object> variables = new HashMap<String, Object>();
       variables.put("link", linkObj);
       variables.put("data", dataObj);
+      return variables;
+   }
 
-      try {
-         // execute graphql query
-         GraphResponse response = this.client.graphql(GraphQl.Query.MUTATION_CREATELINK, variables, null,
-               GraphResponse.class);
-         if (response.hasErrors()) {
-            throw new TraceSdkException(Arrays.asList(response.getErrors()).toString());
-         }
-         JsonElement trace = response.getData("createLink.trace");
-         if (trace == null)
-            throw new TraceSdkException("Trace object not found:\n" + response.toString());
+   /***
+    * Reads the trace state from the response of the createLink mutation.
+    * 
+    * @param response
+    * @param linkBuilder      the builder of the link, whose parent is evicted
+    *                         when the link was not created
+    * @param classOfTLinkData
+    * @return the new trace state
+    * @throws TraceSdkException
+    * @throws ChainscriptException
+    */
+   <TLinkData> TraceState<TState, TLinkData> makeCreatedLink(GraphResponse response,
+         TraceLinkBuilder<TLinkData> linkBuilder, Class<TLinkData> classOfTLinkData)
+         throws TraceSdkException, ChainscriptException {
+      if (response.hasErrors()) {
+         this.evictParentLink(linkBuilder);
+         throw new TraceSdkException(Arrays.asList(response.getErrors()).toString());
+      }
+      JsonElement trace = response.getData("createLink.trace");
+      if (trace == null)
+         throw new TraceSdkException("Trace object not found:\n" + response.toString());
 
-         return this.makeTraceState(trace.getAsJsonObject(), classOfTLinkData);
+      return this.makeTraceState(trace.getAsJsonObject(), classOfTLinkData);
+   }
 
-      } catch (HttpClientErrorException e) {
-         if (firstTry && e.getMessage().contains(ERROR_CONFIG_DEPRECATED)) {
-            sdkConfig = this.getConfig(true);
-            linkBuilder.withConfigId(sdkConfig.getConfigId());
-            return this.createLink(linkBuilder, classOfTLinkData, false);
-         }
-         throw e;
+   /***
+    * @param e the failure of a createLink mutation
+    * @return true when the link was rejected because it was built on an old
+    *         config, in which case it can be sent again with the current one
+    */
+   static boolean isConfigDeprecated(Throwable e) {
+      String message = e instanceof HttpClientErrorException || e instanceof HttpError ? e.getMessage() : null;
+      return message != null && message.contains(ERROR_CONFIG_DEPRECATED);
+   }
+
+   /***
+    * Called when a link could not be created. Its parent may not be the head of
+    * the trace anymore, or the link may have been appended anyway, so the parent
+    * is evicted from the head link cache and the next link queries the head.
+    * The link is not created again on another head, which the caller never saw.
+    * 
+    * @param linkBuilder
+    * @throws ChainscriptException
+    */
+   <TLinkData> void evictParentLink(TraceLinkBuilder<TLinkData> linkBuilder) throws ChainscriptException {
+      TraceLink<TLinkData> parentLink;
+      try {
+         parentLink = linkBuilder.getParentLink();
+      } catch (TraceSdkException e) {
+         // the first link of a trace has no parent
+         return;
       }
+      this.headLinks.evict(parentLink.traceId(), parentLink);
    }
 
    /***
@@ -345,22 +603,9 @@ public class Sdk<TState> implements ISdk<TState> {
     * @throws IllegalArgumentException
     */
    private <TLinkData> TraceLink<TLinkData> getHeadLink(ParentLink<TLinkData> input) throws TraceSdkException {
-      TraceLink<TLinkData> headLink = input.getPrevLink();
-      // if prevLink was not provided
+      TraceLink<TLinkData> headLink = this.getCachedHeadLink(input);
       if (headLink == null && input.getTraceId() != null) {
-         // execute graphql query
-         GraphResponse response = this.client.graphql(GraphQl.Query.QUERY_GETHEADLINK,
-               Collections.singletonMap("traceId", input.getTraceId()), null, GraphResponse.class);
-         if (response.hasErrors())
-            throw new TraceSdkException(Arrays.asList(response.getErrors()).toString());
-
-         String raw = response.getData("trace.head.raw").toString();
-         JsonElement headData = response.getData("trace.head.data");
-         TLinkData data = (TLinkData) (headData != null ? headData.getAsJsonObject() : null);
-
-         // convert the raw response to a link object
-         headLink = new TraceLink<TLinkData>(Link.fromObject(raw), data);
-
+         headLink = this.fetchHeadLink(input.getTraceId());
       }
       if (headLink != null)
          return headLink;
@@ -369,6 +614,62 @@ public class Sdk<TState> implements ISdk<TState> {
 
    }
 
+   /**
+    * Given a trace id or a previous link return the previous link, without
+    * querying the head of the trace.
+    * 
+    * @param input .traceId the id of the trace
+    * @param input .prevLink the previous link
+    * @return the previous link, null if it is not known
+    */
+   <TLinkData> TraceLink<TLinkData> getCachedHeadLink(ParentLink<TLinkData> input) {
+      TraceLink<TLinkData> headLink = input.getPrevLink();
+      // if prevLink was not provided use the last head link seen
+      if (headLink == null && input.getTraceId() != null) {
+         headLink = this.headLinks.get(input.getTraceId());
+      }
+      return headLink;
+   }
+
+   /**
+    * Queries the current head link of a trace and caches it.
+    * 
+    * @param traceId the id of the trace
+    * @throws TraceSdkException
+    */
+   private <TLinkData> TraceLink<TLinkData> fetchHeadLink(String traceId) throws TraceSdkException {
+      // execute graphql query
+      GraphResponse response = this.client.graphql(GraphQl.Query.QUERY_GETHEADLINK,
+            Collections.singletonMap("traceId", traceId), null, GraphResponse.class);
+      return this.makeHeadLink(response);
+   }
+
+   /**
+    * Reads the head link from the response of the head link query and caches
+    * it.
+    * 
+    * @param response the response of the head link query
+    * @throws TraceSdkException
+    */
+   <TLinkData> TraceLink<TLinkData> makeHeadLink(GraphResponse response) throws TraceSdkException {
+      if (response.hasErrors())
+         throw new TraceSdkException(Arrays.asList(response.getErrors()).toString());
+
+      String raw = response.getData("trace.head.raw").toString();
+      JsonElement headData = response.getData("trace.head.data");
+      @SuppressWarnings("unchecked")
+      TLinkData data = (TLinkData) (headData != null ? headData.getAsJsonObject() : null);
+
+      // convert the raw response to a link object
+      TraceLink<TLinkData> headLink = new TraceLink<TLinkData>(Link.fromObject(raw), data);
+      try {
+         this.headLinks.put(headLink);
+      } catch (ChainscriptException e) {
+         throw new TraceSdkException(e);
+      }
+      return headLink;
+   }
+
    /**
     * Get the traces in a given stage (INCOMING, OUTGOING, BACKLOG, ATTESTATION)
     * When stageType=ATTESTATION, you must also provide the form id to identify the
@@ -408,8 +709,8 @@ public class Sdk<TState> implements ISdk<TState> {
       variables.putAll(variablesPaginationInfo);
 
       // execute the graphql query
-      GraphResponse response = this.client.graphql(GraphQl.Query.QUERY_GETTRACESINSTAGE, variables, null,
-            GraphResponse.class);
+      GraphResponse response = this.client.graphql(GraphQl.Query.QUERY_GETTRACESINSTAGE, variables,
+            this.makeTraceStateOptions(null), GraphResponse.class);
       if (response.hasErrors())
          throw new TraceSdkException(Arrays.asList(response.getErrors()).toString());
       // extract relevant info from the response
@@ -464,28 +765,141 @@ public class Sdk<TState> implements ISdk<TState> {
       if (fileWrapperMap.size() == 0)
          return;
 
-      List<FileWrapper> fileList = new ArrayList<FileWrapper>();
+      // group the files by content, a file with the same content as one already
+      // uploaded is replaced by its record. The content is only digested when
+      // there is something to compare it with: the cache, or another file of the
+      // same size (a file listed twice has the same size).
+      boolean cacheEnabled = this.uploadCache.isEnabled();
+      Map<Long, Integer> filesBySize = new HashMap<Long, Integer>();
+      if (!cacheEnabled) {
+         for (Property<FileWrapper> fileProperty : fileWrapperMap.values()) {
+            filesBySize.merge(fileProperty.getValue().info().getSize(), 1, Integer::sum);
+         }
+      }
+      Map<String, List<Property<FileWrapper>>> filesByContent = new LinkedHashMap<>();
+      Map<String, String> cacheKeys = new HashMap<String, String>();
       for (Property<FileWrapper> fileProperty : fileWrapperMap.values()) {
          FileWrapper fileWrapper = fileProperty.getValue();
-         fileList.add(fileWrapper);
+         fileWrapper.setSegmentedEncryption(this.opts.isSegmentedFileEncryption());
+         boolean dedup = cacheEnabled || filesBySize.get(fileWrapper.info().getSize()) > 1;
+         String cacheKey = dedup ? UploadCache.keyOf(fileWrapper) : null;
+         String contentKey = cacheKey == null ? "id:" + fileWrapper.getId() : cacheKey;
+         filesByContent.computeIfAbsent(contentKey, (k) -> new ArrayList<>()).add(fileProperty);
+         cacheKeys.put(contentKey, cacheKey);
       }
-      MediaRecord[] mediaRecords = client.uploadFiles(fileList);
 
-      List<Property<FileRecord>> fileRecordList = new ArrayList<>(fileWrapperMap.size());
-      // find the filewrapper and build filerecord
+      Map<String, FileRecord> recordsByContent = new HashMap<String, FileRecord>();
+      List<String> uploadedContent = new ArrayList<String>();
+      List<FileWrapper> fileList = new ArrayList<FileWrapper>();
+      for (Entry<String, List<Property<FileWrapper>>> content : filesByContent.entrySet()) {
+         String cacheKey = cacheKeys.get(content.getKey());
+         FileRecord cached = cacheKey == null ? null : this.uploadCache.get(cacheKey);
+         if (cached != null) {
+            recordsByContent.put(content.getKey(), cached);
+         } else {
+            uploadedContent.add(content.getKey());
+            fileList.add(content.getValue().get(0).getValue());
+         }
+      }
+      MediaRecord[] mediaRecords = this.uploadFiles(fileList);
+      Map<String, FileRecord> uploadedRecords = new LinkedHashMap<String, FileRecord>();
       for (int i = 0; i < mediaRecords.length; i++) {
-         MediaRecord mediaRecord = mediaRecords[i];
-         // get the fileWrapper property by index of file in the list uploaded.
-         Property<FileWrapper> fileWrapperProp = fileWrapperMap.get(fileList.get(i).getId());
-         // build FileRecord property
-         Property<FileRecord> fileRecordProp = fileWrapperProp
-               .transform((fileWrapper) -> new FileRecord(mediaRecord, fileWrapper.info()));
-         fileRecordList.add(fileRecordProp);
+         FileRecord fileRecord = new FileRecord(mediaRecords[i], fileList.get(i).info());
+         String contentKey = uploadedContent.get(i);
+         recordsByContent.put(contentKey, fileRecord);
+         String cacheKey = cacheKeys.get(contentKey);
+         if (cacheKey != null)
+            uploadedRecords.put(cacheKey, fileRecord);
+      }
+      if (cacheEnabled)
+         this.uploadCache.putAll(uploadedRecords);
+
+      List<Property<FileRecord>> fileRecordList = new ArrayList<>(fileWrapperMap.size());
+      for (Entry<String, List<Property<FileWrapper>>> content : filesByContent.entrySet()) {
+         FileRecord fileRecord = recordsByContent.get(content.getKey());
+         for (Property<FileWrapper> fileWrapperProp : content.getValue()) {
+            fileRecordList.add(fileWrapperProp.transform((fileWrapper) -> sameContent(fileRecord, fileWrapper)));
+         }
       }
       Helpers.assignObjects(fileRecordList);
 
    }
 
+   /***
+    * The record of a file whose content is already stored under another record.
+    * The media service keeps a single copy, so only the name and mime type of
+    * the file change.
+    * 
+    * @param fileRecord
+    * @param fileWrapper
+    * @return
+    */
+   private static FileRecord sameContent(FileRecord fileRecord, FileWrapper fileWrapper) {
+      FileInfo info = fileWrapper.info();
+      if (Objects.equals(fileRecord.getName(), info.getName())
+            && Objects.equals(fileRecord.getMimetype(), info.getMimetype()))
+         return fileRecord;
+      FileRecord record = new FileRecord();
+      record.setName(info.getName());
+      record.setMimetype(info.getMimetype());
+      record.setDigest(fileRecord.getDigest());
+      record.setSize(fileRecord.getSize());
+      record.setKey(fileRecord.getKey());
+      record.setCreatedAt(fileRecord.getCreatedAt());
+      return record;
+   }
+
+   /***
+    * Uploads the files, one request per file with up to maxParallelUploads
+    * requests at once and at most maxUploadBytesInFlight bytes being sent by
+    * the sdk. A single request carries all the files when maxParallelUploads is
+    * 1.
+    * 
+    * @param fileList
+    * @return the media records, in the order of the files
+    * @throws TraceSdkException
+    */
+   private MediaRecord[] uploadFiles(List<FileWrapper> fileList) throws TraceSdkException {
+      if (this.opts.getMaxParallelUploads() <= 1 || fileList.size() <= 1) {
+         return client.uploadFiles(fileList);
+      }
+      MediaRecord[] mediaRecords = new MediaRecord[fileList.size()];
+      List<Integer> indexes = new ArrayList<Integer>();
+      for (int i = 0; i < fileList.size(); i++) {
+         indexes.add(i);
+      }
+      this.forEachInParallel(indexes, this.opts.getMaxParallelUploads(), (index) -> {
+         FileWrapper file = fileList.get(index);
+         int permits = this.uploadPermits(file);
+         try {
+            this.uploadBudget.acquire(permits);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TraceSdkException("Interrupted while waiting to upload " + file.getId(), e);
+         }
+         try {
+            MediaRecord[] uploaded = client.uploadFiles(Collections.singletonList(file));
+            if (uploaded.length != 1)
+               throw new TraceSdkException("Expected one media record for file " + file.getId());
+            mediaRecords[index] = uploaded[0];
+         } finally {
+            this.uploadBudget.release(permits);
+         }
+      });
+      return mediaRecords;
+   }
+
+   /***
+    * @param file
+    * @return the share of the upload budget taken by the file, in KB
+    */
+   private int uploadPermits(FileWrapper file) {
+      Long size = file.info().getSize();
+      long kb = size == null ? 1 : Math.max(1, (size + 1023) / 1024);
+      // a file larger than the budget is sent alone
+      return (int) Math.min(kb, this.uploadBudgetKb);
+   }
+
    /**
     * Extract, download and replace all file records in a data object.
     * 
@@ -515,16 +929,81 @@ public class Sdk<TState> implements ISdk<TState> {
          return fileWrapperList;
       }
 
-      for (Entry<String, Property<FileRecord>> fileRecordElt : idToFileRecordMap.entrySet()) {
-         FileRecord fileRecord = fileRecordElt.getValue().getValue();
-         ByteBuffer file = client.downloadFile(fileRecord);
-         FileInfo info = fileRecord.getFileInfo();
-         fileWrapperList.add(fileRecordElt.getValue()
-               .transform((T) -> new FileBlobWrapper(file, info, info.getKey() == null || info.getKey() == "")));
+      List<Property<FileRecord>> fileRecordList = new ArrayList<Property<FileRecord>>(idToFileRecordMap.values());
+      List<Integer> indexes = new ArrayList<Integer>();
+      for (int i = 0; i < fileRecordList.size(); i++) {
+         indexes.add(i);
+         fileWrapperList.add(null);
+      }
+      try {
+         this.forEachInParallel(indexes, this.opts.getMaxParallelDownloads(), (index) -> {
+            Property<FileRecord> fileRecordProperty = fileRecordList.get(index);
+            FileRecord fileRecord = fileRecordProperty.getValue();
+            ByteBuffer file;
+            try {
+               file = client.downloadFile(fileRecord);
+            } catch (HttpError e) {
+               throw new TraceSdkException("Could not download file " + fileRecord.getName(), e);
+            }
+            FileInfo info = fileRecord.getFileInfo();
+            fileWrapperList.set(index, fileRecordProperty
+                  .transform((T) -> new FileBlobWrapper(file, info, info.getKey() == null || info.getKey() == "")));
+         });
+      } catch (TraceSdkException e) {
+         if (e.getCause() instanceof HttpError)
+            throw (HttpError) e.getCause();
+         throw e;
       }
       return fileWrapperList;
    }
 
+   /**
+    * Downloads a file record and writes the decrypted file to the output stream.
+    * The output stream is not closed.
+    * 
+    * Only files encrypted in segments are decrypted as they arrive. A file
+    * encrypted as a single message, the default format, is held in memory while
+    * its tag is checked, and cannot be over 2GB. Use
+    * SdkOptions.setSegmentedFileEncryption for large files.
+    * 
+    * @param fileRecord the file record to download
+    * @param out        where to write the file
+    * @throws TraceSdkException
+    * @throws HttpError
+    */
+   public void downloadFile(FileRecord fileRecord, OutputStream out) throws TraceSdkException, HttpError {
+      this.client.downloadFile(fileRecord, out);
+   }
+
+   /**
+    * Downloads a file record and writes the decrypted file at the given path.
+    * The file is replaced if it exists and removed if the download fails. The
+    * memory used depends on the encryption format of the file, see
+    * {@link #downloadFile(FileRecord, OutputStream)}.
+    * 
+    * @param fileRecord the file record to download
+    * @param path       where to write the file
+    * @throws TraceSdkException
+    * @throws HttpError
+    */
+   public void downloadFile(FileRecord fileRecord, Path path) throws TraceSdkException, HttpError {
+      boolean done = false;
+      try (OutputStream out = Files.newOutputStream(path)) {
+         this.client.downloadFile(fileRecord, out);
+         done = true;
+      } catch (IOException e) {
+         throw new TraceSdkException("Could not write file " + path, e);
+      } finally {
+         if (!done) {
+            try {
+               Files.deleteIfExists(path);
+            } catch (IOException e) {
+               // the download error is the one worth reporting
+            }
+         }
+      }
+   }
+
    /**
     * Get the details of a given trace.
     *
@@ -536,25 +1015,42 @@ public class Sdk<TState> implements ISdk<TState> {
    public <TLinkData> TraceDetails<TLinkData> getTraceDetails(GetTraceDetailsInput input) throws TraceSdkException {
 
       Map<String, Object> getTraceDetailsInput = JsonHelper.objectToMap(input);
-      // execute graphql query
+      List<TraceLink<TLinkData>> links = new ArrayList<TraceLink<TLinkData>>();
+      // execute graphql query, the links are built as they are read
       GraphResponse response = this.client.graphql(GraphQl.Query.QUERY_GETTRACEDETAILS, getTraceDetailsInput, null,
-            GraphResponse.class);
+            "trace.links.nodes", (node) -> {
+               links.add((TraceLink<TLinkData>) TraceLink.fromObject(node.get("raw").toString(),
+                     node.get("data").toString()));
+            });
+      return this.makeTraceDetails(response, links);
+   }
+
+   /**
+    * Builds the details of a trace from the response of the trace details
+    * query.
+    *
+    * @param response the response of the query
+    * @param links    the links read from the response as it was streamed, null
+    *                 to read them from the response
+    * @return the trace details
+    * @throws TraceSdkException
+    */
+   <TLinkData> TraceDetails<TLinkData> makeTraceDetails(GraphResponse response, List<TraceLink<TLinkData>> links)
+         throws TraceSdkException {
       if (response.hasErrors())
          throw new TraceSdkException(Arrays.asList(response.getErrors()).toString());
 
+      if (links == null) {
+         links = new ArrayList<TraceLink<TLinkData>>();
+         for (JsonElement node : response.getData("trace.links.nodes").getAsJsonArray()) {
+            JsonObject link = node.getAsJsonObject();
+            links.add((TraceLink<TLinkData>) TraceLink.fromObject(link.get("raw").toString(),
+                  link.get("data").toString()));
+         }
+      }
+
       JsonObject info = response.getData("trace.links.info").getAsJsonObject();
       int totalCount = response.getData("trace.links.totalCount").getAsInt();
-      List<TraceLink<TLinkData>> links = new ArrayList<TraceLink<TLinkData>>();
-
-      // get all the groups that are owned by one of my accounts
-      Iterator<JsonElement> iteratorNodes = response.getData("trace.links.nodes").getAsJsonArray().iterator();
-
-      while (iteratorNodes.hasNext()) {
-         JsonObject node = (JsonObject) iteratorNodes.next();
-
-         links.add(
-               (TraceLink<TLinkData>) TraceLink.fromObject(node.get("raw").toString(), node.get("data").toString()));
-      }
 
       // construct the link objects from raw responses
       // the details response object
@@ -572,15 +1068,113 @@ public class Sdk<TState> implements ISdk<TState> {
          Class<TLinkData> classOfTLinkData) throws TraceSdkException {
       // create variables
       GraphResponse response = this.client.graphql(GraphQl.Query.QUERY_GETTRACESTATE,
-            Collections.singletonMap("traceId", input.getTraceId()), null, GraphResponse.class);
+            Collections.singletonMap("traceId", input.getTraceId()),
+            this.makeTraceStateOptions(input.getLeanTraceState()), GraphResponse.class);
+      return this.makeTraceState(response, "trace", input.getTraceId(), classOfTLinkData);
+
+   }
+
+   /***
+    * Builds the trace state found at the given path of a response.
+    * 
+    * @param response         the response of the query
+    * @param path             the path of the trace in the data
+    * @param traceId          the id of the trace
+    * @param classOfTLinkData
+    * @return the trace state
+    * @throws TraceSdkException
+    */
+   <TLinkData> TraceState<TState, TLinkData> makeTraceState(GraphResponse response, String path, String traceId,
+         Class<TLinkData> classOfTLinkData) throws TraceSdkException {
       if (response.hasErrors())
          throw new TraceSdkException(Arrays.asList(response.getErrors()).toString());
 
-      JsonElement traceElt = response.getData("trace");
-      if (traceElt == null)
-         throw new TraceSdkException("Trace " + input.getTraceId() + " not found.");
+      JsonElement traceElt = response.getData(path);
+      if (traceElt == null || !traceElt.isJsonObject())
+         throw new TraceSdkException("Trace " + traceId + " not found.");
       return this.makeTraceState(traceElt.getAsJsonObject(), classOfTLinkData);
+   }
 
+   /***
+    * Retrieves the states of several traces, fetching up to
+    * traceStatesBatchSize traces per request.
+    * 
+    * @param traceIds the ids of the traces
+    * @return the trace states by trace id, in the order of traceIds. The value
+    *         is null when the trace was not found.
+    * @throws TraceSdkException
+    */
+   public <TLinkData> Map<String, TraceState<TState, TLinkData>> getTraceStates(Collection<String> traceIds)
+         throws TraceSdkException {
+      return getTraceStates(traceIds, null);
+   }
+
+   public <TLinkData> Map<String, TraceState<TState, TLinkData>> getTraceStates(Collection<String> traceIds,
+         Class<TLinkData> classOfTLinkData) throws TraceSdkException {
+      List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(traceIds));
+      int batchSize = this.opts.getTraceStatesBatchSize();
+      List<List<String>> batches = new ArrayList<List<String>>();
+      for (int i = 0; i < ids.size(); i += batchSize) {
+         batches.add(ids.subList(i, Math.min(ids.size(), i + batchSize)));
+      }
+      Map<String, TraceState<TState, TLinkData>> found = new ConcurrentHashMap<String, TraceState<TState, TLinkData>>();
+      this.forEachInParallel(batches, this.opts.getMaxParallelRequests(), (batch) -> {
+         found.putAll(this.<TLinkData>getTraceStatesBatch(batch, classOfTLinkData));
+      });
+      Map<String, TraceState<TState, TLinkData>> traceStates = new LinkedHashMap<>();
+      for (String id : ids) {
+         traceStates.put(id, found.get(id));
+      }
+      return traceStates;
+   }
+
+   /***
+    * Fetches a batch of traces with a single query, aliasing one traceById per
+    * trace.
+    * 
+    * @param traceIds
+    * @param classOfTLinkData
+    * @return the trace states found by trace id
+    * @throws TraceSdkException
+    */
+   private <TLinkData> Map<String, TraceState<TState, TLinkData>> getTraceStatesBatch(List<String> traceIds,
+         Class<TLinkData> classOfTLinkData) throws TraceSdkException {
+      GraphQLOptions gqlOpts = this.makeTraceStateOptions(null);
+      String template;
+      try {
+         template = GraphQl.Query.QUERY_GETTRACESTATES.loadQuery(gqlOpts.isLeanTraceState());
+      } catch (IOException e) {
+         throw new TraceSdkException("Error loading query", e);
+      }
+      StringBuilder declarations = new StringBuilder();
+      StringBuilder selections = new StringBuilder();
+      Map<String, Object> variables = new HashMap<String, Object>();
+      for (int i = 0; i < traceIds.size(); i++) {
+         String alias = "t" + i;
+         declarations.append(i > 0 ? ", " : "").append('$').append(alias).append(": UUID!");
+         selections.append(alias).append(": traceById(id: $").append(alias)
+               .append(") {\n        ...TraceStateFragment\n      }\n      ");
+         variables.put(alias, traceIds.get(i));
+      }
+      String document = template.replace("${TraceStatesVariables}", declarations)
+            .replace("${TraceStatesSelections}", selections);
+
+      GraphResponse response = this.client.graphql(document, variables, gqlOpts, GraphResponse.class);
+      if (response.hasErrors()) {
+         // errors on a single alias leave the other traces usable
+         for (ErrorResponse error : response.getErrors()) {
+            if (error.getPath() == null || error.getPath().length == 0 || response.getData() == null)
+               throw new TraceSdkException(Arrays.asList(response.getErrors()).toString());
+         }
+      }
+      Map<String, TraceState<TState, TLinkData>> traceStates = new HashMap<String, TraceState<TState, TLinkData>>();
+      for (int i = 0; i < traceIds.size(); i++) {
+         JsonElement traceElt = response.getData().get("t" + i);
+         if (traceElt != null && traceElt.isJsonObject()) {
+            traceStates.put(traceIds.get(i), this.makeTraceState(traceElt.getAsJsonObject(), classOfTLinkData));
+         }
+      }
+      return traceStates;
    }
 
    /**
@@ -674,14 +1268,36 @@ public class Sdk<TState> implements ISdk<TState> {
    @Override
    public <TLinkData> TraceState<TState, TLinkData> newTrace(NewTraceInput<TLinkData> input) throws TraceSdkException {
 
+      // Set the group label if it is set
+      SdkConfig sdkConfig = this.getConfig();
+
+      TraceLinkBuilder<TLinkData> linkBuilder = this.makeNewTraceBuilder(input, sdkConfig);
+      @SuppressWarnings("unchecked")
+      Class<TLinkData> dataClass = (Class<TLinkData>) input.getData().getClass();
+      // call createLink helper
+      try {
+         return this.createLink(linkBuilder, dataClass);
+      } catch (ChainscriptException e) {
+         throw new TraceSdkException(e);
+      }
+   }
+
+   /**
+    * Uploads the files of a new trace and prepares its first link.
+    *
+    * @param input     the newTrace input argument
+    * @param sdkConfig the config of the sdk
+    * @throws TraceSdkException
+    * @return the builder of the first link
+    */
+   <TLinkData> TraceLinkBuilder<TLinkData> makeNewTraceBuilder(NewTraceInput<TLinkData> input, SdkConfig sdkConfig)
+         throws TraceSdkException {
+
       // extract info from input
       String action = input.getAction();
       TLinkData data = input.getData();
       String groupLabel = input.getGroupLabel();
 
-      // Set the group label if it is set
-      SdkConfig sdkConfig = this.getConfig();
-
       String workflowId = sdkConfig.getWorkflowId();
       String configId = sdkConfig.getConfigId();
       String groupId = sdkConfig.getGroupId(groupLabel);
@@ -709,14 +1325,7 @@ public class Sdk<TState> implements ISdk<TState> {
             .withGroup(groupId)
             // add creator info
             .withCreatedBy(accountId);
-      @SuppressWarnings("unchecked")
-      Class<TLinkData> dataClass = (Class<TLinkData>) data.getClass();
-      // call createLink helper
-      try {
-         return this.createLink(linkBuilder, dataClass);
-      } catch (ChainscriptException e) {
-         throw new TraceSdkException(e);
-      }
+      return linkBuilder;
    }
 
    /**
@@ -940,13 +1549,38 @@ public class Sdk<TState> implements ISdk<TState> {
       TransferResponseInput<TLinkData> headLinkInput = new TransferResponseInput<TLinkData>(null, input.getTraceId());
       TraceLink<TLinkData> parentLink = this.getHeadLink(headLinkInput);
 
+      SdkConfig sdkConfig = this.getConfig();
+
+      TraceLinkBuilder<TLinkData> linkBuilder = this.makeAppendLinkBuilder(input, parentLink, sdkConfig);
+      // try to read type from data else use the class parameter
+      @SuppressWarnings("unchecked")
+      Class<TLinkData> dataClass = input.getData() != null ? (Class<TLinkData>) input.getData().getClass() : null;
+      try {
+         // call createLink helper
+         return (TraceState<TState, TLinkData>) this.createLink(linkBuilder, dataClass);
+      } catch (ChainscriptException e) {
+         throw new TraceSdkException(e);
+      }
+
+   }
+
+   /**
+    * Uploads the files of a link and prepares it.
+    *
+    * @param input      the appendLink input argument
+    * @param parentLink the head link of the trace
+    * @param sdkConfig  the config of the sdk
+    * @throws TraceSdkException
+    * @return the builder of the link
+    */
+   <TLinkData> TraceLinkBuilder<TLinkData> makeAppendLinkBuilder(AppendLinkInput<TLinkData> input,
+         TraceLink<TLinkData> parentLink, SdkConfig sdkConfig) throws TraceSdkException {
+
       // extract info from input
       String action = input.getAction();
       TLinkData data = input.getData();
       String groupLabel = input.getGroupLabel();
 
-      SdkConfig sdkConfig = this.getConfig();
-
       String workflowId = sdkConfig.getWorkflowId();
       String configId = sdkConfig.getConfigId();
       String accountId = sdkConfig.getAccountId();
@@ -972,12 +1606,7 @@ public class Sdk<TState> implements ISdk<TState> {
                .withGroup(groupId)
                // add creator info
                .withCreatedBy(accountId);
-
-         // try to read type from data else use the class parameter
-         @SuppressWarnings("unchecked")
-         Class<TLinkData> dataClass = data != null ? (Class<TLinkData>) data.getClass() : null;
-         // call createLink helper
-         return (TraceState<TState, TLinkData>) this.createLink(linkBuilder, dataClass);
+         return linkBuilder;
       } catch (ChainscriptException e) {
          throw new TraceSdkException(e);
       }
@@ -1051,17 +1680,23 @@ public class Sdk<TState> implements ISdk<TState> {
          Class<TLinkData> classOfTLinkData) throws TraceSdkException {
 
       // build variables
-      Map<String, Object> variables = new HashMap<String, Object>();
-      variables.put("traceId", input.getTraceId());
-      variables.put("tags", input.getTags());
+      Map<String, Object> variables = this.makeAddTagsToTraceVariables(input);
 
       // execute graphql query
-      GraphResponse response = this.client.graphql(GraphQl.Query.MUTATION_ADDTAGSTOTRACE, variables, null,
-            GraphResponse.class);
-      if (response.hasErrors())
-         throw new TraceSdkException(Arrays.asList(response.getErrors()).toString());
+      GraphResponse response = this.client.graphql(GraphQl.Query.MUTATION_ADDTAGSTOTRACE, variables,
+            this.makeTraceStateOptions(null), GraphResponse.class);
+      return this.makeTraceState(response, "addTagsToTrace.trace", input.getTraceId(), classOfTLinkData);
+   }
 
-      return this.makeTraceState(response.getData("addTagsToTrace.trace").getAsJsonObject(), classOfTLinkData);
+   /***
+    * @param input the addTagsToTrace input argument
+    * @return the variables of the addTagsToTrace mutation
+    */
+   Map<String, Object> makeAddTagsToTraceVariables(AddTagsToTraceInput input) {
+      Map<String, Object> variables = new HashMap<String, Object>();
+      variables.put("traceId", input.getTraceId());
+      variables.put("tags", input.getTags());
+      return variables;
    }
 
    /**
@@ -1075,28 +1710,57 @@ public class Sdk<TState> implements ISdk<TState> {
          PaginationInfo paginationInfo, Class<TLinkData> classOfTLinkData) throws TraceSdkException {
 
       // create variables
+      Map<String, Object> variables = this.makeSearchTracesVariables(filter, paginationInfo, this.getConfig());
+
+      List<TraceState<TState, TLinkData>> traces = new ArrayList<TraceState<TState, TLinkData>>();
+
+      // execute graphql query, the traces are built as they are read
+      GraphResponse response = this.client.graphql(GraphQl.Query.QUERY_SEARCHTRACES, variables,
+            this.makeTraceStateOptions(null), "workflow.traces.nodes", (node) -> {
+               traces.add(this.makeTraceState(node, classOfTLinkData));
+            });
+      return this.makeTracesState(response, traces, classOfTLinkData);
+
+   }
+
+   /***
+    * @param filter         the filter to use in the search
+    * @param paginationInfo
+    * @param sdkConfig      the config of the sdk
+    * @return the variables of the search query
+    */
+   Map<String, Object> makeSearchTracesVariables(SearchTracesFilter filter, PaginationInfo paginationInfo,
+         SdkConfig sdkConfig) {
       Map<String, Object> variables = new HashMap<String, Object>();
       variables.put("filter", filter.getFilters());
-      variables.put("workflowId", this.getConfig().getWorkflowId());
+      variables.put("workflowId", sdkConfig.getWorkflowId());
       Map<String, Object> variablesPaginationInfo = JsonHelper.objectToMap(paginationInfo);
       variables.putAll(variablesPaginationInfo);
+      return variables;
+   }
 
-      // execute graphql query
-      GraphResponse response = this.client.graphql(GraphQl.Query.QUERY_SEARCHTRACES, variables, null,
-            GraphResponse.class);
+   /***
+    * Builds the traces found by the search query.
+    * 
+    * @param response         the response of the query
+    * @param traces           the traces read from the response as it was
+    *                         streamed, null to read them from the response
+    * @param classOfTLinkData
+    * @return the list of traces
+    * @throws TraceSdkException
+    */
+   <TLinkData> TracesState<TState, TLinkData> makeTracesState(GraphResponse response,
+         List<TraceState<TState, TLinkData>> traces, Class<TLinkData> classOfTLinkData) throws TraceSdkException {
       if (response.hasErrors())
          throw new TraceSdkException(Arrays.asList(response.getErrors()).toString());
 
-      List<TraceState<TState, TLinkData>> traces = new ArrayList<TraceState<TState, TLinkData>>();
-
-      // get all the traces
       JsonObject traceResponse = response.getData("workflow.traces").getAsJsonObject();
-      Iterator<JsonElement> iteratorNodes = traceResponse.get("nodes").getAsJsonArray().iterator();
-
-      while (iteratorNodes.hasNext()) {
-         JsonObject node = (JsonObject) iteratorNodes.next();
 
-         traces.add(this.makeTraceState(node, classOfTLinkData));
+      if (traces == null) {
+         traces = new ArrayList<TraceState<TState, TLinkData>>();
+         for (JsonElement node : traceResponse.get("nodes").getAsJsonArray()) {
+            traces.add(this.makeTraceState(node.getAsJsonObject(), classOfTLinkData));
+         }
       }
 
       // construct the traces list object
@@ -1106,7 +1770,6 @@ public class Sdk<TState> implements ISdk<TState> {
       tracesList.setTotalCount(traceResponse.get("totalCount").getAsInt());
       tracesList.setInfo(gson.fromJson(traceResponse.get("info").getAsJsonObject(), Info.class));
       return tracesList;
-
    }
 
    public <TLinkData> TracesState<TState, TLinkData> searchTraces(SearchTracesFilter filter,
@@ -0,0 +1,423 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/***
+ * The segmented AES-GCM format of AesKey. The plaintext is cut in segments of
+ * a fixed size, each sealed on its own so that they can be encrypted and
+ * decrypted in parallel, and a stream can be decrypted a segment at a time.
+ * 
+ * <pre>
+ * header  : magic (4) | version (1) | log2 of the segment size (1) | nonce prefix (7)
+ * segment : ciphertext | tag (16)
+ * </pre>
+ * 
+ * The nonce of a segment is the nonce prefix, the index of the segment (4 bytes,
+ * big endian) and a byte set to 1 on the last segment only, so segments cannot
+ * be reordered or dropped. The header is authenticated with every segment. An
+ * empty plaintext is a single empty last segment.
+ */
+final class SegmentedCipher {
+
+   private static final byte[] MAGIC = { (byte) 0xA7, 'S', 'E', 'G' };
+   private static final byte VERSION = 1;
+   static final int NONCE_PREFIX_LENGTH = 7;
+   static final int HEADER_LENGTH = MAGIC.length + 2 + NONCE_PREFIX_LENGTH;
+
+   private static final int MIN_SEGMENT_SHIFT = 12;
+   private static final int MAX_SEGMENT_SHIFT = 24;
+   /**
+    * 256KB segments, large enough to keep the per segment cost low.
+    */
+   static final int DEFAULT_SEGMENT_SHIFT = 18;
+
+   private final SecretKeySpec key;
+   private final byte[] header;
+   private final int segmentSize;
+
+   private SegmentedCipher(SecretKeySpec key, byte[] header) {
+      this.key = key;
+      this.header = header;
+      this.segmentSize = 1 << header[MAGIC.length + 1];
+   }
+
+   /***
+    * @param bytes at least HEADER_LENGTH bytes
+    * @return true when the bytes start with a segmented header
+    */
+   static boolean isHeader(byte[] bytes) {
+      if (bytes.length < HEADER_LENGTH)
+         return false;
+      for (int i = 0; i < MAGIC.length; i++) {
+         if (bytes[i] != MAGIC[i])
+            return false;
+      }
+      int shift = bytes[MAGIC.length + 1];
+      return bytes[MAGIC.length] == VERSION && shift >= MIN_SEGMENT_SHIFT && shift <= MAX_SEGMENT_SHIFT;
+   }
+
+   /***
+    * @param bytes
+    * @return true when the remaining bytes start with a segmented header
+    */
+   static boolean isHeader(ByteBuffer bytes) {
+      if (bytes.remaining() < HEADER_LENGTH)
+         return false;
+      byte[] header = new byte[HEADER_LENGTH];
+      bytes.duplicate().get(header);
+      return isHeader(header);
+   }
+
+   private static SegmentedCipher create(SecretKeySpec key, int segmentShift, byte[] noncePrefix) {
+      byte[] header = Arrays.copyOf(MAGIC, HEADER_LENGTH);
+      header[MAGIC.length] = VERSION;
+      header[MAGIC.length + 1] = (byte) segmentShift;
+      System.arraycopy(noncePrefix, 0, header, MAGIC.length + 2, NONCE_PREFIX_LENGTH);
+      return new SegmentedCipher(key, header);
+   }
+
+   /***
+    * Seals or opens one segment with the cipher of the current thread.
+    */
+   private void run(int mode, int index, boolean last, ByteBuffer src, ByteBuffer dst)
+         throws GeneralSecurityException {
+      byte[] nonce = new byte[AesKey.SALT_LENGTH];
+      System.arraycopy(this.header, MAGIC.length + 2, nonce, 0, NONCE_PREFIX_LENGTH);
+      nonce[NONCE_PREFIX_LENGTH] = (byte) (index >>> 24);
+      nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+      nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+      nonce[NONCE_PREFIX_LENGTH + 3] = (byte) index;
+      nonce[NONCE_PREFIX_LENGTH + 4] = (byte) (last ? 1 : 0);
+
+      Cipher cipher = AesKey.threadCipher();
+      cipher.init(mode, this.key, new GCMParameterSpec(AesKey.TAG_LENGTH * 8, nonce));
+      cipher.updateAAD(this.header);
+      cipher.doFinal(src, dst);
+   }
+
+   /***
+    * Runs every segment, in parallel on the common fork join pool when there
+    * are several.
+    */
+   private void runAll(int segments, SegmentTask task) throws GeneralSecurityException {
+      try {
+         IntStream indexes = IntStream.range(0, segments);
+         (segments > 1 ? indexes.parallel() : indexes).forEach((index) -> {
+            try {
+               task.run(index);
+            } catch (GeneralSecurityException e) {
+               throw new SegmentException(e);
+            }
+         });
+      } catch (SegmentException e) {
+         throw (GeneralSecurityException) e.getCause();
+      }
+   }
+
+   @FunctionalInterface
+   private interface SegmentTask {
+      void run(int index) throws GeneralSecurityException;
+   }
+
+   private static class SegmentException extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      SegmentException(GeneralSecurityException cause) {
+         super(cause);
+      }
+   }
+
+   /***
+    * Encrypts the remaining bytes of a buffer, leaving its position untouched.
+    * 
+    * @param key
+    * @param plaintext
+    * @param segmentShift log2 of the segment size
+    * @param noncePrefix
+    * @return the encrypted buffer
+    * @throws GeneralSecurityException
+    */
+   static ByteBuffer encrypt(SecretKeySpec key, ByteBuffer plaintext, int segmentShift, byte[] noncePrefix)
+         throws GeneralSecurityException {
+      SegmentedCipher segmented = create(key, segmentShift, noncePrefix);
+      int size = segmented.segmentSize;
+      int length = plaintext.remaining();
+      int segments = Math.max(1, (length + size - 1) / size);
+      long outputSize = HEADER_LENGTH + (long) length + (long) segments * AesKey.TAG_LENGTH;
+      if (outputSize > Integer.MAX_VALUE)
+         throw new IllegalBlockSizeException("Data too large for a buffer, encrypt it as a stream");
+
+      ByteBuffer res = plaintext.isDirect() ? ByteBuffer.allocateDirect((int) outputSize)
+            : ByteBuffer.allocate((int) outputSize);
+      res.put(segmented.header);
+      int start = plaintext.position();
+      segmented.runAll(segments, (index) -> {
+         ByteBuffer src = plaintext.duplicate();
+         src.position(start + index * size);
+         src.limit(Math.min(start + length, start + (index + 1) * size));
+         ByteBuffer dst = res.duplicate();
+         dst.position(HEADER_LENGTH + index * (size + AesKey.TAG_LENGTH));
+         segmented.run(Cipher.ENCRYPT_MODE, index, index == segments - 1, src, dst);
+      });
+      res.position(0);
+      return res;
+   }
+
+   /***
+    * Decrypts the remaining bytes of src, which start with a header, into dst.
+    * The positions of the buffers are only moved once every segment is
+    * verified.
+    * 
+    * @param key
+    * @param src
+    * @param dst must have plaintextSize(src) bytes remaining
+    * @throws GeneralSecurityException
+    */
+   static void decrypt(SecretKeySpec key, ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+      byte[] header = new byte[HEADER_LENGTH];
+      src.duplicate().get(header);
+      SegmentedCipher segmented = new SegmentedCipher(key, header);
+      int size = segmented.segmentSize + AesKey.TAG_LENGTH;
+      int body = src.remaining() - HEADER_LENGTH;
+      int segments = Math.max(1, (body + size - 1) / size);
+      if (body - (segments - 1) * size < AesKey.TAG_LENGTH)
+         throw new AEADBadTagException("Truncated segmented data");
+      int plaintextSize = body - segments * AesKey.TAG_LENGTH;
+      if (dst.remaining() < plaintextSize)
+         throw new IllegalBlockSizeException("Output buffer too small for the decrypted data");
+
+      int start = src.position() + HEADER_LENGTH;
+      int dstStart = dst.position();
+      segmented.runAll(segments, (index) -> {
+         ByteBuffer in = src.duplicate();
+         in.position(start + index * size);
+         in.limit(Math.min(start + body, start + (index + 1) * size));
+         ByteBuffer out = dst.duplicate();
+         out.position(dstStart + index * segmented.segmentSize);
+         segmented.run(Cipher.DECRYPT_MODE, index, index == segments - 1, in, out);
+      });
+      src.position(src.limit());
+      dst.position(dstStart + plaintextSize);
+   }
+
+   /***
+    * Encrypts a stream a segment at a time.
+    * 
+    * @param key
+    * @param plaintext
+    * @param segmentShift log2 of the segment size
+    * @param noncePrefix
+    * @return the encrypted stream, header included
+    */
+   static InputStream encrypt(SecretKeySpec key, InputStream plaintext, int segmentShift, byte[] noncePrefix) {
+      SegmentedCipher segmented = create(key, segmentShift, noncePrefix);
+      return new SegmentStream(segmented, Cipher.ENCRYPT_MODE, plaintext, segmented.header.clone());
+   }
+
+   /***
+    * Decrypts a stream whose header was read. Call start before reading it.
+    * 
+    * @param key
+    * @param header
+    * @param ciphertext
+    * @return the decrypted stream
+    */
+   static SegmentStream decrypt(SecretKeySpec key, byte[] header, InputStream ciphertext) {
+      return new SegmentStream(new SegmentedCipher(key, header), Cipher.DECRYPT_MODE, ciphertext, new byte[0]);
+   }
+
+   /***
+    * Seals or opens a stream one segment at a time. A segment is released once
+    * its tag is verified, with one byte read ahead to tell the last one.
+    */
+   static class SegmentStream extends InputStream {
+      private final SegmentedCipher segmented;
+      private final int mode;
+      private final InputStream in;
+      private final byte[] inBuffer;
+      private int inLength;
+      private int lookAhead = -1;
+      private ByteBuffer out;
+      private int index;
+      private boolean finished;
+
+      private SegmentStream(SegmentedCipher segmented, int mode, InputStream in, byte[] prefix) {
+         this.segmented = segmented;
+         this.mode = mode;
+         this.in = in;
+         int size = segmented.segmentSize;
+         this.inBuffer = new byte[mode == Cipher.ENCRYPT_MODE ? size : size + AesKey.TAG_LENGTH];
+         this.out = ByteBuffer.wrap(prefix);
+      }
+
+      /***
+       * Decrypts the first segment. An AEADBadTagException means that the data
+       * is not in the segmented format, consumed() then gives back the bytes
+       * read to try another one.
+       * 
+       * @throws IOException
+       * @throws AEADBadTagException
+       */
+      void start() throws IOException, AEADBadTagException {
+         try {
+            this.next();
+         } catch (AEADBadTagException e) {
+            byte[] header = this.segmented.header;
+            this.out = ByteBuffer.allocate(header.length + this.inLength + (this.lookAhead == -1 ? 0 : 1));
+            this.out.put(header).put(this.inBuffer, 0, this.inLength);
+            if (this.lookAhead != -1)
+               this.out.put((byte) this.lookAhead);
+            this.out.flip();
+            this.finished = true;
+            throw e;
+         } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to run the cipher on the stream", e);
+         }
+      }
+
+      /***
+       * @return the bytes read from the stream, header included, when start
+       *         failed
+       */
+      byte[] consumed() {
+         byte[] bytes = new byte[this.out.remaining()];
+         this.out.get(bytes);
+         return bytes;
+      }
+
+      /***
+       * Reads the next segment and runs it through the cipher.
+       */
+      private void next() throws IOException, GeneralSecurityException {
+         int length = 0;
+         if (this.lookAhead != -1) {
+            this.inBuffer[length++] = (byte) this.lookAhead;
+            this.lookAhead = -1;
+         }
+         int n;
+         while (length < this.inBuffer.length
+               && (n = this.in.read(this.inBuffer, length, this.inBuffer.length - length)) != -1) {
+            length += n;
+         }
+         this.inLength = length;
+         boolean last = length < this.inBuffer.length || (this.lookAhead = this.in.read()) == -1;
+         if (this.mode == Cipher.DECRYPT_MODE && length < AesKey.TAG_LENGTH)
+            throw new AEADBadTagException("Truncated segmented data");
+
+         int outputSize = this.mode == Cipher.ENCRYPT_MODE ? length + AesKey.TAG_LENGTH
+               : length - AesKey.TAG_LENGTH;
+         if (this.out.capacity() < outputSize)
+            this.out = ByteBuffer.allocate(this.segmented.segmentSize + AesKey.TAG_LENGTH);
+         this.out.clear();
+         try {
+            this.segmented.run(this.mode, this.index, last, ByteBuffer.wrap(this.inBuffer, 0, length), this.out);
+         } catch (ShortBufferException e) {
+            throw new IllegalBlockSizeException(e.getMessage());
+         }
+         this.out.flip();
+         this.index++;
+         this.finished = last;
+      }
+
+      @Override
+      public int read() throws IOException {
+         byte[] b = new byte[1];
+         int n = this.read(b, 0, 1);
+         return n == -1 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (len == 0) {
+            return 0;
+         }
+         while (!this.out.hasRemaining()) {
+            if (this.finished) {
+               return -1;
+            }
+            try {
+               this.next();
+            } catch (GeneralSecurityException e) {
+               throw new IOException("Failed to run the cipher on the stream", e);
+            }
+         }
+         int n = Math.min(len, this.out.remaining());
+         this.out.get(b, off, n);
+         return n;
+      }
+
+      @Override
+      public int available() {
+         return this.out.remaining();
+      }
+
+      @Override
+      public void close() throws IOException {
+         this.in.close();
+      }
+   }
+
+   /***
+    * Rethrows a failure of the segmented format as one of the exceptions
+    * declared by AesKey.
+    * 
+    * @param e
+    * @throws InvalidKeyException
+    * @throws InvalidAlgorithmParameterException
+    * @throws IllegalBlockSizeException
+    * @throws BadPaddingException
+    * @throws NoSuchPaddingException
+    * @throws NoSuchAlgorithmException
+    */
+   static void rethrow(GeneralSecurityException e) throws InvalidKeyException, InvalidAlgorithmParameterException,
+         IllegalBlockSizeException, BadPaddingException, NoSuchPaddingException, NoSuchAlgorithmException {
+      if (e instanceof InvalidKeyException)
+         throw (InvalidKeyException) e;
+      if (e instanceof InvalidAlgorithmParameterException)
+         throw (InvalidAlgorithmParameterException) e;
+      if (e instanceof BadPaddingException)
+         throw (BadPaddingException) e;
+      if (e instanceof NoSuchPaddingException)
+         throw (NoSuchPaddingException) e;
+      if (e instanceof NoSuchAlgorithmException)
+         throw (NoSuchAlgorithmException) e;
+      if (e instanceof IllegalBlockSizeException)
+         throw (IllegalBlockSizeException) e;
+      IllegalBlockSizeException wrapped = new IllegalBlockSizeException(e.getMessage());
+      wrapped.initCause(e);
+      throw wrapped;
+   }
+
+}
@@ -0,0 +1,36 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.tika.Tika;
+
+/***
+ * The Tika fallback, only loaded when tika-core is on the classpath. Tika is
+ * thread safe, one instance is shared.
+ */
+class TikaMimeDetector implements MimeDetector {
+
+   private final Tika tika = new Tika();
+
+   @Override
+   public String detect(Path file, byte[] head) throws IOException {
+      return this.tika.detect(file);
+   }
+
+}
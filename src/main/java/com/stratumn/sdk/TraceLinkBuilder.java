@@ -98,6 +98,20 @@ public class TraceLinkBuilder<TLinkData> extends LinkBuilder {
 
 	}
 
+	/**
+	 * Replaces the parent link, e.g. when the one the link was built on is no
+	 * longer the head of the trace.
+	 *
+	 * @param parentLink the new parent link
+	 * @return
+	 * @throws ChainscriptException
+	 */
+	public TraceLinkBuilder<TLinkData> withParentLink(TraceLink<TLinkData> parentLink) throws ChainscriptException {
+		this.parentLink = parentLink;
+		super.withPriority(parentLink.priority() + 1).withParent(parentLink.hash());
+		return this;
+	}
+
 	/**
 	 * Helper method to get the parent link. Will throw if no parent link was
 	 * provided.
@@ -0,0 +1,192 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+/***
+ * Bounded LRU cache of the file records of the uploaded files, keyed by the
+ * digest of their content, so that a file already stored by the media service
+ * is not uploaded again. When given a path, the cache is loaded from it and
+ * written back once per batch of uploads, outside of the lock that lookups
+ * take; the file holds the encryption keys of the files and is only readable
+ * by its owner.
+ */
+class UploadCache {
+
+   private static final Gson GSON = new Gson();
+
+   private final LinkedHashMap<String, FileRecord> records;
+
+   private final int capacity;
+
+   private final Path path;
+
+   private final Object saveLock = new Object();
+
+   private long version;
+
+   private long savedVersion;
+
+   /***
+    * @param capacity the maximum number of files kept, 0 disables the cache
+    * @param path     the file the cache is persisted to, or null
+    */
+   UploadCache(int capacity, Path path) {
+      this.capacity = capacity;
+      this.path = capacity > 0 ? path : null;
+      this.records = new LinkedHashMap<String, FileRecord>(16, 0.75f, true) {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, FileRecord> eldest) {
+            return size() > UploadCache.this.capacity;
+         }
+      };
+      this.load();
+   }
+
+   boolean isEnabled() {
+      return this.capacity > 0;
+   }
+
+   /***
+    * The key of a file in the cache. A file is only reused if it is encrypted
+    * the same way.
+    * 
+    * @param fileWrapper
+    * @return the key or null when the wrapper has no content digest
+    * @throws TraceSdkException
+    */
+   static String keyOf(FileWrapper fileWrapper) throws TraceSdkException {
+      String digest = fileWrapper.contentDigest();
+      if (digest == null)
+         return null;
+      return (fileWrapper.isEncrypted() ? "aes:" : "plain:") + digest;
+   }
+
+   /***
+    * @param key
+    * @return the record of the uploaded file or null
+    */
+   synchronized FileRecord get(String key) {
+      return this.records.get(key);
+   }
+
+   /***
+    * Records an uploaded file and persists the cache.
+    * 
+    * @param key
+    * @param fileRecord
+    */
+   void put(String key, FileRecord fileRecord) {
+      this.putAll(Collections.singletonMap(key, fileRecord));
+   }
+
+   /***
+    * Records the files uploaded together and persists the cache once. The file
+    * is written from a copy of the records, so lookups are not blocked while
+    * it is written, and a write never replaces a newer one.
+    * 
+    * @param fileRecords the records by key
+    */
+   void putAll(Map<String, FileRecord> fileRecords) {
+      if (this.capacity <= 0 || fileRecords.isEmpty())
+         return;
+      Map<String, FileRecord> snapshot;
+      long snapshotVersion;
+      synchronized (this) {
+         this.records.putAll(fileRecords);
+         snapshotVersion = ++this.version;
+         snapshot = this.path == null ? null : new LinkedHashMap<String, FileRecord>(this.records);
+      }
+      if (snapshot == null)
+         return;
+      synchronized (this.saveLock) {
+         if (snapshotVersion <= this.savedVersion)
+            return;
+         this.save(snapshot);
+         this.savedVersion = snapshotVersion;
+      }
+   }
+
+   /***
+    * Loads the persisted records. The cache only saves uploads, so an unreadable
+    * file is ignored and will be overwritten.
+    */
+   private void load() {
+      if (this.path == null || !Files.isRegularFile(this.path))
+         return;
+      try (Reader reader = Files.newBufferedReader(this.path, StandardCharsets.UTF_8)) {
+         JsonObject json = GSON.fromJson(reader, JsonObject.class);
+         if (json == null)
+            return;
+         json.entrySet().forEach(
+               (entry) -> this.records.put(entry.getKey(), GSON.fromJson(entry.getValue(), FileRecord.class)));
+      } catch (IOException | JsonParseException e) {
+         this.records.clear();
+      }
+   }
+
+   /***
+    * Writes the records next to the cache file then renames it, so that a
+    * reader never sees a partial file.
+    * 
+    * @param snapshot the records to write
+    */
+   private void save(Map<String, FileRecord> snapshot) {
+      if (this.path == null)
+         return;
+      Path tmp = null;
+      try {
+         Path dir = this.path.toAbsolutePath().getParent();
+         Files.createDirectories(dir);
+         tmp = Files.createTempFile(dir, this.path.getFileName().toString(), ".tmp");
+         try {
+            Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+         } catch (UnsupportedOperationException e) {
+            // not a posix file system
+         }
+         try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            GSON.toJson(snapshot, writer);
+         }
+         Files.move(tmp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+         // the upload went through, the record will be missing from the next runs
+         if (tmp != null) {
+            try {
+               Files.deleteIfExists(tmp);
+            } catch (IOException ioe) {
+            }
+         }
+      }
+   }
+
+}
@@ -18,7 +18,13 @@ public class ByteBufferGsonAdapter implements JsonDeserializer<ByteBuffer>, Json
 
     @Override
     public JsonElement serialize(ByteBuffer src, Type typeOfSrc, JsonSerializationContext context) {
-        return new JsonPrimitive(Base64.getEncoder().encodeToString(src.array()));
+        if (src.hasArray()) {
+            return new JsonPrimitive(Base64.getEncoder().encodeToString(src.array()));
+        }
+        // direct and memory mapped buffers
+        byte[] bytes = new byte[src.remaining()];
+        src.duplicate().get(bytes);
+        return new JsonPrimitive(Base64.getEncoder().encodeToString(bytes));
     }
 
     @Override
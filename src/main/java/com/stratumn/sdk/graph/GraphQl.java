@@ -17,6 +17,8 @@ package com.stratumn.sdk.graph;
 
 import java.io.IOException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -48,6 +50,9 @@ public class GraphQl {
                   "${PaginationInfoOnTracesConnectionFragment}", Fragment.FRAGMENT_PAGINATIONINFO_ONTRACESCONNECTION)),
       QUERY_GETTRACESTATE("/Queries/GetTraceState",
             ImmutableMap.of("${TraceStateFragment}", Fragment.FRAGMENT_TRACESTATE)),
+      // template expanded at runtime with one aliased traceById per trace id
+      QUERY_GETTRACESTATES("/Queries/GetTraceStates",
+            ImmutableMap.of("${TraceStateFragment}", Fragment.FRAGMENT_TRACESTATE)),
       QUERY_SEARCHTRACES("/Queries/SearchTraces", ImmutableMap.of("${TraceStateFragment}", Fragment.FRAGMENT_TRACESTATE,
             "${PaginationInfoOnTracesConnectionFragment}", Fragment.FRAGMENT_PAGINATIONINFO_ONTRACESCONNECTION));
 
@@ -79,6 +84,11 @@ public class GraphQl {
       /******** Query loading ****/
       // cach queries for improved performance
       private static ConcurrentMap<Query, String> cache = new ConcurrentHashMap<Query, String>();
+      // same with the lean TraceState fragment
+      private static ConcurrentMap<Query, String> leanCache = new ConcurrentHashMap<Query, String>();
+      // the SHA-256 hashes of the documents, used by persisted queries
+      private static ConcurrentMap<Query, String> hashCache = new ConcurrentHashMap<Query, String>();
+      private static ConcurrentMap<Query, String> leanHashCache = new ConcurrentHashMap<Query, String>();
 
       /***
        * Load the query and caches it
@@ -87,17 +97,34 @@ public class GraphQl {
        * @throws IOException
        */
       public String loadQuery() throws IOException {
+         return loadQuery(false);
+      }
+
+      /***
+       * Load the query and caches it. In lean mode, the TraceState fragment only
+       * selects the state and head of the trace, not its links.
+       * 
+       * @param leanTraceState use the lean TraceState fragment
+       * @return
+       * @throws IOException
+       */
+      public String loadQuery(boolean leanTraceState) throws IOException {
+         ConcurrentMap<Query, String> documents = leanTraceState ? leanCache : cache;
          String document;
-         if ((document = cache.get(this)) == null) {
+         if ((document = documents.get(this)) == null) {
             synchronized (this) {
-               if ((document = cache.get(this)) == null) {
+               if ((document = documents.get(this)) == null) {
                   document = loadDocument(this.getFilePath());
                   if (this.getSubQueriesMap() != null)
                      for (Entry<String, String> subQuery : this.getSubQueriesMap().entrySet()) {
-                        String subDocument = loadDocument(subQuery.getValue());
+                        String fragmentPath = subQuery.getValue();
+                        if (leanTraceState && Fragment.FRAGMENT_TRACESTATE.getFilePath().equals(fragmentPath)) {
+                           fragmentPath = Fragment.FRAGMENT_TRACESTATE_LEAN.getFilePath();
+                        }
+                        String subDocument = loadDocument(fragmentPath);
                         document = document.replace(subQuery.getKey(), subDocument);
                      }
-                  cache.putIfAbsent(this, document);
+                  documents.putIfAbsent(this, document);
                }
             }
          }
@@ -105,6 +132,24 @@ public class GraphQl {
 
       }
 
+      /***
+       * Returns the hex encoded SHA-256 hash of the document, as expected by the
+       * automatic persisted queries protocol, and caches it.
+       * 
+       * @param leanTraceState use the lean TraceState fragment
+       * @return
+       * @throws IOException
+       */
+      public String loadQueryHash(boolean leanTraceState) throws IOException {
+         ConcurrentMap<Query, String> hashes = leanTraceState ? leanHashCache : hashCache;
+         String hash;
+         if ((hash = hashes.get(this)) == null) {
+            hash = hashDocument(loadQuery(leanTraceState));
+            hashes.putIfAbsent(this, hash);
+         }
+         return hash;
+      }
+
       /**
        * Load the query from the specified file
        * 
@@ -120,12 +165,34 @@ public class GraphQl {
 
    }
 
+   /***
+    * Computes the hex encoded SHA-256 hash of a document, as expected by the
+    * automatic persisted queries protocol.
+    * 
+    * @param document the graphql document
+    * @return
+    */
+   public static String hashDocument(String document) {
+      byte[] digest;
+      try {
+         digest = MessageDigest.getInstance("SHA-256").digest(document.getBytes(Constants.UTF8));
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+         hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+   }
+
    /***
     * Fragments are reusable entities
     *
     */
    private enum Fragment {
       FRAGMENT_HEADLINK("/Fragments/HeadLink"), FRAGMENT_TRACESTATE("/Fragments/TraceState"),
+      FRAGMENT_TRACESTATE_LEAN("/Fragments/TraceStateLean"),
       FRAGMENT_PAGINATIONINFO_ONTRACESCONNECTION("/Fragments/PaginationInfo/OnTracesConnection"),
       FRAGMENT_PAGINATIONINFO_ONLINKSCONNECTION("/Fragments/PaginationInfo/OnLinksConnection");
 
@@ -26,6 +26,11 @@ public class GraphQlQuery
 
    private String query;
 
+   /**
+    * The protocol extensions, such as the persisted query hash
+    */
+   private Map<String, Object> extensions;
+
    public Map<String, Object> getVariables()
    {
       return variables;
@@ -46,9 +51,19 @@ public class GraphQlQuery
       this.query = query;
    }
 
+   public Map<String, Object> getExtensions()
+   {
+      return extensions;
+   }
+
+   public void setExtensions(Map<String, Object> extensions)
+   {
+      this.extensions = extensions;
+   }
+
    @Override
    public String toString()
    {
-      return "GraphQLQuery [variables=" + variables + ", query=" + query + "]";
+      return "GraphQLQuery [variables=" + variables + ", query=" + query + ", extensions=" + extensions + "]";
    }
 }
@@ -0,0 +1,104 @@
+/*
+ Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk.graph;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.stratumn.sdk.TraceSdkException;
+
+/***
+ * Decodes a graphql response as it is read, handing the elements of one array
+ * of the data over one at a time instead of building the whole response tree.
+ */
+public class GraphQlResponseReader {
+
+   private static final TypeAdapter<JsonElement> ELEMENT_ADAPTER = new Gson().getAdapter(JsonElement.class);
+
+   /***
+    * Receives the elements of the streamed array.
+    */
+   @FunctionalInterface
+   public interface NodeHandler {
+      void handle(JsonObject node) throws TraceSdkException;
+   }
+
+   /***
+    * Reads a graphql response. The elements of the array found at nodesPath in
+    * the data are passed to the handler and left out of the returned response.
+    * 
+    * @param in          the response body
+    * @param nodesPath   the path of the array in the data, like A.B.nodes
+    * @param nodeHandler the handler of the array elements
+    * @return the response without the streamed array
+    * @throws IOException
+    * @throws TraceSdkException
+    */
+   public static JsonObject read(Reader in, String nodesPath, NodeHandler nodeHandler)
+         throws IOException, TraceSdkException {
+      String[] path = nodesPath.split("\\.");
+      JsonReader reader = new JsonReader(in);
+      JsonObject response = new JsonObject();
+      reader.beginObject();
+      while (reader.hasNext()) {
+         String name = reader.nextName();
+         if ("data".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            response.add(name, readObject(reader, path, 0, nodeHandler));
+         } else {
+            response.add(name, ELEMENT_ADAPTER.read(reader));
+         }
+      }
+      reader.endObject();
+      return response;
+   }
+
+   /***
+    * Reads an object on the path to the streamed array.
+    */
+   private static JsonObject readObject(JsonReader reader, String[] path, int depth, NodeHandler nodeHandler)
+         throws IOException, TraceSdkException {
+      JsonObject object = new JsonObject();
+      reader.beginObject();
+      while (reader.hasNext()) {
+         String name = reader.nextName();
+         if (!name.equals(path[depth])) {
+            object.add(name, ELEMENT_ADAPTER.read(reader));
+         } else if (depth == path.length - 1 && reader.peek() == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+               JsonElement node = ELEMENT_ADAPTER.read(reader);
+               if (node.isJsonObject()) {
+                  nodeHandler.handle(node.getAsJsonObject());
+               }
+            }
+            reader.endArray();
+         } else if (depth < path.length - 1 && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            object.add(name, readObject(reader, path, depth + 1, nodeHandler));
+         } else {
+            object.add(name, ELEMENT_ADAPTER.read(reader));
+         }
+      }
+      reader.endObject();
+      return object;
+   }
+
+}
@@ -0,0 +1,88 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk.model.client;
+
+/**
+ * A snapshot of the requests admitted to one service by the Client.
+ */
+public class BulkheadStats {
+   private final Service service;
+   private final int maxConcurrentRequests;
+   private final int concurrencyLimit;
+   private final int maxQueuedRequests;
+   private final int activeRequests;
+   private final int queuedRequests;
+   private final long rejectedRequests;
+
+   public BulkheadStats(Service service, int maxConcurrentRequests, int concurrencyLimit, int maxQueuedRequests,
+         int activeRequests, int queuedRequests, long rejectedRequests) {
+      this.service = service;
+      this.maxConcurrentRequests = maxConcurrentRequests;
+      this.concurrencyLimit = concurrencyLimit;
+      this.maxQueuedRequests = maxQueuedRequests;
+      this.activeRequests = activeRequests;
+      this.queuedRequests = queuedRequests;
+      this.rejectedRequests = rejectedRequests;
+   }
+
+   public Service getService() {
+      return this.service;
+   }
+
+   public int getMaxConcurrentRequests() {
+      return this.maxConcurrentRequests;
+   }
+
+   /***
+    * @return the current limit of concurrent requests, below the maximum when
+    *         the limit is adaptive and the service looks overloaded
+    */
+   public int getConcurrencyLimit() {
+      return this.concurrencyLimit;
+   }
+
+   public int getMaxQueuedRequests() {
+      return this.maxQueuedRequests;
+   }
+
+   /***
+    * @return the number of requests currently running
+    */
+   public int getActiveRequests() {
+      return this.activeRequests;
+   }
+
+   /***
+    * @return the number of requests currently waiting for a slot
+    */
+   public int getQueuedRequests() {
+      return this.queuedRequests;
+   }
+
+   /***
+    * @return the number of requests rejected since the Client was created,
+    *         because the queue was full or the wait timed out
+    */
+   public long getRejectedRequests() {
+      return this.rejectedRequests;
+   }
+
+   @Override
+   public String toString() {
+      return "BulkheadStats [service=" + service + ", active=" + activeRequests + "/" + concurrencyLimit + ", max="
+            + maxConcurrentRequests + ", queued=" + queuedRequests + "/" + maxQueuedRequests + ", rejected=" + rejectedRequests + "]";
+   }
+}
@@ -17,11 +17,84 @@ package com.stratumn.sdk.model.client;
 
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Options Class used to instantiate the Client.
  */
 public class ClientOptions {
+   /**
+    * The default maximum number of pooled connections across all services.
+    */
+   public static final int DEFAULT_MAX_CONNECTIONS = 50;
+
+   /**
+    * The default maximum number of pooled connections to a single service.
+    */
+   public static final int DEFAULT_MAX_CONNECTIONS_PER_SERVICE = 20;
+
+   /**
+    * The default maximum number of requests waiting for a slot on a single
+    * service.
+    */
+   public static final int DEFAULT_MAX_QUEUED_REQUESTS = 100;
+
+   /**
+    * The default time a request may wait for a slot before being rejected.
+    */
+   public static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 30000;
+
+   /**
+    * The default share of the requests which may be retried.
+    */
+   public static final double DEFAULT_RETRY_BUDGET_RATIO = 0.2;
+
+   /**
+    * The default number of retries allowed in a burst.
+    */
+   public static final int DEFAULT_RETRY_BUDGET_RESERVE = 10;
+
+   /**
+    * The default number of consecutive failures after which the requests to a
+    * service fail fast.
+    */
+   public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+
+   /**
+    * The default time during which the requests to a failing service fail fast.
+    */
+   public static final long DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS = 30000;
+
+   /**
+    * The default time allowed to open a connection, or to get one from the
+    * pool.
+    */
+   public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+   /**
+    * The default time allowed between two packets of a response.
+    */
+   public static final int DEFAULT_READ_TIMEOUT_MILLIS = 60000;
+
+   /**
+    * The default time after which an idle pooled connection is closed.
+    */
+   public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS = 30000;
+
+   /**
+    * The default delay before token expiry at which it gets refreshed.
+    */
+   public static final long DEFAULT_TOKEN_REFRESH_MARGIN_MILLIS = 60000;
+
+   /**
+    * The default size of the media cache.
+    */
+   public static final long DEFAULT_MEDIA_CACHE_MAX_BYTES = 1024L * 1024 * 1024;
+
    /**
    * To configure the endpoints. Can be a short tag like 'release' or 'staging'.
     * Can also be a struct to configure each service endpoint, eg: { trace:
@@ -38,6 +111,108 @@ public class ClientOptions {
    private Proxy proxy;
    
    private boolean enableDebuging=false;
+
+   /**
+    * The maximum number of pooled keep-alive connections of any service.
+    */
+   private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+   /**
+    * The maximum number of pooled keep-alive connections per service. Services
+    * not present in the map use DEFAULT_MAX_CONNECTIONS_PER_SERVICE.
+    */
+   private Map<Service, Integer> maxConnectionsPerService = new EnumMap<Service, Integer>(Service.class);
+
+   /**
+    * The maximum number of requests running at once per service. Services not
+    * present in the map are limited to the size of their connection pool.
+    */
+   private Map<Service, Integer> maxConcurrentRequests = new EnumMap<Service, Integer>(Service.class);
+
+   /**
+    * The services whose limit of concurrent requests adapts to their failures
+    * and latency, up to maxConcurrentRequests.
+    */
+   private Set<Service> adaptiveConcurrency = EnumSet.noneOf(Service.class);
+
+   /**
+    * The maximum number of requests waiting for a slot per service. Services
+    * not present in the map use DEFAULT_MAX_QUEUED_REQUESTS.
+    */
+   private Map<Service, Integer> maxQueuedRequests = new EnumMap<Service, Integer>(Service.class);
+
+   /**
+    * How long a request may wait for a slot before being rejected.
+    */
+   private long queueTimeoutMillis = DEFAULT_QUEUE_TIMEOUT_MILLIS;
+
+   /**
+    * The retry policy of the requests whose options do not set one.
+    */
+   private RetryPolicy retryPolicy = new RetryPolicy();
+
+   /**
+    * The retries allowed per request, per service.
+    */
+   private double retryBudgetRatio = DEFAULT_RETRY_BUDGET_RATIO;
+
+   /**
+    * The retries allowed in a burst, per service.
+    */
+   private int retryBudgetReserve = DEFAULT_RETRY_BUDGET_RESERVE;
+
+   /**
+    * The consecutive failures opening the circuit of a service, 0 to disable.
+    */
+   private int circuitBreakerFailureThreshold = DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+
+   /**
+    * How long the circuit of a failing service stays open.
+    */
+   private long circuitBreakerOpenMillis = DEFAULT_CIRCUIT_BREAKER_OPEN_MILLIS;
+
+   /**
+    * How long opening a connection, or getting one from the pool, may take. 0
+    * for no timeout.
+    */
+   private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+   /**
+    * How long the server may stay silent while sending a response. 0 for no
+    * timeout.
+    */
+   private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+   /**
+    * How long a pooled connection may stay idle before it is evicted.
+    */
+   private long idleConnectionTimeoutMillis = DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLIS;
+
+   /**
+    * Refresh the authentication token in the background before it expires.
+    */
+   private boolean enableTokenRefresh = true;
+
+   /**
+    * How long before expiry the authentication token gets refreshed.
+    */
+   private long tokenRefreshMarginMillis = DEFAULT_TOKEN_REFRESH_MARGIN_MILLIS;
+
+   /**
+    * Send GraphQL documents by hash (automatic persisted queries).
+    */
+   private boolean enablePersistedQueries = false;
+
+   /**
+    * The directory where downloaded files are cached, still encrypted. No
+    * cache when null.
+    */
+   private Path mediaCacheDir;
+
+   /**
+    * The size above which the least recently used cached files are removed.
+    */
+   private long mediaCacheMaxBytes = DEFAULT_MEDIA_CACHE_MAX_BYTES;
    
    public ClientOptions(Endpoints endpoints, Secret secret) throws IllegalArgumentException {
       this.endpoints = endpoints;
@@ -89,4 +264,314 @@ public class ClientOptions {
       this.enableDebuging = enableDebuging;
    }
 
+   public int getMaxConnections() {
+      return this.maxConnections;
+   }
+
+   /***
+    * Sets the maximum number of pooled connections of any service. Each service
+    * has its own pool, whose size is capped by this value.
+    * @param maxConnections
+    */
+   public void setMaxConnections(int maxConnections) throws IllegalArgumentException {
+      if (maxConnections <= 0) {
+         throw new IllegalArgumentException("maxConnections must be positive");
+      }
+      this.maxConnections = maxConnections;
+   }
+
+   public int getMaxConnections(Service service) {
+      Integer max = this.maxConnectionsPerService.get(service);
+      return max != null ? max : DEFAULT_MAX_CONNECTIONS_PER_SERVICE;
+   }
+
+   /***
+    * Sets the size of the connection pool of one service.
+    * @param service
+    * @param maxConnections
+    */
+   public void setMaxConnections(Service service, int maxConnections) throws IllegalArgumentException {
+      if (service == null) {
+         throw new IllegalArgumentException("service cannot be null");
+      }
+      if (maxConnections <= 0) {
+         throw new IllegalArgumentException("maxConnections must be positive");
+      }
+      this.maxConnectionsPerService.put(service, maxConnections);
+   }
+
+   public int getMaxConcurrentRequests(Service service) {
+      Integer max = this.maxConcurrentRequests.get(service);
+      return max != null ? max : Math.min(getMaxConnections(), getMaxConnections(service));
+   }
+
+   /***
+    * Sets how many requests to one service may run at once. The other requests
+    * to that service wait in its queue.
+    * @param service
+    * @param maxConcurrentRequests
+    */
+   public void setMaxConcurrentRequests(Service service, int maxConcurrentRequests) throws IllegalArgumentException {
+      if (service == null) {
+         throw new IllegalArgumentException("service cannot be null");
+      }
+      if (maxConcurrentRequests <= 0) {
+         throw new IllegalArgumentException("maxConcurrentRequests must be positive");
+      }
+      this.maxConcurrentRequests.put(service, maxConcurrentRequests);
+   }
+
+   public boolean isAdaptiveConcurrency(Service service) {
+      return this.adaptiveConcurrency.contains(service);
+   }
+
+   /***
+    * Lets the limit of concurrent requests to one service adapt to it: the
+    * limit shrinks when the service answers with server errors, fails or slows
+    * down, and grows back up to maxConcurrentRequests while it keeps up.
+    * @param service
+    * @param adaptiveConcurrency
+    */
+   public void setAdaptiveConcurrency(Service service, boolean adaptiveConcurrency) throws IllegalArgumentException {
+      if (service == null) {
+         throw new IllegalArgumentException("service cannot be null");
+      }
+      if (adaptiveConcurrency) {
+         this.adaptiveConcurrency.add(service);
+      } else {
+         this.adaptiveConcurrency.remove(service);
+      }
+   }
+
+   public int getMaxQueuedRequests(Service service) {
+      Integer max = this.maxQueuedRequests.get(service);
+      return max != null ? max : DEFAULT_MAX_QUEUED_REQUESTS;
+   }
+
+   /***
+    * Sets how many requests to one service may wait for a slot. Requests beyond
+    * that are rejected right away.
+    * @param service
+    * @param maxQueuedRequests
+    */
+   public void setMaxQueuedRequests(Service service, int maxQueuedRequests) throws IllegalArgumentException {
+      if (service == null) {
+         throw new IllegalArgumentException("service cannot be null");
+      }
+      if (maxQueuedRequests < 0) {
+         throw new IllegalArgumentException("maxQueuedRequests cannot be negative");
+      }
+      this.maxQueuedRequests.put(service, maxQueuedRequests);
+   }
+
+   public long getQueueTimeoutMillis() {
+      return this.queueTimeoutMillis;
+   }
+
+   /***
+    * Sets how long a request may wait for a slot before being rejected.
+    * @param queueTimeoutMillis
+    */
+   public void setQueueTimeoutMillis(long queueTimeoutMillis) throws IllegalArgumentException {
+      if (queueTimeoutMillis < 0) {
+         throw new IllegalArgumentException("queueTimeoutMillis cannot be negative");
+      }
+      this.queueTimeoutMillis = queueTimeoutMillis;
+   }
+
+   public RetryPolicy getRetryPolicy() {
+      return this.retryPolicy;
+   }
+
+   /***
+    * Sets the retry policy used when the options of a request do not set one
+    * @param retryPolicy
+    */
+   public void setRetryPolicy(RetryPolicy retryPolicy) throws IllegalArgumentException {
+      if (retryPolicy == null) {
+         throw new IllegalArgumentException("retryPolicy cannot be null");
+      }
+      this.retryPolicy = retryPolicy;
+   }
+
+   public double getRetryBudgetRatio() {
+      return this.retryBudgetRatio;
+   }
+
+   /***
+    * Sets the share of the requests to a service which may be retried, like 0.2
+    * for one retry every five requests.
+    * @param retryBudgetRatio
+    */
+   public void setRetryBudgetRatio(double retryBudgetRatio) throws IllegalArgumentException {
+      if (retryBudgetRatio < 0) {
+         throw new IllegalArgumentException("retryBudgetRatio cannot be negative");
+      }
+      this.retryBudgetRatio = retryBudgetRatio;
+   }
+
+   public int getRetryBudgetReserve() {
+      return this.retryBudgetReserve;
+   }
+
+   /***
+    * Sets the number of retries to a service allowed in a burst, on top of the
+    * budget ratio.
+    * @param retryBudgetReserve
+    */
+   public void setRetryBudgetReserve(int retryBudgetReserve) throws IllegalArgumentException {
+      if (retryBudgetReserve < 0) {
+         throw new IllegalArgumentException("retryBudgetReserve cannot be negative");
+      }
+      this.retryBudgetReserve = retryBudgetReserve;
+   }
+
+   public int getCircuitBreakerFailureThreshold() {
+      return this.circuitBreakerFailureThreshold;
+   }
+
+   /***
+    * Sets the number of consecutive failures after which the requests to a
+    * service fail fast, 0 to never fail fast.
+    * @param circuitBreakerFailureThreshold
+    */
+   public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold)
+         throws IllegalArgumentException {
+      if (circuitBreakerFailureThreshold < 0) {
+         throw new IllegalArgumentException("circuitBreakerFailureThreshold cannot be negative");
+      }
+      this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+   }
+
+   public long getCircuitBreakerOpenMillis() {
+      return this.circuitBreakerOpenMillis;
+   }
+
+   /***
+    * Sets how long the requests to a failing service fail fast before one is
+    * tried again.
+    * @param circuitBreakerOpenMillis
+    */
+   public void setCircuitBreakerOpenMillis(long circuitBreakerOpenMillis) throws IllegalArgumentException {
+      if (circuitBreakerOpenMillis <= 0) {
+         throw new IllegalArgumentException("circuitBreakerOpenMillis must be positive");
+      }
+      this.circuitBreakerOpenMillis = circuitBreakerOpenMillis;
+   }
+
+   public int getConnectTimeoutMillis() {
+      return this.connectTimeoutMillis;
+   }
+
+   /***
+    * Sets how long opening a connection, or waiting for a pooled one, may take.
+    * 0 disables the timeout.
+    * @param connectTimeoutMillis
+    */
+   public void setConnectTimeoutMillis(int connectTimeoutMillis) throws IllegalArgumentException {
+      if (connectTimeoutMillis < 0) {
+         throw new IllegalArgumentException("connectTimeoutMillis cannot be negative");
+      }
+      this.connectTimeoutMillis = connectTimeoutMillis;
+   }
+
+   public int getReadTimeoutMillis() {
+      return this.readTimeoutMillis;
+   }
+
+   /***
+    * Sets how long the server may stay silent while sending a response. 0
+    * disables the timeout.
+    * @param readTimeoutMillis
+    */
+   public void setReadTimeoutMillis(int readTimeoutMillis) throws IllegalArgumentException {
+      if (readTimeoutMillis < 0) {
+         throw new IllegalArgumentException("readTimeoutMillis cannot be negative");
+      }
+      this.readTimeoutMillis = readTimeoutMillis;
+   }
+
+   public long getIdleConnectionTimeoutMillis() {
+      return this.idleConnectionTimeoutMillis;
+   }
+
+   /***
+    * Sets how long a pooled connection may stay idle before being closed.
+    * @param idleConnectionTimeoutMillis
+    */
+   public void setIdleConnectionTimeoutMillis(long idleConnectionTimeoutMillis) throws IllegalArgumentException {
+      if (idleConnectionTimeoutMillis <= 0) {
+         throw new IllegalArgumentException("idleConnectionTimeoutMillis must be positive");
+      }
+      this.idleConnectionTimeoutMillis = idleConnectionTimeoutMillis;
+   }
+
+   public boolean isEnableTokenRefresh() {
+      return this.enableTokenRefresh;
+   }
+
+   /***
+    * Enables the background refresh of the authentication token
+    * @param enableTokenRefresh
+    */
+   public void setEnableTokenRefresh(boolean enableTokenRefresh) {
+      this.enableTokenRefresh = enableTokenRefresh;
+   }
+
+   public long getTokenRefreshMarginMillis() {
+      return this.tokenRefreshMarginMillis;
+   }
+
+   /***
+    * Sets how long before its expiry the authentication token is refreshed
+    * @param tokenRefreshMarginMillis
+    */
+   public void setTokenRefreshMarginMillis(long tokenRefreshMarginMillis) throws IllegalArgumentException {
+      if (tokenRefreshMarginMillis < 0) {
+         throw new IllegalArgumentException("tokenRefreshMarginMillis cannot be negative");
+      }
+      this.tokenRefreshMarginMillis = tokenRefreshMarginMillis;
+   }
+
+   public boolean isEnablePersistedQueries() {
+      return this.enablePersistedQueries;
+   }
+
+   /***
+    * Sends the SHA-256 hash of GraphQL documents instead of their full text. The
+    * text is only sent when the server does not know the hash yet.
+    * @param enablePersistedQueries
+    */
+   public void setEnablePersistedQueries(boolean enablePersistedQueries) {
+      this.enablePersistedQueries = enablePersistedQueries;
+   }
+
+   public Path getMediaCacheDir() {
+      return this.mediaCacheDir;
+   }
+
+   /***
+    * Caches the downloaded files in a directory, which can be shared by several
+    * processes. The files are kept encrypted.
+    * @param mediaCacheDir
+    */
+   public void setMediaCacheDir(Path mediaCacheDir) {
+      this.mediaCacheDir = mediaCacheDir;
+   }
+
+   public long getMediaCacheMaxBytes() {
+      return this.mediaCacheMaxBytes;
+   }
+
+   /***
+    * Sets the size of the media cache
+    * @param mediaCacheMaxBytes
+    */
+   public void setMediaCacheMaxBytes(long mediaCacheMaxBytes) throws IllegalArgumentException {
+      if (mediaCacheMaxBytes <= 0) {
+         throw new IllegalArgumentException("mediaCacheMaxBytes must be positive");
+      }
+      this.mediaCacheMaxBytes = mediaCacheMaxBytes;
+   }
+
 }
@@ -31,10 +31,22 @@ public class FetchOptions {
 	Boolean skipAuth;
 
 	/**
-	 * The retry count defaults to 1
+	 * The retry count after an authentication failure defaults to 1
 	 */
 	Integer retry=1;
 
+	/**
+	 * The retry policy of the transient failures defaults to the one of the
+	 * ClientOptions
+	 */
+	RetryPolicy retryPolicy;
+
+	/**
+	 * The time allowed to the whole call, login, retries and file transfer
+	 * included defaults to 0, no deadline
+	 */
+	long timeoutMillis;
+
 	public FetchOptions( ) {
         
        this.skipAuth = false;
@@ -74,4 +86,23 @@ public class FetchOptions {
 		this.retry = retry;
 	}
 
+	public RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	public long getTimeoutMillis() {
+		return this.timeoutMillis;
+	}
+
+	public void setTimeoutMillis(long timeoutMillis) throws IllegalArgumentException {
+		if (timeoutMillis < 0) {
+			throw new IllegalArgumentException("timeoutMillis cannot be negative");
+		}
+		this.timeoutMillis = timeoutMillis;
+	}
+
 }
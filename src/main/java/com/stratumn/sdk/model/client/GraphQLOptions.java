@@ -20,10 +20,28 @@ package com.stratumn.sdk.model.client;
  */
 public class GraphQLOptions {
   /**
-   * The retry count
+   * The retry count after an authentication failure
    * defaults to 1
    */
   private Integer retry;
+
+  /**
+   * Use the lean TraceState fragment, without the links of the trace
+   * defaults to false
+   */
+  private boolean leanTraceState;
+
+  /**
+   * The retry policy of the transient failures
+   * defaults to the one of the ClientOptions
+   */
+  private RetryPolicy retryPolicy;
+
+  /**
+   * The time allowed to the whole call, login and retries included
+   * defaults to 0, no deadline
+   */
+  private long timeoutMillis;
   
   public GraphQLOptions(Integer retry) throws IllegalArgumentException {
     if (retry == null) {
@@ -32,6 +50,11 @@ public class GraphQLOptions {
     this.retry = retry;
   }
 
+  public GraphQLOptions(Integer retry, boolean leanTraceState) throws IllegalArgumentException {
+    this(retry);
+    this.leanTraceState = leanTraceState;
+  }
+
   public Integer getRetry() {
     return this.retry;
   }
@@ -39,4 +62,31 @@ public class GraphQLOptions {
   public void setRetry(Integer retry) {
     this.retry = retry;
   }
+
+  public boolean isLeanTraceState() {
+    return this.leanTraceState;
+  }
+
+  public void setLeanTraceState(boolean leanTraceState) {
+    this.leanTraceState = leanTraceState;
+  }
+
+  public RetryPolicy getRetryPolicy() {
+    return this.retryPolicy;
+  }
+
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy;
+  }
+
+  public long getTimeoutMillis() {
+    return this.timeoutMillis;
+  }
+
+  public void setTimeoutMillis(long timeoutMillis) throws IllegalArgumentException {
+    if (timeoutMillis < 0) {
+      throw new IllegalArgumentException("timeoutMillis cannot be negative");
+    }
+    this.timeoutMillis = timeoutMillis;
+  }
 }
@@ -0,0 +1,163 @@
+/*
+Copyright 2017 Stratumn SAS. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package com.stratumn.sdk.model.client;
+
+/**
+ * How the Client retries the requests failing with a transient error: a
+ * connection failure, a 429 or a 502, 503 or 504. The delay between two
+ * attempts grows exponentially, with a random jitter so that clients do not
+ * retry in lockstep, unless the server sent a Retry-After header.
+ *
+ * Only the idempotent requests (GET and GraphQL queries) are retried, unless
+ * retryNonIdempotent is set.
+ */
+public class RetryPolicy {
+   /**
+    * The default number of retries after the first attempt.
+    */
+   public static final int DEFAULT_MAX_RETRIES = 2;
+
+   /**
+    * The default upper bound of the first delay.
+    */
+   public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 200;
+
+   /**
+    * The default upper bound of any delay.
+    */
+   public static final long DEFAULT_MAX_BACKOFF_MILLIS = 10000;
+
+   /**
+    * The default longest Retry-After accepted, a request asked to wait more
+    * fails right away.
+    */
+   public static final long DEFAULT_MAX_RETRY_AFTER_MILLIS = 60000;
+
+   private int maxRetries = DEFAULT_MAX_RETRIES;
+
+   private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+
+   private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+   private long maxRetryAfterMillis = DEFAULT_MAX_RETRY_AFTER_MILLIS;
+
+   private boolean retryNonIdempotent = false;
+
+   public RetryPolicy() {
+   }
+
+   public RetryPolicy(int maxRetries) throws IllegalArgumentException {
+      setMaxRetries(maxRetries);
+   }
+
+   /***
+    * @return a policy never retrying
+    */
+   public static RetryPolicy none() {
+      return new RetryPolicy(0);
+   }
+
+   public int getMaxRetries() {
+      return this.maxRetries;
+   }
+
+   /***
+    * Sets the number of retries after the first attempt, 0 to never retry
+    * @param maxRetries
+    */
+   public void setMaxRetries(int maxRetries) throws IllegalArgumentException {
+      if (maxRetries < 0) {
+         throw new IllegalArgumentException("maxRetries cannot be negative");
+      }
+      this.maxRetries = maxRetries;
+   }
+
+   public long getInitialBackoffMillis() {
+      return this.initialBackoffMillis;
+   }
+
+   /***
+    * Sets the upper bound of the delay before the first retry. It doubles at
+    * each retry.
+    * @param initialBackoffMillis
+    */
+   public void setInitialBackoffMillis(long initialBackoffMillis) throws IllegalArgumentException {
+      if (initialBackoffMillis <= 0) {
+         throw new IllegalArgumentException("initialBackoffMillis must be positive");
+      }
+      this.initialBackoffMillis = initialBackoffMillis;
+   }
+
+   public long getMaxBackoffMillis() {
+      return this.maxBackoffMillis;
+   }
+
+   /***
+    * Sets the upper bound of the delay between two attempts
+    * @param maxBackoffMillis
+    */
+   public void setMaxBackoffMillis(long maxBackoffMillis) throws IllegalArgumentException {
+      if (maxBackoffMillis <= 0) {
+         throw new IllegalArgumentException("maxBackoffMillis must be positive");
+      }
+      this.maxBackoffMillis = maxBackoffMillis;
+   }
+
+   public long getMaxRetryAfterMillis() {
+      return this.maxRetryAfterMillis;
+   }
+
+   /***
+    * Sets the longest Retry-After honored. A request asked to wait longer is
+    * not retried.
+    * @param maxRetryAfterMillis
+    */
+   public void setMaxRetryAfterMillis(long maxRetryAfterMillis) throws IllegalArgumentException {
+      if (maxRetryAfterMillis < 0) {
+         throw new IllegalArgumentException("maxRetryAfterMillis cannot be negative");
+      }
+      this.maxRetryAfterMillis = maxRetryAfterMillis;
+   }
+
+   public boolean isRetryNonIdempotent() {
+      return this.retryNonIdempotent;
+   }
+
+   /***
+    * Also retries the POST requests and the GraphQL mutations. Only safe when
+    * the server ignores the duplicates.
+    * @param retryNonIdempotent
+    */
+   public void setRetryNonIdempotent(boolean retryNonIdempotent) {
+      this.retryNonIdempotent = retryNonIdempotent;
+   }
+
+   /***
+    * Computes the delay before a retry: a random value up to the exponential
+    * backoff ("full jitter").
+    * 
+    * @param retry the number of the retry, starting at 1
+    * @param random a random value in [0, 1)
+    * @return the delay in millis
+    */
+   public long backoffMillis(int retry, double random) {
+      long ceiling = this.initialBackoffMillis << Math.min(retry - 1, 30);
+      if (ceiling <= 0 || ceiling > this.maxBackoffMillis) {
+         ceiling = this.maxBackoffMillis;
+      }
+      return (long) (ceiling * random);
+   }
+}
@@ -15,12 +15,86 @@ See the License for the specific language governing permissions and
 */
 package com.stratumn.sdk.model.sdk;
 
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+
 import com.stratumn.sdk.model.client.*;
 
 public class SdkOptions extends ClientOptions {
+  public static final int DEFAULT_TRACE_STATES_BATCH_SIZE = 50;
+  public static final int DEFAULT_MAX_PARALLEL_REQUESTS = 4;
+  public static final int DEFAULT_HEAD_LINK_CACHE_SIZE = 1000;
+  public static final int DEFAULT_MAX_PARALLEL_UPLOADS = 4;
+  public static final long DEFAULT_MAX_UPLOAD_BYTES_IN_FLIGHT = 256L * 1024 * 1024;
+  public static final int DEFAULT_MAX_PARALLEL_DOWNLOADS = 4;
+  public static final int DEFAULT_UPLOAD_CACHE_SIZE = 1000;
+
   private String workflowId;
   private String groupLabel;
 
+  /**
+   * Fetch trace states without the links of the trace. The full history
+   * remains available through getTraceDetails.
+   */
+  private boolean leanTraceState;
+
+  /**
+   * Maximum number of traces fetched by a single request of getTraceStates.
+   */
+  private int traceStatesBatchSize = DEFAULT_TRACE_STATES_BATCH_SIZE;
+
+  /**
+   * Maximum number of requests a single sdk call runs concurrently.
+   */
+  private int maxParallelRequests = DEFAULT_MAX_PARALLEL_REQUESTS;
+
+  /**
+   * Number of traces whose head link is cached to be used as parent of the
+   * next link, 0 disables the cache.
+   */
+  private int headLinkCacheSize = DEFAULT_HEAD_LINK_CACHE_SIZE;
+
+  /**
+   * Maximum number of files uploaded at once, each in its own request. With 1
+   * all the files of a link are sent in a single request.
+   */
+  private int maxParallelUploads = DEFAULT_MAX_PARALLEL_UPLOADS;
+
+  /**
+   * Maximum size of the files being uploaded at once by the sdk, across calls.
+   */
+  private long maxUploadBytesInFlight = DEFAULT_MAX_UPLOAD_BYTES_IN_FLIGHT;
+
+  /**
+   * Maximum number of files downloaded at once by downloadFilesInObject.
+   */
+  private int maxParallelDownloads = DEFAULT_MAX_PARALLEL_DOWNLOADS;
+
+  /**
+   * Number of uploaded files remembered by content, so that they are not
+   * uploaded again. 0 disables the cache.
+   */
+  private int uploadCacheSize = DEFAULT_UPLOAD_CACHE_SIZE;
+
+  /**
+   * File the upload cache is kept in across runs. It holds the encryption keys
+   * of the files. The cache only lives in memory when null.
+   */
+  private Path uploadCachePath;
+
+  /**
+   * Encrypt the uploaded files in segments, which can be encrypted and
+   * decrypted on several cores and decrypted as they are downloaded. Clients
+   * that only read the single message format cannot read these files.
+   */
+  private boolean segmentedFileEncryption;
+
+  /**
+   * Executor running the parallel requests, a daemon thread pool is created
+   * when none is set.
+   */
+  private Executor executor;
+
   public SdkOptions(String workflowId, Secret secret) {
     super(null, secret);
     this.workflowId = workflowId;
@@ -48,4 +122,106 @@ public class SdkOptions extends ClientOptions {
     this.groupLabel = groupLabel;
   }
 
+  public boolean isLeanTraceState() {
+    return this.leanTraceState;
+  }
+
+  public void setLeanTraceState(boolean leanTraceState) {
+    this.leanTraceState = leanTraceState;
+  }
+
+  public int getTraceStatesBatchSize() {
+    return this.traceStatesBatchSize;
+  }
+
+  public void setTraceStatesBatchSize(int traceStatesBatchSize) {
+    if (traceStatesBatchSize < 1)
+      throw new IllegalArgumentException("traceStatesBatchSize must be positive");
+    this.traceStatesBatchSize = traceStatesBatchSize;
+  }
+
+  public int getMaxParallelRequests() {
+    return this.maxParallelRequests;
+  }
+
+  public void setMaxParallelRequests(int maxParallelRequests) {
+    if (maxParallelRequests < 1)
+      throw new IllegalArgumentException("maxParallelRequests must be positive");
+    this.maxParallelRequests = maxParallelRequests;
+  }
+
+  public Executor getExecutor() {
+    return this.executor;
+  }
+
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  public int getHeadLinkCacheSize() {
+    return this.headLinkCacheSize;
+  }
+
+  public void setHeadLinkCacheSize(int headLinkCacheSize) {
+    if (headLinkCacheSize < 0)
+      throw new IllegalArgumentException("headLinkCacheSize cannot be negative");
+    this.headLinkCacheSize = headLinkCacheSize;
+  }
+
+  public int getMaxParallelUploads() {
+    return this.maxParallelUploads;
+  }
+
+  public void setMaxParallelUploads(int maxParallelUploads) {
+    if (maxParallelUploads < 1)
+      throw new IllegalArgumentException("maxParallelUploads must be positive");
+    this.maxParallelUploads = maxParallelUploads;
+  }
+
+  public long getMaxUploadBytesInFlight() {
+    return this.maxUploadBytesInFlight;
+  }
+
+  public void setMaxUploadBytesInFlight(long maxUploadBytesInFlight) {
+    if (maxUploadBytesInFlight < 1)
+      throw new IllegalArgumentException("maxUploadBytesInFlight must be positive");
+    this.maxUploadBytesInFlight = maxUploadBytesInFlight;
+  }
+
+  public int getMaxParallelDownloads() {
+    return this.maxParallelDownloads;
+  }
+
+  public void setMaxParallelDownloads(int maxParallelDownloads) {
+    if (maxParallelDownloads < 1)
+      throw new IllegalArgumentException("maxParallelDownloads must be positive");
+    this.maxParallelDownloads = maxParallelDownloads;
+  }
+
+  public int getUploadCacheSize() {
+    return this.uploadCacheSize;
+  }
+
+  public void setUploadCacheSize(int uploadCacheSize) {
+    if (uploadCacheSize < 0)
+      throw new IllegalArgumentException("uploadCacheSize cannot be negative");
+    this.uploadCacheSize = uploadCacheSize;
+  }
+
+  public Path getUploadCachePath() {
+    return this.uploadCachePath;
+  }
+
+  public void setUploadCachePath(Path uploadCachePath) {
+    this.uploadCachePath = uploadCachePath;
+  }
+
+  public boolean isSegmentedFileEncryption() {
+    return this.segmentedFileEncryption;
+  }
+
+  public void setSegmentedFileEncryption(boolean segmentedFileEncryption) {
+    this.segmentedFileEncryption = segmentedFileEncryption;
+  }
+
 }
@@ -19,6 +19,11 @@ public class GetTraceStateInput {
 
   private String traceId;
 
+  /**
+   * Fetch the state without the links of the trace, defaults to the sdk options
+   */
+  private Boolean leanTraceState;
+
   public GetTraceStateInput(String traceId) throws IllegalArgumentException {
     if (traceId == null) {
       throw new IllegalArgumentException("traceId cannot be null in GetTraceStateInput");
@@ -26,6 +31,11 @@ public class GetTraceStateInput {
     this.traceId = traceId;
   }
 
+  public GetTraceStateInput(String traceId, Boolean leanTraceState) throws IllegalArgumentException {
+    this(traceId);
+    this.leanTraceState = leanTraceState;
+  }
+
   public String getTraceId() {
     return this.traceId;
   }
@@ -33,4 +43,12 @@ public class GetTraceStateInput {
   public void setTraceId(String traceId) {
     this.traceId = traceId;
   }
+
+  public Boolean getLeanTraceState() {
+    return this.leanTraceState;
+  }
+
+  public void setLeanTraceState(Boolean leanTraceState) {
+    this.leanTraceState = leanTraceState;
+  }
 }
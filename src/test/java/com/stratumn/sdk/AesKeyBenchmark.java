@@ -0,0 +1,88 @@
+package com.stratumn.sdk;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the AesKey buffer encryption and decryption throughput per core.
+ * Not a unit test, run it with the test classpath:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes com.stratumn.sdk.AesKeyBenchmark [seconds] [threads]
+ * </pre>
+ */
+public class AesKeyBenchmark {
+
+  private static final int[] SIZES = { 1024, 16 * 1024, 256 * 1024, 4 * 1024 * 1024 };
+
+  /**
+   * Encrypts then decrypts buffers of the given size for the given time.
+   *
+   * @return the number of plaintext bytes processed
+   */
+  private static long run(int size, boolean direct, long nanos) throws Exception {
+    AesKey key = new AesKey();
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    ByteBuffer plaintext = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    plaintext.put(bytes).flip();
+    ByteBuffer ciphertext = direct ? ByteBuffer.allocateDirect(AesKey.encryptedSize(size))
+        : ByteBuffer.allocate(AesKey.encryptedSize(size));
+    ByteBuffer decrypted = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+
+    long processed = 0;
+    long end = System.nanoTime() + nanos;
+    while (System.nanoTime() < end) {
+      plaintext.rewind();
+      ciphertext.clear();
+      key.encrypt(plaintext, ciphertext);
+      ciphertext.flip();
+      decrypted.clear();
+      key.decrypt(ciphertext, decrypted);
+      processed += size;
+    }
+    return processed;
+  }
+
+  private static void measure(int size, boolean direct, int threads, long nanos) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Long>> results = new ArrayList<Future<Long>>();
+      for (int i = 0; i < threads; i++) {
+        results.add(executor.submit((Callable<Long>) () -> run(size, direct, nanos)));
+      }
+      long total = 0;
+      for (Future<Long> result : results) {
+        total += result.get();
+      }
+      double mbPerSecond = total / (nanos / 1e9) / (1024 * 1024);
+      System.out.printf("%8d bytes %-6s %3d threads: %9.1f MB/s, %8.1f MB/s per thread%n", size,
+          direct ? "direct" : "heap", threads, mbPerSecond, mbPerSecond / threads);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    long seconds = args.length > 0 ? Long.parseLong(args[0]) : 2;
+    int cores = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    long nanos = seconds * 1000000000L;
+
+    // warm up the cipher implementation before measuring
+    run(16 * 1024, false, nanos);
+    for (int size : SIZES) {
+      for (boolean direct : new boolean[] { false, true }) {
+        measure(size, direct, 1, nanos);
+        if (cores > 1)
+          measure(size, direct, cores, nanos);
+      }
+    }
+  }
+
+}
@@ -1,10 +1,22 @@
 package com.stratumn.sdk;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Random;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.Test;
 
@@ -32,6 +44,62 @@ public class TestAesKey {
     }
   }
 
+  @Test
+  public void testEncryptStream() {
+    byte[] message = new byte[3 * AesKey.STREAM_BUFFER_SIZE + 17];
+    new Random(42).nextBytes(message);
+    AesKey k = new AesKey();
+
+    try (InputStream in = k.encrypt(new ByteArrayInputStream(message))) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1000];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+      // same format as the buffer api: iv + ciphertext + tag
+      byte[] ct = out.toByteArray();
+      assertEquals(AesKey.SALT_LENGTH + message.length + AesKey.TAG_LENGTH, ct.length);
+
+      ByteBuffer bb = k.decrypt(ByteBuffer.wrap(ct));
+      byte[] b = new byte[bb.remaining()];
+      bb.get(b);
+      assertArrayEquals(message, b);
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail(e.getMessage());
+    }
+  }
+
+  @Test
+  public void testDecryptStream() throws Exception {
+    byte[] message = new byte[4 * AesKey.STREAM_BUFFER_SIZE + 5];
+    new Random(7).nextBytes(message);
+    AesKey k = new AesKey();
+
+    ByteBuffer ct = k.encrypt(ByteBuffer.wrap(message));
+    byte[] ciphertext = new byte[ct.remaining()];
+    ct.get(ciphertext);
+    try (InputStream in = k.decrypt(new ByteArrayInputStream(ciphertext))) {
+      assertArrayEquals(message, readAll(in));
+    }
+
+    // round trip through both streams
+    try (InputStream in = k.decrypt(k.encrypt(new ByteArrayInputStream(message)))) {
+      assertArrayEquals(message, readAll(in));
+    }
+
+    // the tag is checked at the end of the stream
+    ciphertext[AesKey.SALT_LENGTH + 2 * AesKey.STREAM_BUFFER_SIZE] ^= 1;
+    try (InputStream in = k.decrypt(new ByteArrayInputStream(ciphertext))) {
+      readAll(in);
+      fail("tampered ciphertext was decrypted");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
   @Test
   public void testDecrypt() {
     String key = "dXRdc1KYm8DVFFxc0Hq65ZVoZvHAD/PBx0GUgSMmPEw=";
@@ -53,4 +121,115 @@ public class TestAesKey {
     }
   }
 
+  @Test
+  public void testEncryptDirectBuffers() {
+    byte[] message = "coucou, tu veux voir mon message ?".getBytes();
+    AesKey k = new AesKey();
+
+    try {
+      ByteBuffer plaintext = ByteBuffer.allocateDirect(message.length);
+      plaintext.put(message).flip();
+      ByteBuffer ct = ByteBuffer.allocateDirect(AesKey.encryptedSize(message.length));
+      k.encrypt(plaintext, ct);
+      ct.flip();
+      assertEquals(AesKey.encryptedSize(message.length), ct.remaining());
+
+      // the heap api reads the same format
+      ByteBuffer bb = k.decrypt(ct.duplicate());
+      byte[] b = new byte[bb.remaining()];
+      bb.get(b);
+      assertArrayEquals(message, b);
+
+      ByteBuffer decrypted = ByteBuffer.allocateDirect(AesKey.decryptedSize(ct.remaining()));
+      k.decrypt(ct, decrypted);
+      decrypted.flip();
+      b = new byte[decrypted.remaining()];
+      decrypted.get(b);
+      assertArrayEquals(message, b);
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail(e.getMessage());
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1000];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testEncryptSegmented() {
+    AesKey k = new AesKey();
+    // empty, a few bytes, exactly two segments and a partial third one
+    int[] sizes = { 0, 10, 2 * 256 * 1024, 2 * 256 * 1024 + 7 };
+
+    try {
+      for (int size : sizes) {
+        byte[] message = new byte[size];
+        new Random(size).nextBytes(message);
+
+        ByteBuffer ct = k.encryptSegmented(ByteBuffer.wrap(message));
+        ByteBuffer bb = k.decrypt(ct.duplicate());
+        byte[] b = new byte[bb.remaining()];
+        bb.get(b);
+        assertArrayEquals(message, b);
+
+        // the stream variants produce and read the same format
+        byte[] streamed = readAll(k.encryptSegmented(new ByteArrayInputStream(message)));
+        assertEquals(ct.remaining(), streamed.length);
+        assertArrayEquals(message, readAll(k.decrypt(new ByteArrayInputStream(streamed))));
+        b = new byte[ct.remaining()];
+        ct.duplicate().get(b);
+        assertArrayEquals(message, readAll(k.decrypt(new ByteArrayInputStream(b))));
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail(e.getMessage());
+    }
+  }
+
+  @Test
+  public void testSegmentedTruncation() throws Exception {
+    AesKey k = new AesKey();
+    byte[] message = new byte[3 * 256 * 1024];
+    new Random(3).nextBytes(message);
+    ByteBuffer ct = k.encryptSegmented(ByteBuffer.wrap(message));
+    byte[] b = new byte[ct.remaining()];
+    ct.get(b);
+
+    // dropping the last segment is detected
+    byte[] truncated = Arrays.copyOf(b, b.length - (256 * 1024 + 16));
+    try {
+      k.decrypt(ByteBuffer.wrap(truncated));
+      fail("truncated data was decrypted");
+    } catch (BadPaddingException e) {
+    }
+  }
+
+  @Test
+  public void testLegacyIvLikeSegmentedHeader() throws Exception {
+    AesKey k = new AesKey();
+    byte[] message = "coucou, tu veux voir mon message ?".getBytes();
+    // a single message encrypted with an iv that starts like a segmented header
+    byte[] iv = { (byte) 0xA7, 'S', 'E', 'G', 1, 16, 0, 0, 0, 0, 0, 0 };
+    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Base64.getDecoder().decode(k.export()), "AES"),
+        new GCMParameterSpec(128, iv));
+    byte[] sealed = cipher.doFinal(message);
+    byte[] ct = new byte[iv.length + sealed.length];
+    System.arraycopy(iv, 0, ct, 0, iv.length);
+    System.arraycopy(sealed, 0, ct, iv.length, sealed.length);
+
+    ByteBuffer bb = k.decrypt(ByteBuffer.wrap(ct));
+    byte[] b = new byte[bb.remaining()];
+    bb.get(b);
+    assertArrayEquals(message, b);
+    assertArrayEquals(message, readAll(k.decrypt(new ByteArrayInputStream(ct))));
+  }
+
 }
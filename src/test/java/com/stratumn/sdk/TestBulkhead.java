@@ -0,0 +1,177 @@
+package com.stratumn.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.stratumn.sdk.model.client.BulkheadStats;
+import com.stratumn.sdk.model.client.Service;
+
+import org.junit.Test;
+
+public class TestBulkhead {
+
+  @Test
+  public void testRejectsWhenQueueIsFull() throws Exception {
+    Bulkhead bulkhead = new Bulkhead(Service.MEDIA, 1, 1, 10000);
+    Bulkhead.Permit permit = bulkhead.acquire();
+
+    CountDownLatch queued = new CountDownLatch(1);
+    Thread waiter = new Thread(() -> {
+      queued.countDown();
+      try {
+        Bulkhead.Permit queuedPermit = bulkhead.acquire();
+        bulkhead.release(queuedPermit);
+      } catch (TraceSdkException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    waiter.start();
+    queued.await();
+    while (bulkhead.stats().getQueuedRequests() == 0) {
+      Thread.sleep(1);
+    }
+
+    try {
+      bulkhead.acquire();
+      fail("the queue is full");
+    } catch (TraceSdkException e) {
+    }
+    BulkheadStats stats = bulkhead.stats();
+    assertEquals(1, stats.getActiveRequests());
+    assertEquals(1, stats.getQueuedRequests());
+    assertEquals(1, stats.getRejectedRequests());
+
+    bulkhead.release(permit);
+    waiter.join();
+    stats = bulkhead.stats();
+    assertEquals(0, stats.getActiveRequests());
+    assertEquals(0, stats.getQueuedRequests());
+  }
+
+  @Test
+  public void testRejectsAfterQueueTimeout() throws Exception {
+    Bulkhead bulkhead = new Bulkhead(Service.TRACE, 1, 10, 10);
+    bulkhead.acquire();
+    try {
+      bulkhead.acquire();
+      fail("no slot was released");
+    } catch (TraceSdkException e) {
+    }
+    assertEquals(1, bulkhead.stats().getRejectedRequests());
+    assertEquals(0, bulkhead.stats().getQueuedRequests());
+  }
+
+  @Test
+  public void testWaitBoundedByCaller() throws Exception {
+    Bulkhead bulkhead = new Bulkhead(Service.ACCOUNT, 1, 10, 60000);
+    bulkhead.acquire();
+    long start = System.currentTimeMillis();
+    try {
+      bulkhead.acquire(10);
+      fail("no slot was released");
+    } catch (TraceSdkException e) {
+    }
+    assertTrue(System.currentTimeMillis() - start < 60000);
+    assertEquals(1, bulkhead.stats().getRejectedRequests());
+  }
+
+  @Test
+  public void testAdaptiveLimit() throws Exception {
+    Bulkhead bulkhead = new Bulkhead(Service.TRACE, 10, 10, 10, true);
+    assertEquals(10, bulkhead.stats().getConcurrencyLimit());
+
+    // the requests running when the limit shrinks do not shrink it again
+    Bulkhead.Permit first = bulkhead.acquire();
+    Bulkhead.Permit second = bulkhead.acquire();
+    bulkhead.release(first, true);
+    bulkhead.release(second, true);
+    assertEquals(9, bulkhead.stats().getConcurrencyLimit());
+
+    for (int i = 0; i < 20; i++) {
+      bulkhead.release(bulkhead.acquire(), true);
+    }
+    assertEquals(1, bulkhead.stats().getConcurrencyLimit());
+    Bulkhead.Permit permit = bulkhead.acquire();
+    try {
+      bulkhead.acquire();
+      fail("the limit is down to one request");
+    } catch (TraceSdkException e) {
+    }
+    bulkhead.release(permit, false);
+
+    // grows back while the service keeps up
+    for (int i = 0; i < 2000 && bulkhead.stats().getConcurrencyLimit() < 10; i++) {
+      bulkhead.release(bulkhead.acquire(), false);
+    }
+    assertEquals(10, bulkhead.stats().getConcurrencyLimit());
+  }
+
+  @Test
+  public void testAcquireAsync() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      Bulkhead bulkhead = new Bulkhead(Service.TRACE, 1, 2, 60000);
+      Bulkhead.Permit permit = bulkhead.acquireAsync(60000, scheduler).get();
+
+      // the waiters get the slot in arrival order, without holding a thread
+      CompletableFuture<Bulkhead.Permit> first = bulkhead.acquireAsync(60000, scheduler);
+      CompletableFuture<Bulkhead.Permit> second = bulkhead.acquireAsync(60000, scheduler);
+      assertEquals(2, bulkhead.stats().getQueuedRequests());
+      try {
+        bulkhead.acquireAsync(60000, scheduler).get();
+        fail("the queue is full");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof TraceSdkException);
+      }
+
+      bulkhead.release(permit);
+      assertTrue(first.isDone());
+      assertFalse(second.isDone());
+
+      // a cancelled waiter passes its slot on
+      second.cancel(false);
+      bulkhead.release(first.get());
+      assertEquals(0, bulkhead.stats().getActiveRequests());
+      assertEquals(0, bulkhead.stats().getQueuedRequests());
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testAcquireAsyncTimeout() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      Bulkhead bulkhead = new Bulkhead(Service.TRACE, 1, 10, 60000);
+      bulkhead.acquire();
+      try {
+        bulkhead.acquireAsync(10, scheduler).get();
+        fail("no slot was released");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof TraceSdkException);
+      }
+      assertEquals(1, bulkhead.stats().getRejectedRequests());
+      assertEquals(0, bulkhead.stats().getQueuedRequests());
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFixedLimit() throws Exception {
+    Bulkhead bulkhead = new Bulkhead(Service.TRACE, 4, 10, 10);
+    for (int i = 0; i < 10; i++) {
+      bulkhead.release(bulkhead.acquire(), true);
+    }
+    assertEquals(4, bulkhead.stats().getConcurrencyLimit());
+  }
+
+}
@@ -0,0 +1,54 @@
+package com.stratumn.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.http.client.config.RequestConfig;
+import org.junit.Test;
+
+public class TestDeadline {
+
+  @Test
+  public void testNoDeadline() throws Exception {
+    RequestConfig config = RequestConfig.custom().setConnectTimeout(10).setSocketTimeout(0).build();
+    assertTrue(Deadline.after(0).isNone());
+    assertEquals(Long.MAX_VALUE, Deadline.NONE.remainingMillis());
+    assertTrue(config == Deadline.NONE.bound(config));
+    Deadline.NONE.check();
+  }
+
+  @Test
+  public void testBoundTimeouts() throws Exception {
+    RequestConfig config = RequestConfig.custom().setConnectTimeout(10).setConnectionRequestTimeout(-1)
+        .setSocketTimeout(60000000).build();
+    RequestConfig bounded = Deadline.after(60000).bound(config);
+    assertEquals(10, bounded.getConnectTimeout());
+    // no timeout becomes the time left
+    assertTrue(bounded.getConnectionRequestTimeout() > 50000 && bounded.getConnectionRequestTimeout() <= 60000);
+    assertTrue(bounded.getSocketTimeout() > 50000 && bounded.getSocketTimeout() <= 60000);
+  }
+
+  @Test
+  public void testLongTimeout() throws Exception {
+    Deadline deadline = Deadline.after(Long.MAX_VALUE);
+    assertTrue(!deadline.isNone());
+    assertTrue(deadline.remainingMillis() > 365L * 24 * 3600 * 1000);
+    deadline.check();
+  }
+
+  @Test
+  public void testExpired() throws Exception {
+    Deadline deadline = Deadline.after(1);
+    Thread.sleep(5);
+    assertEquals(0, deadline.remainingMillis());
+    // 0 would disable the timeouts
+    assertEquals(1, deadline.bound(RequestConfig.DEFAULT).getSocketTimeout());
+    try {
+      deadline.check();
+      fail("the deadline has passed");
+    } catch (TraceSdkException e) {
+    }
+  }
+
+}
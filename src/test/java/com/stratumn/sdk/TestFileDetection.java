@@ -0,0 +1,164 @@
+package com.stratumn.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.stratumn.sdk.model.misc.Property;
+
+public class TestFileDetection {
+
+  private static JsonObject makeRecord() {
+    JsonObject record = new JsonObject();
+    record.addProperty("digest", "1114a1d1f2d1a5ecbb6a7e64fc1c2d7b0a8c32b3a3b4b0d2cbf7d48c3a6e3c3c3d3e");
+    record.addProperty("name", "report.pdf");
+    record.addProperty("mimetype", "application/pdf");
+    record.addProperty("size", 2048);
+    record.addProperty("key", "dXRdc1KYm8DVFFxc0Hq65ZVoZvHAD/PBx0GUgSMmPEw=");
+    return record;
+  }
+
+  @Test
+  public void testIsFileRecord() {
+    JsonObject record = makeRecord();
+    assertTrue(FileRecord.isFileRecord(record));
+    assertTrue(FileRecord.isFileRecord(record.toString()));
+
+    // the media api may add fields
+    record.addProperty("createdAt", "2020-01-01T00:00:00Z");
+    record.addProperty("id", "5c4e");
+    assertTrue(FileRecord.isFileRecord(record));
+
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("digest", "abc");
+    map.put("name", "report.pdf");
+    map.put("mimetype", "application/pdf");
+    map.put("size", 2048L);
+    assertTrue(FileRecord.isFileRecord(map));
+
+    // files of unknown type were stored without a mimetype
+    JsonObject untyped = makeRecord();
+    untyped.remove("mimetype");
+    assertTrue(FileRecord.isFileRecord(untyped));
+    assertTrue(FileRecord.isFileRecord(untyped.toString()));
+    untyped.addProperty("mimetype", 12);
+    assertFalse(FileRecord.isFileRecord(untyped));
+
+    record.addProperty("size", "2048");
+    assertFalse(FileRecord.isFileRecord(record));
+    assertFalse(FileRecord.isFileRecord(new JsonObject()));
+    assertFalse(FileRecord.isFileRecord("report.pdf"));
+  }
+
+  @Test
+  public void testIsFileWrapper() {
+    JsonObject wrapper = new JsonObject();
+    wrapper.addProperty("id", "5c4e");
+    wrapper.addProperty("filePath", "/tmp/report.pdf");
+    assertTrue(FileWrapper.isFileWrapper(wrapper));
+
+    wrapper.addProperty("blob", "AAEC");
+    assertFalse(FileWrapper.isFileWrapper(wrapper));
+
+    JsonObject form = new JsonObject();
+    form.addProperty("file", "report.pdf");
+    form.addProperty("comment", "signed");
+    assertFalse(FileWrapper.isFileWrapper(form));
+    assertFalse(FileWrapper.isFileWrapper(makeRecord()));
+  }
+
+  @Test
+  public void testExtractFileRecords() {
+    JsonObject data = new JsonObject();
+    data.addProperty("comment", "signed");
+    data.add("report", makeRecord());
+    Map<String, Property<FileRecord>> records = Helpers.extractFileRecords(data);
+    assertEquals(1, records.size());
+    assertEquals("report", records.values().iterator().next().getPath());
+  }
+
+  enum Status {
+    DRAFT, SIGNED
+  }
+
+  static final class Score {
+    int likes;
+    Double rating;
+    Status status;
+  }
+
+  static class Comment {
+    String text;
+    Score score;
+  }
+
+  static class Report {
+    String title;
+    Comment comment;
+    FileRecord attachment;
+  }
+
+  static class Reviewer {
+    int rank;
+  }
+
+  static class Review {
+    Reviewer reviewer;
+    Score score;
+  }
+
+  static class SigningReviewer extends Reviewer {
+    FileWrapper signature;
+  }
+
+  @Test
+  public void testExtractFromPojo() throws TraceSdkException {
+    assertFalse(ClassFields.of(Score.class).canHoldFiles());
+    // a string may hold a json file record
+    assertTrue(ClassFields.of(Comment.class).canHoldFiles());
+    assertTrue(ClassFields.of(Report.class).canHoldFiles());
+
+    Report report = new Report();
+    report.title = "report";
+    report.comment = new Comment();
+    report.attachment = FileRecord.fromObject(makeRecord());
+    Map<String, Property<FileRecord>> records = Helpers.extractFileRecords(report);
+    assertEquals(1, records.size());
+    Property<FileRecord> property = records.values().iterator().next();
+    assertEquals("attachment", property.getPath());
+
+    FileRecord replacement = FileRecord.fromObject(makeRecord());
+    property.setValue(replacement);
+    Helpers.assignObjects(Collections.singletonList(property));
+    assertTrue(report.attachment == replacement);
+
+    report.attachment = null;
+    report.comment.text = makeRecord().toString();
+    records = Helpers.extractFileRecords(report);
+    assertEquals(1, records.size());
+    assertEquals("comment.text", records.values().iterator().next().getPath());
+  }
+
+  @Test
+  public void testExtractFromSubclass() throws TraceSdkException {
+    // the reviewer field may hold a subclass carrying a file
+    assertTrue(ClassFields.of(Review.class).canHoldFiles());
+
+    SigningReviewer reviewer = new SigningReviewer();
+    reviewer.signature = new FilePathWrapper(Paths.get("/tmp/signature.png"));
+    Review review = new Review();
+    review.reviewer = reviewer;
+    Map<String, Property<FileWrapper>> wrappers = Helpers.extractFileWrappers(review);
+    assertEquals(1, wrappers.size());
+    assertEquals("reviewer.signature", wrappers.values().iterator().next().getPath());
+  }
+
+}
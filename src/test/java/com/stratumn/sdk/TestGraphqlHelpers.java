@@ -15,13 +15,22 @@ See the License for the specific language governing permissions and
 */
 package com.stratumn.sdk;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.Test;
 
+import com.google.gson.JsonObject;
 import com.stratumn.sdk.graph.GraphQl;
+import com.stratumn.sdk.graph.GraphQlResponseReader;
 
 public class TestGraphqlHelpers {
   
@@ -34,6 +43,41 @@ public class TestGraphqlHelpers {
            assertNotNull(document);
         }
 	}
+
+    @Test
+	public  void TestFetchLeanDocument() throws IOException {
+
+        String full = GraphQl.Query.QUERY_GETTRACESTATE.loadQuery();
+        String lean = GraphQl.Query.QUERY_GETTRACESTATE.loadQuery(true);
+        assertTrue(full.contains("links"));
+        assertFalse(lean.contains("links"));
+        assertTrue(lean.contains("fragment TraceStateFragment"));
+	}
+
+    @Test
+	public  void TestQueryHash() throws IOException {
+
+        String hash = GraphQl.Query.QUERY_GETTRACESTATE.loadQueryHash(false);
+        assertTrue(hash.matches("[0-9a-f]{64}"));
+        assertEquals(hash, GraphQl.Query.QUERY_GETTRACESTATE.loadQueryHash(false));
+        assertNotEquals(hash, GraphQl.Query.QUERY_GETTRACESTATE.loadQueryHash(true));
+	}
+
+    @Test
+	public  void TestStreamNodes() throws IOException, TraceSdkException {
+
+        String body = "{\"data\":{\"workflow\":{\"traces\":{\"nodes\":[{\"id\":\"a\"},{\"id\":\"b\"}],"
+              + "\"totalCount\":2}}},\"errors\":[]}";
+        List<String> ids = new ArrayList<String>();
+        JsonObject response = GraphQlResponseReader.read(new StringReader(body), "workflow.traces.nodes",
+              (node) -> ids.add(node.get("id").getAsString()));
+        assertEquals(2, ids.size());
+        assertEquals("b", ids.get(1));
+        JsonObject traces = response.getAsJsonObject("data").getAsJsonObject("workflow").getAsJsonObject("traces");
+        assertFalse(traces.has("nodes"));
+        assertEquals(2, traces.get("totalCount").getAsInt());
+        assertTrue(response.has("errors"));
+	}
 	
 
 	
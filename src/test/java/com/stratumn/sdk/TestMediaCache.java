@@ -0,0 +1,82 @@
+package com.stratumn.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.stratumn.sdk.model.file.FileInfo;
+
+public class TestMediaCache {
+
+  private static void age(Path dir, String name, long millis) throws Exception {
+    Files.setLastModifiedTime(dir.resolve(name), FileTime.fromMillis(System.currentTimeMillis() - millis));
+  }
+
+  @Test
+  public void testStoreAndEvict() throws Exception {
+    Path dir = Files.createTempDirectory("media-cache");
+    MediaCache cache = new MediaCache(dir, 25);
+    assertNull(cache.map("1114aa"));
+
+    cache.store("1114aa", new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }));
+    cache.store("1114bb", new ByteArrayInputStream(new byte[10]));
+    age(dir, "1114aa", 2000);
+    age(dir, "1114bb", 1000);
+
+    // reading a file makes it the most recently used
+    ByteBuffer content = cache.map("1114aa");
+    assertEquals(10, content.remaining());
+    assertEquals(1, content.get(0));
+
+    cache.store("1114cc", new ByteArrayInputStream(new byte[10]));
+    assertNull(cache.open("1114bb"));
+    try (InputStream in = cache.open("1114cc")) {
+      assertNotNull(in);
+    }
+    assertNotNull(cache.map("1114aa"));
+  }
+
+  @Test
+  public void testDigestStaysInDirectory() throws Exception {
+    Path dir = Files.createTempDirectory("media-cache");
+    MediaCache cache = new MediaCache(dir.resolve("cache"), 100);
+    cache.store("../escape", new ByteArrayInputStream(new byte[1]));
+    assertEquals(1, cache.map("../escape").remaining());
+    assertEquals(false, Files.exists(dir.resolve("escape")));
+  }
+
+  @Test
+  public void testDecryptMappedFile() throws Exception {
+    byte[] message = new byte[100000];
+    new Random(3).nextBytes(message);
+    AesKey key = new AesKey();
+    ByteBuffer ct = key.encrypt(ByteBuffer.wrap(message));
+    byte[] ciphertext = new byte[ct.remaining()];
+    ct.get(ciphertext);
+
+    Path dir = Files.createTempDirectory("media-cache");
+    MediaCache cache = new MediaCache(dir, 1000000);
+    cache.store("1114dd", new ByteArrayInputStream(ciphertext));
+    ByteBuffer mapped = cache.map("1114dd");
+    assertTrue(mapped.isDirect());
+
+    // the plaintext of a cached file is not allocated in the direct memory
+    FileInfo info = new FileInfo("file.bin", (long) message.length, "application/octet-stream", key.export());
+    ByteBuffer plaintext = new FileBlobWrapper(mapped, info).decryptedData();
+    assertFalse(plaintext.isDirect());
+    assertEquals(ByteBuffer.wrap(message), plaintext);
+  }
+
+}
@@ -0,0 +1,61 @@
+package com.stratumn.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class TestMimeDetectors {
+
+  private static Path write(Path dir, String name, byte[] content) throws Exception {
+    return Files.write(dir.resolve(name), content);
+  }
+
+  @Test
+  public void testDefaultDetection() throws Exception {
+    Path dir = Files.createTempDirectory("mime");
+    // the content wins over a misleading extension
+    assertEquals("application/pdf",
+        MimeDetectors.detect(write(dir, "contract.bin", "%PDF-1.7\n".getBytes(StandardCharsets.US_ASCII))));
+    assertEquals("image/png", MimeDetectors.detect(write(dir, "logo",
+        new byte[] { (byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0, 0 })));
+    // office documents are zip files told apart by their extension
+    byte[] zip = { 'P', 'K', 3, 4, 20, 0 };
+    assertEquals("application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+        MimeDetectors.detect(write(dir, "report.docx", zip)));
+    assertEquals("application/zip", MimeDetectors.detect(write(dir, "archive", zip)));
+    assertEquals("text/csv", MimeDetectors.detect(write(dir, "data.CSV", "a,b\n1,2\n".getBytes())));
+    // nothing knows this one
+    assertEquals(MimeDetectors.UNKNOWN_MIMETYPE, MimeDetectors.detect(write(dir, "dump", new byte[] { 1, 2, 3 })));
+  }
+
+  @Test
+  public void testRegisteredDetector() throws Exception {
+    Path dir = Files.createTempDirectory("mime");
+    Path file = write(dir, "trace.stratumn", "{}".getBytes());
+    MimeDetector detector = (path, head) -> path.toString().endsWith(".stratumn") ? "application/x-stratumn" : null;
+    MimeDetectors.register(detector);
+    try {
+      assertEquals("application/x-stratumn", MimeDetectors.detect(file));
+      assertEquals("text/plain", MimeDetectors.detect(write(dir, "notes.txt", "hello".getBytes())));
+    } finally {
+      // the detectors are shared by the whole jvm
+      MimeDetectors.unregister(detector);
+    }
+    assertFalse(MimeDetectors.unregister(detector));
+  }
+
+  @Test
+  public void testInfoIsComputedOnce() throws Exception {
+    Path dir = Files.createTempDirectory("mime");
+    Path file = write(dir, "notes.txt", "hello".getBytes());
+    FileWrapper wrapper = FileWrapper.fromFilePath(file);
+    assertEquals(wrapper.info(), wrapper.info());
+    assertEquals("text/plain", wrapper.info().getMimetype());
+  }
+
+}
@@ -0,0 +1,228 @@
+package com.stratumn.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
+
+import com.google.gson.JsonObject;
+import com.stratumn.chainscript.utils.JsonHelper;
+import com.stratumn.sdk.graph.GraphQl;
+import com.stratumn.sdk.graph.GraphQlQuery;
+import com.stratumn.sdk.model.client.ClientOptions;
+import com.stratumn.sdk.model.client.Endpoints;
+import com.stratumn.sdk.model.client.Secret;
+
+public class TestPersistedQueries {
+
+  private static final String DOCUMENT = "query { workflow(id: \"1\") { name } }";
+
+  private static final String DATA = "{\"data\":{\"workflow\":{\"name\":\"wf\"}}}";
+
+  private static final String NOT_FOUND = "{\"errors\":[{\"message\":\"PersistedQueryNotFound\"}]}";
+
+  private static final String NOT_SUPPORTED = "{\"errors\":[{\"message\":\"PersistedQueryNotSupported\","
+      + "\"extensions\":{\"code\":\"PERSISTED_QUERY_NOT_SUPPORTED\"}}]}";
+
+  /***
+   * A graphql endpoint that records the posted queries and answers them in
+   * order, a response being either a json body or the error to throw.
+   */
+  private static class StubEndpoint implements Client.GraphQlPost {
+
+    private final List<GraphQlQuery> queries = new ArrayList<GraphQlQuery>();
+
+    private final LinkedList<Object> responses = new LinkedList<Object>();
+
+    StubEndpoint respond(String body) {
+      this.responses.add(JsonHelper.getGson().fromJson(body, JsonObject.class));
+      return this;
+    }
+
+    StubEndpoint raise(Exception error) {
+      this.responses.add(error);
+      return this;
+    }
+
+    @Override
+    public ResponseEntity<JsonObject> post(GraphQlQuery query) {
+      this.queries.add(query);
+      Object response = this.responses.removeFirst();
+      if (response instanceof RuntimeException) {
+        throw (RuntimeException) response;
+      }
+      return new ResponseEntity<JsonObject>((JsonObject) response, HttpStatus.OK);
+    }
+
+    CompletableFuture<JsonObject> postAsync(GraphQlQuery query) {
+      this.queries.add(query);
+      Object response = this.responses.removeFirst();
+      CompletableFuture<JsonObject> future = new CompletableFuture<JsonObject>();
+      if (response instanceof Exception) {
+        future.completeExceptionally((Exception) response);
+      } else {
+        future.complete((JsonObject) response);
+      }
+      return future;
+    }
+  }
+
+  private Client client;
+
+  private GraphQlQuery fullQuery;
+
+  private String hash;
+
+  @Before
+  public void setUp() {
+    Endpoints endpoints = new Endpoints("http://localhost:1", "http://localhost:1", "http://localhost:1");
+    ClientOptions opts = new ClientOptions(endpoints, Secret.newCredentialSecret("alice@stratumn.com", "secret"));
+    opts.setEnablePersistedQueries(true);
+    this.client = new Client(opts);
+    this.fullQuery = new GraphQlQuery(Collections.<String, Object>singletonMap("id", "1"), DOCUMENT);
+    this.hash = GraphQl.hashDocument(DOCUMENT);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    this.client.close();
+  }
+
+  private static HttpClientErrorException badRequest(String body) {
+    // as thrown by the error handler of the client
+    return new HttpClientErrorException(HttpStatus.BAD_REQUEST, body, null, null, null);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void assertHashOf(GraphQlQuery query) {
+    Map<String, Object> persistedQuery = (Map<String, Object>) query.getExtensions().get("persistedQuery");
+    assertEquals(1, persistedQuery.get("version"));
+    assertEquals(this.hash, persistedQuery.get("sha256Hash"));
+    assertEquals(this.fullQuery.getVariables(), query.getVariables());
+  }
+
+  @Test
+  public void testHashOnly() throws Exception {
+    StubEndpoint endpoint = new StubEndpoint().respond(DATA);
+    ResponseEntity<JsonObject> response = this.client.sendPersistedQuery(this.fullQuery, this.hash, endpoint);
+
+    // a known document is never sent
+    assertEquals(1, endpoint.queries.size());
+    assertNull(endpoint.queries.get(0).getQuery());
+    assertHashOf(endpoint.queries.get(0));
+    assertEquals("wf", response.getBody().getAsJsonObject("data").getAsJsonObject("workflow").get("name")
+        .getAsString());
+    assertTrue(this.client.isPersistedQueries());
+  }
+
+  @Test
+  public void testNotFound() throws Exception {
+    StubEndpoint endpoint = new StubEndpoint().respond(NOT_FOUND).respond(DATA);
+    ResponseEntity<JsonObject> response = this.client.sendPersistedQuery(this.fullQuery, this.hash, endpoint);
+    assertNotFoundResent(endpoint, response);
+  }
+
+  @Test
+  public void testNotFoundBadRequest() throws Exception {
+    StubEndpoint endpoint = new StubEndpoint().raise(badRequest(NOT_FOUND)).respond(DATA);
+    ResponseEntity<JsonObject> response = this.client.sendPersistedQuery(this.fullQuery, this.hash, endpoint);
+    assertNotFoundResent(endpoint, response);
+  }
+
+  private void assertNotFoundResent(StubEndpoint endpoint, ResponseEntity<JsonObject> response) {
+    // the document is sent along with its hash to register it
+    assertEquals(2, endpoint.queries.size());
+    assertNull(endpoint.queries.get(0).getQuery());
+    assertHashOf(endpoint.queries.get(0));
+    assertEquals(DOCUMENT, endpoint.queries.get(1).getQuery());
+    assertHashOf(endpoint.queries.get(1));
+    assertTrue(response.getBody().has("data"));
+    // the next queries are still sent by hash
+    assertTrue(this.client.isPersistedQueries());
+  }
+
+  @Test
+  public void testNotSupported() throws Exception {
+    StubEndpoint endpoint = new StubEndpoint().respond(NOT_SUPPORTED).respond(DATA);
+    ResponseEntity<JsonObject> response = this.client.sendPersistedQuery(this.fullQuery, this.hash, endpoint);
+    assertNotSupportedResent(endpoint, response);
+  }
+
+  @Test
+  public void testNotSupportedBadRequest() throws Exception {
+    StubEndpoint endpoint = new StubEndpoint().raise(badRequest(NOT_SUPPORTED)).respond(DATA);
+    ResponseEntity<JsonObject> response = this.client.sendPersistedQuery(this.fullQuery, this.hash, endpoint);
+    assertNotSupportedResent(endpoint, response);
+  }
+
+  private void assertNotSupportedResent(StubEndpoint endpoint, ResponseEntity<JsonObject> response) {
+    // the plain document is sent, without the protocol extensions
+    assertEquals(2, endpoint.queries.size());
+    assertHashOf(endpoint.queries.get(0));
+    assertEquals(DOCUMENT, endpoint.queries.get(1).getQuery());
+    assertNull(endpoint.queries.get(1).getExtensions());
+    assertTrue(response.getBody().has("data"));
+    // and the next queries too
+    assertFalse(this.client.isPersistedQueries());
+  }
+
+  @Test
+  public void testOtherBadRequest() throws Exception {
+    StubEndpoint endpoint = new StubEndpoint().raise(badRequest("{\"errors\":[{\"message\":\"invalid id\"}]}"));
+    try {
+      this.client.sendPersistedQuery(this.fullQuery, this.hash, endpoint);
+      fail("the error is not part of the protocol");
+    } catch (HttpClientErrorException e) {
+      assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+    }
+    assertEquals(1, endpoint.queries.size());
+    assertTrue(this.client.isPersistedQueries());
+  }
+
+  @Test
+  public void testNotFoundAsync() throws Exception {
+    StubEndpoint endpoint = new StubEndpoint().respond(NOT_FOUND).respond(DATA);
+    JsonObject body = this.client.sendPersistedQueryAsync(this.fullQuery, this.hash, endpoint::postAsync).get();
+    assertNotFoundResent(endpoint, new ResponseEntity<JsonObject>(body, HttpStatus.OK));
+  }
+
+  @Test
+  public void testNotSupportedAsync() throws Exception {
+    // the non-blocking client reports the bad request as an http error
+    StubEndpoint endpoint = new StubEndpoint().raise(new HttpError(400, NOT_SUPPORTED)).respond(DATA);
+    JsonObject body = this.client.sendPersistedQueryAsync(this.fullQuery, this.hash, endpoint::postAsync).get();
+    assertNotSupportedResent(endpoint, new ResponseEntity<JsonObject>(body, HttpStatus.OK));
+  }
+
+  @Test
+  public void testOtherHttpErrorAsync() throws Exception {
+    HttpError error = new HttpError(400, "{\"errors\":[{\"message\":\"invalid id\"}]}");
+    StubEndpoint endpoint = new StubEndpoint().raise(error);
+    try {
+      this.client.sendPersistedQueryAsync(this.fullQuery, this.hash, endpoint::postAsync).get();
+      fail("the error is not part of the protocol");
+    } catch (ExecutionException e) {
+      assertSame(error, e.getCause());
+    }
+    assertEquals(1, endpoint.queries.size());
+    assertTrue(this.client.isPersistedQueries());
+  }
+
+}
@@ -0,0 +1,94 @@
+package com.stratumn.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.stratumn.sdk.model.client.RetryPolicy;
+import com.stratumn.sdk.model.client.Service;
+
+import org.junit.Test;
+
+public class TestRetries {
+
+  @Test
+  public void testBackoff() {
+    RetryPolicy policy = new RetryPolicy();
+    policy.setInitialBackoffMillis(100);
+    policy.setMaxBackoffMillis(1000);
+    assertEquals(50, policy.backoffMillis(1, 0.5));
+    assertEquals(200, policy.backoffMillis(3, 0.5));
+    assertEquals(500, policy.backoffMillis(10, 0.5));
+    assertEquals(500, policy.backoffMillis(100, 0.5));
+    assertEquals(0, policy.backoffMillis(2, 0));
+  }
+
+  @Test
+  public void testParseRetryAfter() {
+    assertEquals(-1, HttpHelpers.parseRetryAfter(null, 0));
+    assertEquals(-1, HttpHelpers.parseRetryAfter("soon", 0));
+    assertEquals(3000, HttpHelpers.parseRetryAfter(" 3 ", 0));
+    // Wed, 21 Oct 2015 07:28:00 GMT
+    long at = 1445412480000L;
+    assertEquals(5000, HttpHelpers.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT", at - 5000));
+    assertEquals(0, HttpHelpers.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT", at + 5000));
+  }
+
+  @Test
+  public void testRetryBudget() {
+    RetryBudget budget = new RetryBudget(0.5, 2);
+    assertTrue(budget.withdraw());
+    assertTrue(budget.withdraw());
+    assertFalse(budget.withdraw());
+
+    budget.deposit();
+    assertFalse(budget.withdraw());
+    budget.deposit();
+    assertTrue(budget.withdraw());
+
+    // the budget never holds more than the reserve
+    for (int i = 0; i < 100; i++) {
+      budget.deposit();
+    }
+    assertTrue(budget.withdraw());
+    assertTrue(budget.withdraw());
+    assertFalse(budget.withdraw());
+  }
+
+  @Test
+  public void testCircuitBreaker() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(Service.TRACE, 2, 50);
+    breaker.check();
+    breaker.onFailure();
+    breaker.check();
+    breaker.onFailure();
+    try {
+      breaker.check();
+      fail("the circuit is open");
+    } catch (TraceSdkException e) {
+    }
+
+    Thread.sleep(60);
+    // a single trial goes through
+    breaker.check();
+    try {
+      breaker.check();
+      fail("the trial is running");
+    } catch (TraceSdkException e) {
+    }
+    breaker.onFailure();
+    try {
+      breaker.check();
+      fail("the trial failed");
+    } catch (TraceSdkException e) {
+    }
+
+    Thread.sleep(60);
+    breaker.check();
+    breaker.onSuccess();
+    breaker.check();
+    breaker.check();
+  }
+
+}
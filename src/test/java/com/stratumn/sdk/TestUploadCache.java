@@ -0,0 +1,83 @@
+package com.stratumn.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.stratumn.sdk.model.file.FileInfo;
+
+public class TestUploadCache {
+
+  private static FileRecord makeRecord(String digest) {
+    FileRecord record = new FileRecord();
+    record.setName("report.pdf");
+    record.setMimetype("application/pdf");
+    record.setSize(7L);
+    record.setDigest(digest);
+    record.setKey("dXRdc1KYm8DVFFxc0Hq65ZVoZvHAD/PBx0GUgSMmPEw=");
+    return record;
+  }
+
+  @Test
+  public void testKeyOf() throws Exception {
+    ByteBuffer content = ByteBuffer.wrap("content".getBytes(StandardCharsets.UTF_8));
+    FileInfo info = new FileInfo("a.txt", 7L, "text/plain", null);
+    FileBlobWrapper first = new FileBlobWrapper(content, info);
+    FileBlobWrapper second = new FileBlobWrapper(content.duplicate(), new FileInfo("b.txt", 7L, "text/plain", null));
+    FileBlobWrapper plain = new FileBlobWrapper(content.duplicate(), info, true);
+
+    // the same content has the same key whatever the name and the key
+    assertEquals(UploadCache.keyOf(first), UploadCache.keyOf(second));
+    // but an unencrypted file is never reused for an encrypted one
+    assertNotEquals(UploadCache.keyOf(first), UploadCache.keyOf(plain));
+  }
+
+  @Test
+  public void testPersistence() throws Exception {
+    Path dir = Files.createTempDirectory("upload-cache");
+    Path path = dir.resolve("uploads.json");
+    try {
+      UploadCache cache = new UploadCache(2, path);
+      cache.put("aes:a", makeRecord("1114a"));
+      cache.put("aes:b", makeRecord("1114b"));
+      cache.put("aes:c", makeRecord("1114c"));
+
+      // the eldest record was evicted and the others are found in a new cache
+      UploadCache reloaded = new UploadCache(2, path);
+      assertNull(reloaded.get("aes:a"));
+      assertEquals("1114b", reloaded.get("aes:b").getDigest());
+      assertEquals("1114c", reloaded.get("aes:c").getDigest());
+      assertEquals("dXRdc1KYm8DVFFxc0Hq65ZVoZvHAD/PBx0GUgSMmPEw=", reloaded.get("aes:c").getKey());
+
+      // the files of a link are recorded together
+      Map<String, FileRecord> batch = new LinkedHashMap<String, FileRecord>();
+      batch.put("aes:d", makeRecord("1114d"));
+      batch.put("plain:d", makeRecord("1114e"));
+      cache.putAll(batch);
+      reloaded = new UploadCache(2, path);
+      assertNull(reloaded.get("aes:c"));
+      assertEquals("1114d", reloaded.get("aes:d").getDigest());
+      assertEquals("1114e", reloaded.get("plain:d").getDigest());
+
+      // a disabled cache keeps nothing
+      UploadCache disabled = new UploadCache(0, null);
+      disabled.put("aes:a", makeRecord("1114a"));
+      disabled.putAll(batch);
+      assertNull(disabled.get("aes:a"));
+      assertNull(disabled.get("aes:d"));
+    } finally {
+      Files.deleteIfExists(path);
+      Files.deleteIfExists(dir);
+    }
+  }
+
+}